@@ -3,13 +3,18 @@ package ltcmd.client
 import io.netty.handler.ssl.SslContext
 import lighttunnel.client.TunnelClient
 import lighttunnel.client.callback.OnTunnelStateListener
+import lighttunnel.client.connect.CircuitState
 import lighttunnel.client.connect.TunnelConnectDescriptor
 import lighttunnel.cmd.AbstractApplication
 import lighttunnel.cmd.IpAddressUtil
 import lighttunnel.cmd.base.BuildConfig
 import lighttunnel.logger.LoggerFactory
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.proto.Compression
+import lighttunnel.proto.FlowWindow
+import lighttunnel.proto.ProtoMessageEncoder
 import lighttunnel.proto.TunnelRequest
+import lighttunnel.transport.Transport
 import lighttunnel.util.SslContextUtil
 import org.apache.commons.cli.CommandLine
 import org.apache.commons.cli.Options
@@ -34,6 +39,10 @@ class Application : AbstractApplication(), OnTunnelStateListener {
         logger.info("onDisconnect: {}, err: {}", descriptor, err, errCause)
     }
 
+    override fun onCircuitStateChanged(descriptor: TunnelConnectDescriptor, state: CircuitState) {
+        logger.info("onCircuitStateChanged: {}, state: {}", descriptor, state)
+    }
+
     override val options: Options
         get() = Options().apply {
             addOption("h", "help", false, "帮助信息")
@@ -60,17 +69,21 @@ class Application : AbstractApplication(), OnTunnelStateListener {
         val serverPort = basic["server_port"].asInt() ?: 5080
         val sslContext = newSslContext(basic)
         val sslServerPort = basic["ssl_server_port"].asInt() ?: 5443
-        ini.entries.filter { it.key != "basic" }.map {
-            Pair(it.value["ssl"]?.toUpperCase() == "TRUE", newTunnelRequest(basic, it.value))
-        }.forEach {
-            val ssl = it.first
-            val request = it.second
+        ini.entries.filter { it.key != "basic" }.forEach {
+            val tunnel = it.value
+            val ssl = tunnel["ssl"]?.toUpperCase() == "TRUE"
+            val request = newTunnelRequest(basic, tunnel)
             if (request != null) {
-                if (ssl) {
-                    client.connect(serverAddr, sslServerPort, request, sslContext)
-                } else {
-                    client.connect(serverAddr, serverPort, request, null)
-                }
+                client.connect(
+                    serverAddr = serverAddr,
+                    serverPort = if (ssl) sslServerPort else serverPort,
+                    tunnelRequest = request,
+                    sslContext = if (ssl) sslContext else null,
+                    localPoolMinIdle = tunnel["local_pool_min_idle"].asInt() ?: 0,
+                    localPoolMaxIdle = tunnel["local_pool_max_idle"].asInt() ?: 0,
+                    localPoolIdleTimeoutMillis = (tunnel["local_pool_idle_timeout"].asInt() ?: 60) * 1000L,
+                    connections = tunnel["connections"].asInt() ?: 1
+                )
             }
         }
     }
@@ -90,8 +103,23 @@ class Application : AbstractApplication(), OnTunnelStateListener {
         val workerThreads = basic["worker_threads"].asInt() ?: -1
         return TunnelClient(
             workerThreads = workerThreads,
+            transport = newTransport(basic),
+            flushMaxDelayMicros = basic["flush_max_delay_micros"].asInt()?.toLong() ?: 0L,
+            flushMaxBytes = basic["flush_max_bytes"].asInt() ?: 64 * 1024,
+            sessionAffinity = basic["session_affinity"]?.toUpperCase() == "TRUE",
+            compressions = Compression.parse(basic["compression"]),
+            compressionThreshold = basic["compression_threshold"].asInt() ?: 512,
+            heartbeatIntervalMillis = (basic["heartbeat_interval"].asInt() ?: 30) * 1000L,
+            heartbeatTimeoutMillis = (basic["heartbeat_timeout"].asInt() ?: 90) * 1000L,
+            protoVersion = basic["proto_version"].asInt() ?: ProtoMessageEncoder.MAX_VERSION,
+            jsonTunnelRequest = basic["json_tunnel_request"]?.toUpperCase() == "TRUE",
             loseReconnect = true,
             errorReconnect = false,
+            reconnectBaseDelayMillis = basic["reconnect_base_delay_millis"].asInt()?.toLong() ?: 1000L,
+            reconnectMaxDelayMillis = basic["reconnect_max_delay_millis"].asInt()?.toLong() ?: 60_000L,
+            reconnectMaxAttempts = basic["reconnect_max_attempts"].asInt() ?: -1,
+            circuitFailureThreshold = basic["circuit_failure_threshold"].asInt() ?: 10,
+            circuitOpenMillis = basic["circuit_open_millis"].asInt()?.toLong() ?: 60_000L,
             onTunnelStateListener = this,
             // dashboard
             dashboardBindPort = basic["dashboard_bind_port"].asInt()
@@ -118,7 +146,9 @@ class Application : AbstractApplication(), OnTunnelStateListener {
             localPort = localPort,
             remotePort = remotePort,
             name = tunnel.name,
-            authToken = authToken
+            authToken = authToken,
+            flowWindow = basic["flow_window"].asInt() ?: FlowWindow.DEFAULT_SIZE,
+            options = *newTunnelOptions(tunnel)
         )
     }
 
@@ -161,10 +191,17 @@ class Application : AbstractApplication(), OnTunnelStateListener {
             enableBasicAuth = enableBasicAuth,
             basicAuthRealm = basicAuthRealm,
             basicAuthUsername = basicAuthUsername,
-            basicAuthPassword = basicAuthPassword
+            basicAuthPassword = basicAuthPassword,
+            flowWindow = basic["flow_window"].asInt() ?: FlowWindow.DEFAULT_SIZE,
+            options = *newTunnelOptions(tunnel)
         )
     }
 
+    private fun newTunnelOptions(tunnel: Profile.Section): Array<Pair<String, String>> {
+        val loadBalance = tunnel["load_balance"] ?: return emptyArray()
+        return arrayOf(TunnelRequest.OPTION_LOAD_BALANCE to loadBalance)
+    }
+
     private fun setupLogger(basic: Profile.Section) {
         val logLevel = Level.toLevel(basic["log_level"], Level.INFO)
         val logFile = basic["log_file"]
@@ -188,6 +225,16 @@ class Application : AbstractApplication(), OnTunnelStateListener {
         }
     }
 
+    private fun newTransport(basic: Profile.Section): Transport {
+        return Transport(
+            native = basic["transport_native"]?.toUpperCase() != "FALSE",
+            reusePort = basic["transport_reuse_port"]?.toUpperCase() == "TRUE",
+            tcpNoDelay = basic["transport_tcp_nodelay"]?.toUpperCase() != "FALSE",
+            tcpQuickAck = basic["transport_tcp_quickack"]?.toUpperCase() == "TRUE",
+            edgeTriggered = basic["transport_edge_triggered"]?.toUpperCase() != "FALSE"
+        )
+    }
+
     private fun String?.asInt(): Int? {
         return try {
             this?.toInt()
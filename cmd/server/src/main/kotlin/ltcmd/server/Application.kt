@@ -4,10 +4,12 @@ import lighttunnel.cmd.AbstractApplication
 import lighttunnel.cmd.base.BuildConfig
 import lighttunnel.logger.LoggerFactory
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.proto.Compression
 import lighttunnel.server.TunnelServer
 import lighttunnel.server.http.DefaultStaticFilePlugin
 import lighttunnel.server.http.StaticFilePlugin
 import lighttunnel.server.interceptor.SimpleRequestInterceptor
+import lighttunnel.transport.Transport
 import lighttunnel.util.SslContextUtil
 import org.apache.commons.cli.CommandLine
 import org.apache.commons.cli.Options
@@ -64,9 +66,18 @@ class Application : AbstractApplication() {
                 domainPrefixList = pluginSfDomainPrefixes
             )
         }
+        val httpsSniPassthrough = basic["vhost_https_sni_passthrough"]?.toUpperCase() == "TRUE"
         return TunnelServer(
             bossThreads = basic["boss_threads"].asInt() ?: -1,
             workerThreads = basic["worker_threads"].asInt() ?: -1,
+            transport = newTransport(basic),
+            flushMaxDelayMicros = basic["flush_max_delay_micros"].asInt()?.toLong() ?: 0L,
+            flushMaxBytes = basic["flush_max_bytes"].asInt() ?: 64 * 1024,
+            sessionAffinity = basic["session_affinity"]?.toUpperCase() == "TRUE",
+            compressions = Compression.parse(basic["compression"]),
+            compressionThreshold = basic["compression_threshold"].asInt() ?: 512,
+            heartbeatIntervalMillis = (basic["heartbeat_interval"].asInt() ?: 30) * 1000L,
+            heartbeatTimeoutMillis = (basic["heartbeat_timeout"].asInt() ?: 90) * 1000L,
             // tunnel
             bindAddr = basic["bind_addr"],
             bindPort = basic["bind_port"].asInt() ?: 5080,
@@ -86,12 +97,17 @@ class Application : AbstractApplication() {
                 null
             },
             tunnelRequestInterceptor = interceptor,
+            allowPorts = allowPorts,
+            interceptorThreads = basic["interceptor_threads"].asInt() ?: 0,
+            interceptorQueueSize = basic["interceptor_queue_size"].asInt() ?: 1024,
+            interceptorTimeoutMillis = basic["interceptor_timeout_millis"].asInt()?.toLong() ?: 10_000L,
+            interceptorCacheTtlMillis = basic["interceptor_cache_ttl_millis"].asInt()?.toLong() ?: 0L,
             // http
             httpBindPort = basic["vhost_http_port"].asInt(),
             httpRequestInterceptor = interceptor,
             // https
             httpsBindPort = basic["vhost_https_port"].asInt(),
-            httpsContext = if (basic["vhost_https_port"] != null) {
+            httpsContext = if (basic["vhost_https_port"] != null && !httpsSniPassthrough) {
                 try {
                     val jks = basic["ssl_jks"] ?: "lts.jks"
                     val storePassword = basic["ssl_key_password"] ?: "ltspass"
@@ -105,6 +121,8 @@ class Application : AbstractApplication() {
                 null
             },
             httpsRequestInterceptor = interceptor,
+            httpsSniPassthrough = httpsSniPassthrough,
+            vhostRawMode = basic["vhost_raw_mode"]?.toUpperCase() == "TRUE",
             // plugin
             staticFilePlugin = staticFilePlugin,
             // dashboard
@@ -135,6 +153,16 @@ class Application : AbstractApplication() {
         }
     }
 
+    private fun newTransport(basic: Profile.Section): Transport {
+        return Transport(
+            native = basic["transport_native"]?.toUpperCase() != "FALSE",
+            reusePort = basic["transport_reuse_port"]?.toUpperCase() == "TRUE",
+            tcpNoDelay = basic["transport_tcp_nodelay"]?.toUpperCase() != "FALSE",
+            tcpQuickAck = basic["transport_tcp_quickack"]?.toUpperCase() == "TRUE",
+            edgeTriggered = basic["transport_edge_triggered"]?.toUpperCase() != "FALSE"
+        )
+    }
+
     private fun String?.asInt(): Int? {
         return try {
             this?.toInt()
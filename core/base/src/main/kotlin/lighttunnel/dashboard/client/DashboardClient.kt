@@ -3,20 +3,21 @@ package lighttunnel.dashboard.client
 import io.netty.bootstrap.Bootstrap
 import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelOption
-import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.EventLoopGroup
 import io.netty.channel.socket.SocketChannel
-import io.netty.channel.socket.nio.NioSocketChannel
 import io.netty.handler.codec.http.*
 import io.netty.handler.ssl.SslContext
 import io.netty.handler.ssl.SslHandler
 import io.netty.util.AttributeKey
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.transport.Transport
 import java.net.URI
 
 class DashboardClient(
-    workerGroup: NioEventLoopGroup,
+    workerGroup: EventLoopGroup,
     private val sslContext: SslContext? = null,
-    private val maxContentLength: Int = 512 * 1024
+    private val maxContentLength: Int = 512 * 1024,
+    transport: Transport = Transport.DEFAULT
 ) {
     companion object {
         internal val REQUEST_CALLBACK: AttributeKey<RequestCallback> =
@@ -27,9 +28,8 @@ class DashboardClient(
     private val bootstrap = Bootstrap()
 
     init {
-        bootstrap
-            .group(workerGroup)
-            .channel(NioSocketChannel::class.java)
+        bootstrap.group(workerGroup)
+        transport.configure(bootstrap)
             .option(ChannelOption.AUTO_READ, true)
             .option(ChannelOption.SO_KEEPALIVE, true)
             .handler(object : ChannelInitializer<SocketChannel>() {
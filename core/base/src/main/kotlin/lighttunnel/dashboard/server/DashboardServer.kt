@@ -3,22 +3,23 @@ package lighttunnel.dashboard.server
 import io.netty.bootstrap.ServerBootstrap
 import io.netty.channel.ChannelFuture
 import io.netty.channel.ChannelInitializer
-import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.EventLoopGroup
 import io.netty.channel.socket.SocketChannel
-import io.netty.channel.socket.nio.NioServerSocketChannel
 import io.netty.handler.codec.http.*
 import io.netty.handler.ssl.SslContext
 import io.netty.handler.ssl.SslHandler
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.transport.Transport
 
 
 class DashboardServer(
-    bossGroup: NioEventLoopGroup,
-    workerGroup: NioEventLoopGroup,
+    bossGroup: EventLoopGroup,
+    workerGroup: EventLoopGroup,
     private val bindAddr: String?,
     private val bindPort: Int,
     private val sslContext: SslContext? = null,
-    private val maxContentLength: Int = 512 * 1024
+    private val maxContentLength: Int = 512 * 1024,
+    transport: Transport = Transport.DEFAULT
 ) {
     private val logger by loggerDelegate()
     private val serverBootstrap = ServerBootstrap()
@@ -28,7 +29,7 @@ class DashboardServer(
 
     init {
         serverBootstrap.group(bossGroup, workerGroup)
-            .channel(NioServerSocketChannel::class.java)
+        transport.configure(serverBootstrap)
             .childHandler(object : ChannelInitializer<SocketChannel>() {
                 override fun initChannel(ch: SocketChannel?) {
                     ch ?: return
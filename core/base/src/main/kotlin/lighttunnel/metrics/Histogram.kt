@@ -0,0 +1,64 @@
+package lighttunnel.metrics
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.DoubleAdder
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 固定桶直方图，按 Prometheus 累积桶的方式输出
+ *
+ * 每个桶一个 LongAdder，记录时只做一次二分查找和一次自增，多线程并发记录无锁
+ *
+ * @param bounds 各桶的上限（秒），必须递增
+ */
+class Histogram(private val bounds: DoubleArray = DEFAULT_LATENCY_BOUNDS) {
+
+    companion object {
+        /** 0.5ms ~ 10s */
+        val DEFAULT_LATENCY_BOUNDS = doubleArrayOf(
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0
+        )
+
+        private val NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1).toDouble()
+    }
+
+    /** 最后一个为 +Inf */
+    private val buckets = Array(bounds.size + 1) { LongAdder() }
+    private val sum = DoubleAdder()
+
+    init {
+        require(bounds.isNotEmpty()) { "bounds is empty" }
+        for (i in 1 until bounds.size) {
+            require(bounds[i] > bounds[i - 1]) { "bounds must be increasing" }
+        }
+    }
+
+    fun observe(seconds: Double) {
+        var index = bounds.binarySearch(seconds)
+        if (index < 0) {
+            index = -index - 1
+        }
+        buckets[index].increment()
+        sum.add(seconds)
+    }
+
+    fun observeNanos(nanos: Long) = observe(nanos / NANOS_PER_SECOND)
+
+    val count: Long get() = buckets.fold(0L) { acc, it -> acc + it.sum() }
+
+    /** 累积计数，与 bounds 对应，最后一个为 +Inf */
+    internal fun cumulativeCounts(): LongArray {
+        val counts = LongArray(buckets.size)
+        var total = 0L
+        for (i in buckets.indices) {
+            total += buckets[i].sum()
+            counts[i] = total
+        }
+        return counts
+    }
+
+    internal fun bounds(): DoubleArray = bounds
+
+    internal fun sum(): Double = sum.sum()
+
+}
@@ -0,0 +1,32 @@
+package lighttunnel.metrics
+
+import io.netty.channel.ChannelDuplexHandler
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelPromise
+import lighttunnel.proto.ProtoMessage
+import lighttunnel.proto.ProtoMessageType
+
+/**
+ * 隧道连接的透传流量统计，加在压缩处理器与业务处理器之间，统计的是压缩前的字节数
+ */
+class MetricsHandler(private val metrics: TunnelMetrics) : ChannelDuplexHandler() {
+
+    @Throws(Exception::class)
+    override fun channelRead(ctx: ChannelHandlerContext, msg: Any?) {
+        if (msg is ProtoMessage && msg.type == ProtoMessageType.TRANSFER) {
+            metrics.framesIn.increment()
+            metrics.bytesIn.add(msg.data.readableBytes().toLong())
+        }
+        ctx.fireChannelRead(msg)
+    }
+
+    @Throws(Exception::class)
+    override fun write(ctx: ChannelHandlerContext, msg: Any?, promise: ChannelPromise?) {
+        if (msg is ProtoMessage && msg.type == ProtoMessageType.TRANSFER) {
+            metrics.framesOut.increment()
+            metrics.bytesOut.add(msg.data.readableBytes().toLong())
+        }
+        ctx.write(msg, promise)
+    }
+
+}
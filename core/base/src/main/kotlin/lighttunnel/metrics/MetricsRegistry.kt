@@ -0,0 +1,129 @@
+package lighttunnel.metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 指标注册表，输出 Prometheus 文本格式（0.0.4）
+ *
+ * 隧道指标以隧道对象为键注册，隧道关闭时注销，避免标签无限增长
+ */
+class MetricsRegistry(private val prefix: String = "lighttunnel") {
+
+    companion object {
+        const val CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8"
+    }
+
+    private val tunnels = ConcurrentHashMap<Any, TunnelMetrics>()
+    private val counters = ConcurrentHashMap<String, Pair<String, LongAdder>>()
+
+    /** 同一个键已注册时返回已有的指标 */
+    fun register(key: Any, metrics: TunnelMetrics): TunnelMetrics {
+        return tunnels.putIfAbsent(key, metrics) ?: metrics
+    }
+
+    fun unregister(key: Any): TunnelMetrics? = tunnels.remove(key)
+
+    operator fun get(key: Any): TunnelMetrics? = tunnels[key]
+
+    /** 全局计数器，同名只创建一次 */
+    fun counter(name: String, help: String): LongAdder {
+        return counters.computeIfAbsent(name) { help to LongAdder() }.second
+    }
+
+    fun scrape(): String {
+        val sb = StringBuilder(4096)
+        val snapshot = tunnels.values.toList()
+        sb.family("tunnels", "gauge", "Number of active tunnels")
+        sb.sample("tunnels", emptyMap(), snapshot.size.toDouble())
+        counters.toSortedMap().forEach { (name, value) ->
+            sb.family(name, "counter", value.first)
+            sb.sample(name, emptyMap(), value.second.sum().toDouble())
+        }
+        if (snapshot.isEmpty()) {
+            return sb.toString()
+        }
+        sb.counters(snapshot, "tunnel_bytes_received_total", "Payload bytes received over the tunnel") { it.bytesIn }
+        sb.counters(snapshot, "tunnel_bytes_sent_total", "Payload bytes sent over the tunnel") { it.bytesOut }
+        sb.counters(snapshot, "tunnel_frames_received_total", "TRANSFER frames received") { it.framesIn }
+        sb.counters(snapshot, "tunnel_frames_sent_total", "TRANSFER frames sent") { it.framesOut }
+        sb.counters(snapshot, "tunnel_sessions_opened_total", "Sessions opened") { it.sessionsOpened }
+        sb.counters(snapshot, "tunnel_sessions_closed_total", "Sessions closed") { it.sessionsClosed }
+        sb.counters(snapshot, "tunnel_connect_failures_total", "Tunnel or local connect failures") { it.connectFailures }
+        sb.family("tunnel_queued_bytes", "gauge", "Bytes waiting to be written to the tunnel connection")
+        snapshot.forEach { metrics ->
+            metrics.queuedBytes?.also { sb.sample("tunnel_queued_bytes", metrics.labels, it().toDouble()) }
+        }
+        sb.histograms(snapshot, "tunnel_local_connect_seconds", "Local connect latency") { it.localConnectTime }
+        sb.histograms(snapshot, "tunnel_rtt_seconds", "Tunnel round-trip time samples") { it.rttHistogram }
+        sb.family("tunnel_srtt_seconds", "gauge", "Smoothed tunnel round-trip time")
+        snapshot.forEach { metrics ->
+            metrics.rtt?.takeIf { it.hasSample }?.also { sb.sample("tunnel_srtt_seconds", metrics.labels, it.srttNanos / 1e9) }
+        }
+        sb.family("tunnel_rtt_jitter_seconds", "gauge", "Tunnel round-trip time variation")
+        snapshot.forEach { metrics ->
+            metrics.rtt?.takeIf { it.hasSample }?.also { sb.sample("tunnel_rtt_jitter_seconds", metrics.labels, it.rttvarNanos / 1e9) }
+        }
+        return sb.toString()
+    }
+
+    private fun StringBuilder.counters(
+        snapshot: List<TunnelMetrics>, name: String, help: String, counter: (TunnelMetrics) -> LongAdder
+    ) {
+        family(name, "counter", help)
+        snapshot.forEach { sample(name, it.labels, counter(it).sum().toDouble()) }
+    }
+
+    private fun StringBuilder.histograms(
+        snapshot: List<TunnelMetrics>, name: String, help: String, histogram: (TunnelMetrics) -> Histogram
+    ) {
+        family(name, "histogram", help)
+        snapshot.forEach { metrics ->
+            val h = histogram(metrics)
+            val counts = h.cumulativeCounts()
+            val bounds = h.bounds()
+            for (i in counts.indices) {
+                val le = if (i < bounds.size) formatValue(bounds[i]) else "+Inf"
+                sample("${name}_bucket", metrics.labels + ("le" to le), counts[i].toDouble())
+            }
+            sample("${name}_sum", metrics.labels, h.sum())
+            sample("${name}_count", metrics.labels, counts.last().toDouble())
+        }
+    }
+
+    private fun StringBuilder.family(name: String, type: String, help: String) {
+        append("# HELP ").append(prefix).append('_').append(name).append(' ').append(help).append('\n')
+        append("# TYPE ").append(prefix).append('_').append(name).append(' ').append(type).append('\n')
+    }
+
+    private fun StringBuilder.sample(name: String, labels: Map<String, String>, value: Double) {
+        append(prefix).append('_').append(name)
+        if (labels.isNotEmpty()) {
+            append('{')
+            var first = true
+            labels.forEach { (k, v) ->
+                if (!first) append(',')
+                first = false
+                append(k).append("=\"").append(escapeLabel(v)).append('"')
+            }
+            append('}')
+        }
+        append(' ').append(formatValue(value)).append('\n')
+    }
+
+    private fun escapeLabel(value: String): String {
+        if (value.none { it == '\\' || it == '"' || it == '\n' }) {
+            return value
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+    }
+
+    private fun formatValue(value: Double): String {
+        return if (value == Math.rint(value) && !value.isInfinite() && Math.abs(value) < 1e15) {
+            value.toLong().toString()
+        } else {
+            value.toString()
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package lighttunnel.metrics
+
+import io.netty.channel.Channel
+import lighttunnel.proto.RttEstimator
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * 单个隧道的指标
+ *
+ * 计数器使用 LongAdder，热点路径上的自增只落在当前线程对应的分段上
+ *
+ * @param labels Prometheus 标签
+ */
+class TunnelMetrics(val labels: Map<String, String>) {
+    /** 从对端收到的透传字节数（解压后） */
+    val bytesIn = LongAdder()
+    /** 发往对端的透传字节数（压缩前） */
+    val bytesOut = LongAdder()
+    val framesIn = LongAdder()
+    val framesOut = LongAdder()
+    val sessionsOpened = LongAdder()
+    val sessionsClosed = LongAdder()
+    /** 隧道或本地连接建立失败次数 */
+    val connectFailures = LongAdder()
+    /** 本地连接建立耗时，仅客户端 */
+    val localConnectTime = Histogram()
+    /** 隧道往返时延采样 */
+    val rttHistogram = Histogram()
+
+    /** 隧道往返时延估计，抓取时输出平滑值与抖动 */
+    @Volatile
+    var rtt: RttEstimator? = null
+
+    /** 隧道连接上等待写出的字节数，抓取时计算 */
+    @Volatile
+    var queuedBytes: (() -> Long)? = null
+
+    /**
+     * 抓取线程不能访问 Channel 的 outboundBuffer，通过水位线与线程安全的
+     * bytesBeforeWritable、bytesBeforeUnwritable 换算等待写出的字节数
+     */
+    fun queuedBytesOf(channel: Channel) {
+        queuedBytes = {
+            val config = channel.config()
+            val bytesBeforeWritable = channel.bytesBeforeWritable()
+            if (bytesBeforeWritable > 0) {
+                config.writeBufferLowWaterMark + bytesBeforeWritable
+            } else {
+                (config.writeBufferHighWaterMark - channel.bytesBeforeUnwritable()).coerceAtLeast(0L)
+            }
+        }
+    }
+
+}
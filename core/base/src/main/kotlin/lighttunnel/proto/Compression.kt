@@ -0,0 +1,137 @@
+package lighttunnel.proto
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.handler.codec.compression.Snappy
+import net.jpountz.lz4.LZ4Factory
+
+/**
+ * 透传数据压缩算法
+ *
+ * 每帧独立压缩，不保留跨帧的字典状态，帧可以在同一隧道的多个会话间任意交错
+ *
+ * @param optionName 协商时使用的名称
+ */
+enum class Compression(val optionName: String) {
+
+    /** 速度优先 */
+    LZ4("lz4") {
+        override fun compress(alloc: ByteBufAllocator, src: ByteBuf): ByteBuf {
+            val length = src.readableBytes()
+            val maxLength = lz4Compressor.maxCompressedLength(length)
+            val out = alloc.buffer(maxLength)
+            try {
+                val written = lz4Compressor.compress(
+                    src.nioBuffer(src.readerIndex(), length), 0, length,
+                    out.nioBuffer(0, maxLength), 0, maxLength
+                )
+                src.skipBytes(length)
+                out.writerIndex(written)
+                return out
+            } catch (e: Exception) {
+                out.release()
+                throw e
+            }
+        }
+
+        override fun doDecompress(alloc: ByteBufAllocator, src: ByteBuf, length: Int): ByteBuf {
+            val out = alloc.buffer(length, length)
+            try {
+                // safe 解压器按压缩数据的实际长度解压，不信任对端声明的原始长度
+                val srcLength = src.readableBytes()
+                val written = lz4Decompressor.decompress(
+                    src.nioBuffer(src.readerIndex(), srcLength), 0, srcLength,
+                    out.nioBuffer(0, length), 0, length
+                )
+                if (written != length) {
+                    throw ProtoException("lz4 length mismatch: $written != $length")
+                }
+                src.skipBytes(srcLength)
+                out.writerIndex(length)
+                return out
+            } catch (e: Exception) {
+                out.release()
+                throw e as? ProtoException ?: ProtoException("lz4 decompress failure: ${e.message}")
+            }
+        }
+    },
+
+    /** Netty 内置实现，无额外依赖 */
+    SNAPPY("snappy") {
+        override fun compress(alloc: ByteBufAllocator, src: ByteBuf): ByteBuf {
+            val length = src.readableBytes()
+            val out = alloc.buffer(32 + length + length / 6)
+            try {
+                Snappy().encode(src, out, length)
+                return out
+            } catch (e: Exception) {
+                out.release()
+                throw e
+            }
+        }
+
+        override fun doDecompress(alloc: ByteBufAllocator, src: ByteBuf, length: Int): ByteBuf {
+            // 限制最大容量，解压结果超过声明的长度时直接失败，不会继续扩容
+            val out = alloc.buffer(length, length)
+            try {
+                Snappy().decode(src, out)
+                if (out.readableBytes() != length) {
+                    throw ProtoException("snappy length mismatch: ${out.readableBytes()} != $length")
+                }
+                return out
+            } catch (e: Exception) {
+                out.release()
+                throw e as? ProtoException ?: ProtoException("snappy decompress failure: ${e.message}")
+            }
+        }
+    },
+    ;
+
+    /** 压缩 src 的可读部分并移动其读指针，返回的 ByteBuf 由调用者释放 */
+    abstract fun compress(alloc: ByteBufAllocator, src: ByteBuf): ByteBuf
+
+    /**
+     * 解压 src 的可读部分，length 为原始长度，返回的 ByteBuf 由调用者释放
+     *
+     * length 来自对端，超过 [MAX_DECOMPRESSED_LENGTH] 或与实际解压的长度不一致时抛出异常
+     */
+    @Throws(ProtoException::class)
+    fun decompress(alloc: ByteBufAllocator, src: ByteBuf, length: Int): ByteBuf {
+        if (length < 0 || length > MAX_DECOMPRESSED_LENGTH) {
+            throw ProtoException("invalid uncompressed length: $length")
+        }
+        return doDecompress(alloc, src, length)
+    }
+
+    protected abstract fun doDecompress(alloc: ByteBufAllocator, src: ByteBuf, length: Int): ByteBuf
+
+    companion object {
+        /** 单帧解压后的最大长度，与未压缩帧的上限一致 */
+        const val MAX_DECOMPRESSED_LENGTH = ProtoConsts.PROTO_MESSAGE_MAX_FRAME_LENGTH
+
+        private val lz4Compressor by lazy { LZ4Factory.fastestInstance().fastCompressor() }
+        private val lz4Decompressor by lazy { LZ4Factory.fastestInstance().safeDecompressor() }
+
+        @JvmStatic
+        fun of(name: String?): Compression? {
+            name ?: return null
+            val value = name.trim()
+            return values().firstOrNull { it.optionName.equals(value, ignoreCase = true) }
+        }
+
+        /** 解析逗号分隔的算法列表，忽略不支持的名称 */
+        @JvmStatic
+        fun parse(names: String?): List<Compression> {
+            names ?: return emptyList()
+            return names.split(',').mapNotNull { of(it) }.distinct()
+        }
+
+        /** 按 preferred 的顺序选出 offered 中第一个可用的算法 */
+        @JvmStatic
+        fun negotiate(preferred: List<Compression>, offered: String?): Compression? {
+            val candidates = parse(offered)
+            return preferred.firstOrNull { it in candidates }
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package lighttunnel.proto
+
+import io.netty.buffer.ByteBuf
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.codec.MessageToMessageCodec
+
+/**
+ * 透传数据压缩处理器，隧道请求协商出压缩算法后加在 ProtoMessage 编解码器与业务处理器之间
+ *
+ * 只压缩长度不小于 threshold 的 TRANSFER 消息，压缩后输出 TRANSFER_COMPRESSED；
+ * 已压缩/加密的数据（按文件头识别）直接透传，压缩率不理想时暂停压缩后续 backoffFrames 帧
+ *
+ * @param compression 压缩算法
+ * @param threshold 最小压缩长度
+ * @param backoffFrames 压缩无收益时跳过的帧数
+ */
+class CompressionHandler(
+    val compression: Compression,
+    private val threshold: Int = 512,
+    private val backoffFrames: Int = 16
+) : MessageToMessageCodec<ProtoMessage, ProtoMessage>() {
+
+    companion object {
+        /** 压缩后至少要节省的比例（1/8） */
+        private const val MIN_SAVING_SHIFT = 3
+
+        /** 常见压缩、加密数据的文件头 */
+        private val MAGICS = arrayOf(
+            byteArrayOf(0x1f, 0x8b.toByte()),                            // gzip
+            byteArrayOf(0x28, 0xb5.toByte(), 0x2f, 0xfd.toByte()),       // zstd
+            byteArrayOf(0x50, 0x4b, 0x03, 0x04),                         // zip
+            byteArrayOf(0x89.toByte(), 0x50, 0x4e, 0x47),                // png
+            byteArrayOf(0xff.toByte(), 0xd8.toByte(), 0xff.toByte()),    // jpeg
+            byteArrayOf(0x47, 0x49, 0x46, 0x38),                         // gif
+            byteArrayOf(0x52, 0x49, 0x46, 0x46),                         // riff (webp/avi/wav)
+            byteArrayOf(0xfd.toByte(), 0x37, 0x7a, 0x58, 0x5a),          // xz
+            byteArrayOf(0x42, 0x5a, 0x68),                               // bzip2
+            byteArrayOf(0x37, 0x7a, 0xbc.toByte(), 0xaf.toByte()),       // 7z
+            byteArrayOf(0x04, 0x22, 0x4d, 0x18),                         // lz4 frame
+            byteArrayOf(0xff.toByte(), 0x06, 0x00, 0x00, 0x73, 0x4e)     // snappy frame
+        )
+
+        /** TLS 记录（handshake/application data 等），内容已加密 */
+        private fun isTlsRecord(buf: ByteBuf): Boolean {
+            if (buf.readableBytes() < 3) {
+                return false
+            }
+            val index = buf.readerIndex()
+            val contentType = buf.getByte(index).toInt()
+            return contentType in 0x14..0x17 && buf.getByte(index + 1).toInt() == 0x03
+        }
+
+        internal fun isCompressed(buf: ByteBuf): Boolean {
+            if (isTlsRecord(buf)) {
+                return true
+            }
+            val index = buf.readerIndex()
+            return MAGICS.any { magic ->
+                magic.size <= buf.readableBytes() && magic.indices.all { buf.getByte(index + it) == magic[it] }
+            }
+        }
+    }
+
+    private var skipFrames = 0
+
+    init {
+        require(threshold > 0) { "threshold <= 0" }
+        require(backoffFrames >= 0) { "backoffFrames < 0" }
+    }
+
+    @Throws(Exception::class)
+    override fun encode(ctx: ChannelHandlerContext, msg: ProtoMessage, out: MutableList<Any>) {
+        val compressed = if (msg.type == ProtoMessageType.TRANSFER) tryCompress(ctx, msg) else null
+        out.add(compressed ?: msg.retain())
+    }
+
+    @Throws(Exception::class)
+    override fun decode(ctx: ChannelHandlerContext, msg: ProtoMessage, out: MutableList<Any>) {
+        if (msg.type != ProtoMessageType.TRANSFER_COMPRESSED) {
+            out.add(msg.retain())
+            return
+        }
+        val data = msg.data
+        if (data.readableBytes() < 4) {
+            throw ProtoException("invalid compressed message: ${data.readableBytes()} bytes")
+        }
+        val length = data.readInt()
+        val decompressed = compression.decompress(ctx.alloc(), data, length)
+        out.add(ProtoMessage(ProtoMessageType.TRANSFER, msg.tunnelId, msg.sessionId, decompressed))
+    }
+
+    private fun tryCompress(ctx: ChannelHandlerContext, msg: ProtoMessage): ProtoMessage? {
+        val data = msg.data
+        val length = data.readableBytes()
+        if (length < threshold) {
+            return null
+        }
+        if (skipFrames > 0) {
+            skipFrames--
+            return null
+        }
+        if (isCompressed(data)) {
+            return null
+        }
+        val compressed = compression.compress(ctx.alloc(), data.duplicate())
+        if (compressed.readableBytes() + 4 > length - (length shr MIN_SAVING_SHIFT)) {
+            compressed.release()
+            skipFrames = backoffFrames
+            return null
+        }
+        val buf = ctx.alloc().compositeBuffer(2)
+            .addComponent(true, ctx.alloc().buffer(4).writeInt(length))
+            .addComponent(true, compressed)
+        return ProtoMessage(ProtoMessageType.TRANSFER_COMPRESSED, msg.tunnelId, msg.sessionId, buf)
+    }
+
+}
@@ -0,0 +1,76 @@
+package lighttunnel.proto
+
+import io.netty.buffer.ByteBuf
+import io.netty.channel.Channel
+import lighttunnel.util.ReadPause
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 会话流控窗口
+ *
+ * 发送方每发送一个 TRANSFER 扣除相应额度，额度耗尽时通过 [ReadPause] 暂停数据源的读取；
+ * 接收方在数据写出后累计字节数，达到窗口的一半时通过 WINDOW_UPDATE 将额度归还给发送方
+ */
+class FlowWindow(val size: Int) {
+
+    companion object {
+        /** 默认窗口大小 */
+        const val DEFAULT_SIZE = 1024 * 1024
+        /** 最大窗口大小 */
+        const val MAX_SIZE = 16 * 1024 * 1024
+
+        /**
+         * 读取 WINDOW_UPDATE 归还的字节数，消息格式错误时抛出异常
+         */
+        @JvmStatic
+        @Throws(ProtoException::class)
+        fun readUpdate(data: ByteBuf): Int {
+            if (data.readableBytes() != Int.SIZE_BYTES) {
+                throw ProtoException("invalid window update: ${data.readableBytes()} bytes")
+            }
+            val bytes = data.readInt()
+            if (bytes <= 0) {
+                throw ProtoException("invalid window update: $bytes")
+            }
+            return bytes
+        }
+    }
+
+    private val credits = AtomicLong(size.toLong())
+    private val unacked = AtomicLong(0)
+
+    /**
+     * 数据源读取的数据已发送到隧道，必须在数据源 Channel 的 EventLoop 中调用
+     */
+    fun onSent(source: Channel, bytes: Int) {
+        if (credits.addAndGet(-bytes.toLong()) <= 0) {
+            ReadPause.pause(source, ReadPause.Reason.FLOW_WINDOW)
+        }
+    }
+
+    /**
+     * 收到对端的 WINDOW_UPDATE，归还额度并在数据源 Channel 的 EventLoop 中恢复读取
+     */
+    fun onUpdate(source: Channel, bytes: Int) {
+        credits.addAndGet(bytes.toLong())
+        source.eventLoop().execute {
+            if (credits.get() > 0) {
+                ReadPause.resume(source, ReadPause.Reason.FLOW_WINDOW)
+            }
+        }
+    }
+
+    /**
+     * 隧道传入的数据已写出到目标 Channel
+     *
+     * @return 需要通过 WINDOW_UPDATE 归还给对端的字节数，0 表示暂不需要
+     */
+    fun onWritten(bytes: Int): Int {
+        val value = unacked.addAndGet(bytes.toLong())
+        if (value >= size / 2 && unacked.compareAndSet(value, 0)) {
+            return value.toInt()
+        }
+        return 0
+    }
+
+}
@@ -0,0 +1,95 @@
+package lighttunnel.proto
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufHolder
+import io.netty.channel.ChannelDuplexHandler
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelPromise
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+/**
+ * 合并 flush 处理器
+ *
+ * 隧道连接上多个会话的 writeAndFlush 只保留 write，flush 延迟到当前 EventLoop 本轮任务结束
+ * （或 maxDelayMicros 之后）统一执行，待写出字节数达到 maxBytes 时立即 flush
+ *
+ * @param maxDelayMicros flush 最大延迟，0 表示延迟到 EventLoop 的下一个任务
+ * @param maxBytes 待写出字节数达到该值时立即 flush
+ */
+class FlushCoalescingHandler(
+    private val maxDelayMicros: Long = 0L,
+    private val maxBytes: Int = 64 * 1024
+) : ChannelDuplexHandler() {
+
+    private var pendingBytes = 0L
+    private var flushPending = false
+    private var flushFuture: Future<*>? = null
+
+    @Throws(Exception::class)
+    override fun write(ctx: ChannelHandlerContext, msg: Any?, promise: ChannelPromise?) {
+        when (msg) {
+            is ByteBuf -> pendingBytes += msg.readableBytes()
+            is ByteBufHolder -> pendingBytes += msg.content().readableBytes()
+        }
+        ctx.write(msg, promise)
+    }
+
+    @Throws(Exception::class)
+    override fun flush(ctx: ChannelHandlerContext) {
+        if (pendingBytes >= maxBytes || !ctx.channel().isWritable) {
+            flushNow(ctx)
+            return
+        }
+        flushPending = true
+        if (flushFuture == null) {
+            val task = Runnable { if (flushPending) flushNow(ctx) }
+            flushFuture = if (maxDelayMicros > 0) {
+                ctx.executor().schedule(task, maxDelayMicros, TimeUnit.MICROSECONDS)
+            } else {
+                ctx.executor().submit(task)
+            }
+        }
+    }
+
+    @Throws(Exception::class)
+    override fun channelWritabilityChanged(ctx: ChannelHandlerContext) {
+        // 写缓冲区满了，尽快把已有的数据写出去
+        if (!ctx.channel().isWritable && flushPending) {
+            flushNow(ctx)
+        }
+        ctx.fireChannelWritabilityChanged()
+    }
+
+    @Throws(Exception::class)
+    override fun disconnect(ctx: ChannelHandlerContext, promise: ChannelPromise?) {
+        flushIfPending(ctx)
+        ctx.disconnect(promise)
+    }
+
+    @Throws(Exception::class)
+    override fun close(ctx: ChannelHandlerContext, promise: ChannelPromise?) {
+        flushIfPending(ctx)
+        ctx.close(promise)
+    }
+
+    @Throws(Exception::class)
+    override fun handlerRemoved(ctx: ChannelHandlerContext) {
+        flushIfPending(ctx)
+    }
+
+    private fun flushIfPending(ctx: ChannelHandlerContext) {
+        if (flushPending) {
+            flushNow(ctx)
+        }
+    }
+
+    private fun flushNow(ctx: ChannelHandlerContext) {
+        flushFuture?.cancel(false)
+        flushFuture = null
+        flushPending = false
+        pendingBytes = 0
+        ctx.flush()
+    }
+
+}
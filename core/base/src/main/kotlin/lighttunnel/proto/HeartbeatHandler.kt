@@ -1,37 +1,157 @@
 package lighttunnel.proto
 
+import io.netty.buffer.Unpooled
+import io.netty.channel.Channel
+import io.netty.channel.ChannelDuplexHandler
 import io.netty.channel.ChannelHandlerContext
-import io.netty.handler.timeout.IdleStateEvent
-import io.netty.handler.timeout.IdleStateHandler
+import io.netty.util.concurrent.ScheduledFuture
 import lighttunnel.logger.loggerDelegate
 import java.util.concurrent.TimeUnit
 
 /**
- * 心跳处理器
+ * 心跳处理器，加在 ProtoMessage 编解码器之后
+ *
+ * 每 intervalMillis 发送一次携带发送时刻（System.nanoTime）的 PING，对端原样放在 PONG 中返回，
+ * 据此估计往返时延（[RttEstimator]）；PING/PONG 在这里处理，不再向后传递
+ *
+ * 超过 timeoutMillis 没有收到任何消息时关闭连接；有往返时延采样后，
+ * 超时缩短为 intervalMillis + 4 * rto（rto 不小于 minAckTimeoutMillis），仍不超过 timeoutMillis，
+ * 以便尽早发现半开连接。旧版本对端回复的 PONG 不带时间戳，只用于保活
+ *
+ * @param intervalMillis PING 间隔
+ * @param timeoutMillis 对端无响应的最长时间
+ * @param minAckTimeoutMillis 等待 PONG 的最短时间
  */
 class HeartbeatHandler(
-    observeOutput: Boolean = false,
-    readerIdleTime: Long = 60 * 5L,
-    writerIdleTime: Long = 60 * 3L,
-    allIdleTime: Long = 0L,
-    unit: TimeUnit = TimeUnit.SECONDS
-) : IdleStateHandler(observeOutput, readerIdleTime, writerIdleTime, allIdleTime, unit) {
+    private val intervalMillis: Long = 30_000L,
+    private val timeoutMillis: Long = 90_000L,
+    private val minAckTimeoutMillis: Long = 2_000L
+) : ChannelDuplexHandler() {
+
+    companion object {
+        /** 取得隧道连接的往返时延估计，没有心跳处理器时返回 null */
+        @JvmStatic
+        fun rttOf(channel: Channel): RttEstimator? = channel.pipeline().get(HeartbeatHandler::class.java)?.rtt
+
+        /** 检查心跳参数，服务端、客户端创建时调用，配置错误时尽早失败，不必等到建立连接 */
+        @JvmStatic
+        fun checkArgs(intervalMillis: Long, timeoutMillis: Long) {
+            require(intervalMillis > 0) { "intervalMillis <= 0" }
+            require(timeoutMillis > intervalMillis) { "timeoutMillis <= intervalMillis" }
+        }
+    }
 
     private val logger by loggerDelegate()
 
+    val rtt = RttEstimator()
+
+    /** 每次得到往返时延采样时回调，在 EventLoop 中执行 */
+    @Volatile
+    var onRttSample: ((Long) -> Unit)? = null
+
+    private val intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis)
+    private val timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+    private val minAckTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(minAckTimeoutMillis)
+    private var lastReadNanos = 0L
+    private var lastPingNanos = 0L
+    private var tickFuture: ScheduledFuture<*>? = null
+
+    init {
+        checkArgs(intervalMillis, timeoutMillis)
+        require(minAckTimeoutMillis > 0) { "minAckTimeoutMillis <= 0" }
+    }
+
+    /** 当前生效的对端超时 */
+    val effectiveTimeoutNanos: Long
+        get() = if (rtt.hasSample) {
+            (intervalNanos + 4 * rtt.rtoNanos(minAckTimeoutNanos, timeoutNanos)).coerceAtMost(timeoutNanos)
+        } else {
+            timeoutNanos
+        }
+
     @Throws(Exception::class)
-    override fun channelIdle(ctx: ChannelHandlerContext, evt: IdleStateEvent) {
-        when (evt) {
-            IdleStateEvent.FIRST_WRITER_IDLE_STATE_EVENT -> {
-                logger.trace("channel write timeout {}", ctx)
-                ctx.channel().writeAndFlush(ProtoMessage(ProtoMessageType.PING))
-            }
-            IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT -> {
-                logger.trace("channel read timeout {}", ctx)
-                ctx.channel().close()
+    override fun handlerAdded(ctx: ChannelHandlerContext) {
+        if (ctx.channel().isActive && ctx.channel().isRegistered) {
+            start(ctx)
+        }
+    }
+
+    @Throws(Exception::class)
+    override fun channelActive(ctx: ChannelHandlerContext) {
+        start(ctx)
+        ctx.fireChannelActive()
+    }
+
+    @Throws(Exception::class)
+    override fun channelInactive(ctx: ChannelHandlerContext) {
+        stop()
+        ctx.fireChannelInactive()
+    }
+
+    @Throws(Exception::class)
+    override fun handlerRemoved(ctx: ChannelHandlerContext) {
+        stop()
+    }
+
+    @Throws(Exception::class)
+    override fun channelRead(ctx: ChannelHandlerContext, msg: Any?) {
+        lastReadNanos = System.nanoTime()
+        if (msg is ProtoMessage) {
+            when (msg.type) {
+                ProtoMessageType.PING -> {
+                    // 原样返回对端的时间戳
+                    ctx.writeAndFlush(ProtoMessage(ProtoMessageType.PONG, data = msg.data.retain()))
+                    msg.release()
+                    return
+                }
+                ProtoMessageType.PONG -> {
+                    if (msg.data.readableBytes() >= Long.SIZE_BYTES) {
+                        val sample = lastReadNanos - msg.data.getLong(msg.data.readerIndex())
+                        rtt.update(sample)
+                        onRttSample?.invoke(sample)
+                    }
+                    msg.release()
+                    return
+                }
+                else -> {
+                    // 其他消息向后传递
+                }
             }
         }
-        super.channelIdle(ctx, evt)
+        ctx.fireChannelRead(msg)
+    }
+
+    private fun start(ctx: ChannelHandlerContext) {
+        if (tickFuture != null) {
+            return
+        }
+        lastReadNanos = System.nanoTime()
+        lastPingNanos = lastReadNanos
+        val tickMillis = (intervalMillis / 4).coerceIn(100L, 1000L)
+        tickFuture = ctx.executor().scheduleAtFixedRate({ tick(ctx) }, tickMillis, tickMillis, TimeUnit.MILLISECONDS)
+    }
+
+    private fun stop() {
+        tickFuture?.cancel(false)
+        tickFuture = null
+    }
+
+    private fun tick(ctx: ChannelHandlerContext) {
+        if (!ctx.channel().isActive) {
+            stop()
+            return
+        }
+        val now = System.nanoTime()
+        if (now - lastReadNanos >= effectiveTimeoutNanos) {
+            logger.debug("channel read timeout {}, {}", ctx.channel(), rtt)
+            stop()
+            ctx.close()
+            return
+        }
+        if (now - lastPingNanos >= intervalNanos) {
+            lastPingNanos = now
+            ctx.writeAndFlush(ProtoMessage(ProtoMessageType.PING, data = Unpooled.copyLong(now)))
+        }
     }
 
 }
@@ -10,4 +10,10 @@ internal object ProtoConsts {
     const val PROTO_MESSAGE_COMMAND_LENGTH = 1
     /** head 长度域长度 */
     const val PROTO_MESSAGE_HEAD_LENGTH_FIELD_LENGTH = 4
+    /** 只包含 tunnelId、sessionId 的 head 长度 */
+    const val PROTO_MESSAGE_ID_HEAD_LENGTH = 16
+    /** v2 格式的标识位，与 v1 的长度域首字节（总是 0x00）区分 */
+    const val PROTO_MESSAGE_V2_FLAG = 0x80
+    /** 消息帧最大长度 */
+    const val PROTO_MESSAGE_MAX_FRAME_LENGTH = 4 * 1024 * 1024
 }
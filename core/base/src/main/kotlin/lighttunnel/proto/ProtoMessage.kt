@@ -1,19 +1,62 @@
 package lighttunnel.proto
 
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.DefaultByteBufHolder
+import io.netty.buffer.Unpooled
 import lighttunnel.util.LongUtil
 
-class ProtoMessage(
+/**
+ * 协议消息
+ *
+ * data 为引用计数的 ByteBuf，消息本身即为 ByteBufHolder，
+ * 经过 SimpleChannelInboundHandler 或编码器后会被自动释放，需要继续使用 data 时须先 retain
+ *
+ * tunnelId/sessionId 在构造时直接解出；以 id 构造的消息只在读取 head 时才生成字节数组
+ */
+class ProtoMessage internal constructor(
     val type: ProtoMessageType,
-    val head: ByteArray = ProtoConsts.emptyBytes,
-    val data: ByteArray = ProtoConsts.emptyBytes
-) {
+    private var headValue: ByteArray?,
+    val tunnelId: Long,
+    val sessionId: Long,
+    val data: ByteBuf
+) : DefaultByteBufHolder(data) {
 
-    val tunnelId by lazy { LongUtil.fromBytes(head, 0) }
-    val sessionId by lazy { LongUtil.fromBytes(head, 8) }
+    constructor(
+        type: ProtoMessageType,
+        head: ByteArray = ProtoConsts.emptyBytes,
+        data: ByteBuf = Unpooled.EMPTY_BUFFER
+    ) : this(type, head, head.longAt(0), head.longAt(8), data)
+
+    constructor(
+        type: ProtoMessageType,
+        head: ByteArray,
+        data: ByteArray
+    ) : this(type, head, Unpooled.wrappedBuffer(data))
+
+    constructor(
+        type: ProtoMessageType,
+        tunnelId: Long,
+        sessionId: Long,
+        data: ByteBuf = Unpooled.EMPTY_BUFFER
+    ) : this(type, null, tunnelId, sessionId, data)
+
+    val head: ByteArray
+        get() = headValue ?: LongUtil.toBytes(tunnelId, sessionId).also { headValue = it }
+
+    /** head 是否只包含 tunnelId、sessionId */
+    internal val isIdHead: Boolean
+        get() = type.idHead && headLength == ProtoConsts.PROTO_MESSAGE_ID_HEAD_LENGTH
+
+    internal val headLength: Int
+        get() = headValue?.size ?: ProtoConsts.PROTO_MESSAGE_ID_HEAD_LENGTH
 
     override fun toString(): String {
-        return "ProtoMessage(type=$type, head.length=${head.size}, data.length=${data.size})"
+        return "ProtoMessage(type=$type, head.length=$headLength, data.length=${data.readableBytes()})"
     }
 
+    private companion object {
+        private fun ByteArray.longAt(offset: Int) =
+            if (size >= offset + Long.SIZE_BYTES) LongUtil.fromBytes(this, offset) else 0L
+    }
 
-}
\ No newline at end of file
+}
@@ -2,46 +2,98 @@ package lighttunnel.proto
 
 import io.netty.buffer.ByteBuf
 import io.netty.channel.ChannelHandlerContext
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder
-
-class ProtoMessageDecoder : LengthFieldBasedFrameDecoder(
-    4 * 1024 * 1024,
-    0,
-    ProtoConsts.PROTO_MESSAGE_LENGTH_FIELD_LENGTH,
-    0,
-    0,
-    true
-) {
+import io.netty.handler.codec.ByteToMessageDecoder
+import io.netty.handler.codec.CorruptedFrameException
+import io.netty.handler.codec.TooLongFrameException
+
+/**
+ * 协议消息解码器
+ *
+ * 按首字节区分格式：v1 的长度域不超过 4MB，首字节总是 0x00；v2 的首字节带 0x80 标识，
+ * 因此同一连接上无须切换解码器，协商前后的消息都能正确解码，格式见 [ProtoMessageEncoder]
+ */
+class ProtoMessageDecoder : ByteToMessageDecoder() {
+
     companion object {
-        private const val MIN_BYTES =
+        private const val MIN_BYTES_V1 =
             ProtoConsts.PROTO_MESSAGE_LENGTH_FIELD_LENGTH +
                 ProtoConsts.PROTO_MESSAGE_COMMAND_LENGTH +
                 ProtoConsts.PROTO_MESSAGE_HEAD_LENGTH_FIELD_LENGTH
+        private const val MIN_TOTAL_LENGTH_V1 =
+            ProtoConsts.PROTO_MESSAGE_COMMAND_LENGTH +
+                ProtoConsts.PROTO_MESSAGE_HEAD_LENGTH_FIELD_LENGTH
     }
 
     @Throws(Exception::class)
-    override fun decode(ctx: ChannelHandlerContext?, `in`: ByteBuf?): Any? {
-        @Suppress("NAME_SHADOWING")
-        val `in` = super.decode(ctx, `in`)
-        if (`in` is ByteBuf) {
-            if (`in`.readableBytes() < MIN_BYTES) return null
-            val totalLength = `in`.readInt()
-            if (`in`.readableBytes() < totalLength) return null
-            // 开始解码数据
-            val type = ProtoMessageType.valueOf(`in`.readByte())
-            val headLength = `in`.readInt()
-            val head = ByteArray(headLength)
-            `in`.readBytes(head)
-            val dataLength = totalLength -
-                ProtoConsts.PROTO_MESSAGE_COMMAND_LENGTH -
-                ProtoConsts.PROTO_MESSAGE_HEAD_LENGTH_FIELD_LENGTH -
-                headLength
-            val data = ByteArray(dataLength)
-            `in`.readBytes(data)
-            return ProtoMessage(type, head, data)
+    override fun decode(ctx: ChannelHandlerContext, `in`: ByteBuf, out: MutableList<Any>) {
+        if (!`in`.isReadable) {
+            return
+        }
+        val first = `in`.getUnsignedByte(`in`.readerIndex()).toInt()
+        val msg = if (first and ProtoConsts.PROTO_MESSAGE_V2_FLAG != 0) decodeV2(`in`) else decodeV1(`in`)
+        if (msg != null) {
+            out.add(msg)
+        }
+    }
+
+    private fun decodeV1(`in`: ByteBuf): ProtoMessage? {
+        if (`in`.readableBytes() < MIN_BYTES_V1) return null
+        val totalLength = `in`.getInt(`in`.readerIndex())
+        if (totalLength < MIN_TOTAL_LENGTH_V1) {
+            throw CorruptedFrameException("invalid frame length: $totalLength")
+        }
+        if (totalLength > ProtoConsts.PROTO_MESSAGE_MAX_FRAME_LENGTH) {
+            throw TooLongFrameException("frame length exceeds ${ProtoConsts.PROTO_MESSAGE_MAX_FRAME_LENGTH}: $totalLength")
+        }
+        if (`in`.readableBytes() < ProtoConsts.PROTO_MESSAGE_LENGTH_FIELD_LENGTH + totalLength) return null
+        `in`.skipBytes(ProtoConsts.PROTO_MESSAGE_LENGTH_FIELD_LENGTH)
+        // 开始解码数据
+        val type = ProtoMessageType.valueOf(`in`.readByte())
+        val headLength = `in`.readInt()
+        val dataLength = totalLength - MIN_TOTAL_LENGTH_V1 - headLength
+        if (headLength < 0 || dataLength < 0) {
+            throw CorruptedFrameException("invalid head length: $headLength")
+        }
+        val head = ByteArray(headLength)
+        `in`.readBytes(head)
+        // 数据部分直接引用帧的切片，避免拷贝
+        return ProtoMessage(type, head, `in`.readRetainedSlice(dataLength))
+    }
+
+    private fun decodeV2(`in`: ByteBuf): ProtoMessage? {
+        val start = `in`.readerIndex()
+        val fieldLength = VarInts.peekLength(`in`, start + 1)
+        if (fieldLength == 0) return null
+        val lengthField = VarInts.peekValue(`in`, start + 1, fieldLength)
+        val bodyLength = lengthField ushr 1
+        if (bodyLength > ProtoConsts.PROTO_MESSAGE_MAX_FRAME_LENGTH) {
+            throw TooLongFrameException("frame length exceeds ${ProtoConsts.PROTO_MESSAGE_MAX_FRAME_LENGTH}: $bodyLength")
+        }
+        if (`in`.readableBytes() < 1 + fieldLength + bodyLength) return null
+        val type = ProtoMessageType.valueOf((`in`.readByte().toInt() and ProtoConsts.PROTO_MESSAGE_V2_FLAG.inv()).toByte())
+        `in`.skipBytes(fieldLength)
+        val end = `in`.readerIndex() + bodyLength.toInt()
+        return if (lengthField and 1L != 0L) {
+            val tunnelId = VarInts.read(`in`)
+            val sessionId = VarInts.read(`in`)
+            ProtoMessage(type, tunnelId, sessionId, `in`.readRetainedSlice(checkedDataLength(`in`, end)))
         } else {
-            return `in`
+            val headLength = VarInts.read(`in`)
+            if (headLength < 0 || `in`.readerIndex() + headLength > end) {
+                throw CorruptedFrameException("invalid head length: $headLength")
+            }
+            val head = ByteArray(headLength.toInt())
+            `in`.readBytes(head)
+            ProtoMessage(type, head, `in`.readRetainedSlice(checkedDataLength(`in`, end)))
+        }
+    }
+
+    private fun checkedDataLength(`in`: ByteBuf, end: Int): Int {
+        val dataLength = end - `in`.readerIndex()
+        if (dataLength < 0) {
+            throw CorruptedFrameException("invalid frame length")
         }
+        return dataLength
     }
 
-}
\ No newline at end of file
+}
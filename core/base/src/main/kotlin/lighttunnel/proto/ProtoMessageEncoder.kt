@@ -2,22 +2,85 @@ package lighttunnel.proto
 
 import io.netty.buffer.ByteBuf
 import io.netty.channel.ChannelHandlerContext
-import io.netty.handler.codec.MessageToByteEncoder
+import io.netty.handler.codec.MessageToMessageEncoder
 
-class ProtoMessageEncoder : MessageToByteEncoder<ProtoMessage>() {
+/**
+ * 协议消息编码器
+ *
+ * 仅为帧头及 head 分配缓冲区，data 以组合缓冲区的方式直接引用，避免拷贝
+ *
+ * v1：length(4) + type(1) + headLength(4) + head + data
+ * v2：(0x80 | type)(1) + varint(bodyLength << 1 | idHead) + head + data，
+ *     idHead 时 head 为 varint(tunnelId) + varint(sessionId)，否则为 varint(headLength) + head
+ *
+ * v2 须在隧道请求中协商，解码器同时支持两种格式
+ *
+ * @param version 编码格式版本
+ */
+class ProtoMessageEncoder(
+    val version: Int = VERSION_1
+) : MessageToMessageEncoder<ProtoMessage>() {
+
+    companion object {
+        const val VERSION_1 = 1
+        const val VERSION_2 = 2
+        /** 当前支持的最高版本 */
+        const val MAX_VERSION = VERSION_2
+    }
+
+    init {
+        require(version in VERSION_1..MAX_VERSION) { "unsupported version: $version" }
+    }
 
     @Throws(Exception::class)
-    override fun encode(ctx: ChannelHandlerContext?, msg: ProtoMessage?, out: ByteBuf?) {
-        msg ?: return
-        out ?: return
+    override fun encode(ctx: ChannelHandlerContext, msg: ProtoMessage, out: MutableList<Any>) {
+        val header = if (version == VERSION_2) encodeHeaderV2(ctx, msg) else encodeHeaderV1(ctx, msg)
+        if (!msg.data.isReadable) {
+            out.add(header)
+        } else {
+            // msg 在编码完成后会被释放，data 需要额外 retain 一次
+            out.add(ctx.alloc().compositeBuffer(2).addComponents(true, header, msg.data.retain()))
+        }
+    }
+
+    private fun encodeHeaderV1(ctx: ChannelHandlerContext, msg: ProtoMessage): ByteBuf {
+        val head = msg.head
+        val dataLength = msg.data.readableBytes()
         val totalLength = ProtoConsts.PROTO_MESSAGE_HEAD_LENGTH_FIELD_LENGTH +
             ProtoConsts.PROTO_MESSAGE_COMMAND_LENGTH +
-            msg.head.size +
-            msg.data.size
-        out.writeInt(totalLength)
-        out.writeByte(msg.type.code.toInt())
-        out.writeInt(msg.head.size)
-        out.writeBytes(msg.head)
-        out.writeBytes(msg.data)
+            head.size +
+            dataLength
+        val header = ctx.alloc().buffer(
+            ProtoConsts.PROTO_MESSAGE_LENGTH_FIELD_LENGTH + totalLength - dataLength
+        )
+        header.writeInt(totalLength)
+        header.writeByte(msg.type.code.toInt())
+        header.writeInt(head.size)
+        header.writeBytes(head)
+        return header
+    }
+
+    private fun encodeHeaderV2(ctx: ChannelHandlerContext, msg: ProtoMessage): ByteBuf {
+        val dataLength = msg.data.readableBytes()
+        val idHead = msg.isIdHead
+        val headSize = if (idHead) {
+            VarInts.sizeOf(msg.tunnelId) + VarInts.sizeOf(msg.sessionId)
+        } else {
+            VarInts.sizeOf(msg.headLength.toLong()) + msg.headLength
+        }
+        val lengthField = ((headSize + dataLength).toLong() shl 1) or (if (idHead) 1L else 0L)
+        val header = ctx.alloc().buffer(1 + VarInts.sizeOf(lengthField) + headSize)
+        header.writeByte(ProtoConsts.PROTO_MESSAGE_V2_FLAG or msg.type.code.toInt())
+        VarInts.write(header, lengthField)
+        if (idHead) {
+            VarInts.write(header, msg.tunnelId)
+            VarInts.write(header, msg.sessionId)
+        } else {
+            val head = msg.head
+            VarInts.write(header, head.size.toLong())
+            header.writeBytes(head)
+        }
+        return header
     }
-}
\ No newline at end of file
+
+}
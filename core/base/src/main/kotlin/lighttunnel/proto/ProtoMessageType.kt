@@ -1,28 +1,33 @@
 package lighttunnel.proto
 
-enum class ProtoMessageType(val code: Byte) {
+/**
+ * 消息类型
+ *
+ * @param idHead head 是否为 tunnelId、sessionId，v2 格式下按 varint 编码
+ */
+enum class ProtoMessageType(val code: Byte, internal val idHead: Boolean = true) {
     /**
      * 未知
      */
-    UNKNOWN(0x00.toByte()),
+    UNKNOWN(0x00.toByte(), false),
 
     /**
      * 心跳消息 PING
      * 消息流向：Client <-> Server
      */
-    PING(0x01.toByte()),
+    PING(0x01.toByte(), false),
 
     /**
      * 心跳消息 PONG
      * 消息流向：Client <-> Server
      */
-    PONG(0x02.toByte()),
+    PONG(0x02.toByte(), false),
 
     /**
      * 建立隧道请求
      * 消息流向：Client -> Server
      */
-    REQUEST(0x10.toByte()),
+    REQUEST(0x10.toByte(), false),
 
     /**
      * 建立隧道响应成功
@@ -34,7 +39,7 @@ enum class ProtoMessageType(val code: Byte) {
      * 建立隧道响应失败
      * 消息流向：Client <- Server
      */
-    RESPONSE_ERR(0x21.toByte()),
+    RESPONSE_ERR(0x21.toByte(), false),
 
     /**
      * 透传消息
@@ -42,6 +47,12 @@ enum class ProtoMessageType(val code: Byte) {
      */
     TRANSFER(0x30.toByte()),
 
+    /**
+     * 压缩后的透传消息，data 为原始长度（int）+ 压缩数据
+     * 消息流向：Client <-> Server
+     */
+    TRANSFER_COMPRESSED(0x31.toByte()),
+
     /**
      * 远程连接成功
      * 消息流向：Client <- Server
@@ -65,11 +76,22 @@ enum class ProtoMessageType(val code: Byte) {
      * 消息流向：Client -> Server
      */
     LOCAL_DISCONNECT(0x43.toByte()),
+
+    /**
+     * 会话流控窗口更新
+     * 消息流向：Client <-> Server
+     */
+    WINDOW_UPDATE(0x50.toByte()),
     ;
 
     companion object {
+        /** 按 code 直接索引，避免每帧复制并遍历 values() */
+        private val TABLE = arrayOfNulls<ProtoMessageType>(256).also { table ->
+            values().forEach { table[it.code.toInt() and 0xff] = it }
+        }
+
         @JvmStatic
-        fun valueOf(code: Byte) = values().firstOrNull { it.code == code } ?: UNKNOWN
+        fun valueOf(code: Byte) = TABLE[code.toInt() and 0xff] ?: UNKNOWN
     }
 
 }
\ No newline at end of file
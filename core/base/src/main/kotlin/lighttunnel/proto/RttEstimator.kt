@@ -0,0 +1,60 @@
+package lighttunnel.proto
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * 隧道往返时延估计，与 TCP 相同的 EWMA 算法（RFC 6298）
+ *
+ * srtt = 7/8 * srtt + 1/8 * sample，rttvar = 3/4 * rttvar + 1/4 * |srtt - sample|；
+ * 只在隧道连接的 EventLoop 中更新，其他线程读取的是最近一次的结果
+ */
+class RttEstimator {
+
+    /** 平滑往返时延，未采样时为 -1 */
+    @Volatile
+    var srttNanos = -1L
+        private set
+
+    /** 往返时延抖动 */
+    @Volatile
+    var rttvarNanos = 0L
+        private set
+
+    @Volatile
+    var lastSampleNanos = -1L
+        private set
+
+    val hasSample get() = srttNanos >= 0
+
+    val srttMillis get() = if (hasSample) TimeUnit.NANOSECONDS.toMillis(srttNanos) else -1L
+
+    val jitterMillis get() = if (hasSample) TimeUnit.NANOSECONDS.toMillis(rttvarNanos) else -1L
+
+    fun update(sampleNanos: Long) {
+        if (sampleNanos < 0) {
+            return
+        }
+        lastSampleNanos = sampleNanos
+        val srtt = srttNanos
+        if (srtt < 0) {
+            srttNanos = sampleNanos
+            rttvarNanos = sampleNanos / 2
+        } else {
+            rttvarNanos = rttvarNanos - (rttvarNanos shr 2) + (Math.abs(srtt - sampleNanos) shr 2)
+            srttNanos = srtt - (srtt shr 3) + (sampleNanos shr 3)
+        }
+    }
+
+    /** 超时重传时间 srtt + 4 * rttvar，限制在 [min, max] 之间；未采样时返回 max */
+    fun rtoNanos(minNanos: Long, maxNanos: Long): Long {
+        if (!hasSample) {
+            return maxNanos
+        }
+        return (srttNanos + 4 * rttvarNanos).coerceIn(minNanos, maxNanos)
+    }
+
+    override fun toString(): String {
+        return "RttEstimator(srtt=${srttMillis}ms, jitter=${jitterMillis}ms)"
+    }
+
+}
@@ -2,27 +2,84 @@
 
 package lighttunnel.proto
 
+import io.netty.buffer.ByteBuf
 import io.netty.buffer.ByteBufUtil
 import io.netty.buffer.Unpooled
-import lighttunnel.util.json.getOrDefault
 import lighttunnel.util.json.toStringMap
 import org.json.JSONObject
 import java.nio.charset.StandardCharsets
 
+/**
+ * 隧道请求
+ *
+ * 所有字段在解析时一次性解码，之后只读；
+ * 默认使用二进制 TLV 格式传输，旧版本的 JSON 格式仅用于兼容
+ */
 @Suppress("unused")
 data class TunnelRequest internal constructor(
     val type: Type,
     val localAddr: String,
     val localPort: Int,
-    private val options: JSONObject
+    // common
+    val name: String? = null,
+    val authToken: String? = null,
+    val flowWindow: Int = 0,
+    val grantedFlowWindow: Int = 0,
+    // 客户端支持的最高消息帧格式版本及服务端选定的版本，0 表示未声明（v1）
+    val protoVersion: Int = 0,
+    val grantedProtoVersion: Int = 0,
+    // tcp
+    private val remotePortValue: Int? = null,
+    // http & https
+    private val hostValue: String? = null,
+    val enableBasicAuth: Boolean = false,
+    val basicAuthRealm: String = ".",
+    val basicAuthUsername: String = "",
+    val basicAuthPassword: String = "",
+    val pxySetHeaders: Map<String, String> = emptyMap(),
+    val pxyAddHeaders: Map<String, String> = emptyMap(),
+    // option
+    private val options: Map<String, String> = emptyMap()
 ) {
 
     companion object Factory {
+        /** 负载均衡方式，相同 host/端口、相同 authToken 且都声明了该选项的隧道组成一组，取值见服务端 LoadBalance */
+        const val OPTION_LOAD_BALANCE = "load_balance"
+
+        /** 客户端请求时为支持的压缩算法列表（逗号分隔，按优先级），服务端响应时为选定的算法 */
+        const val OPTION_COMPRESSION = "compression"
+
         private val CHARSET = StandardCharsets.UTF_8
 
+        /** 二进制格式标识，与 Type 的取值不冲突，据此区分旧版本的 JSON 格式 */
+        private const val BINARY_FORMAT_V1 = 0xB1.toByte()
+
+        // TLV 标签
+        private const val TAG_LOCAL_ADDR = 0x01
+        private const val TAG_LOCAL_PORT = 0x02
+        private const val TAG_NAME = 0x03
+        private const val TAG_AUTH_TOKEN = 0x04
+        private const val TAG_FLOW_WINDOW = 0x05
+        private const val TAG_FLOW_WINDOW_GRANTED = 0x06
+        private const val TAG_PROTO_VERSION = 0x07
+        private const val TAG_PROTO_VERSION_GRANTED = 0x08
+        private const val TAG_REMOTE_PORT = 0x10
+        private const val TAG_HOST = 0x20
+        private const val TAG_ENABLE_BASIC_AUTH = 0x21
+        private const val TAG_BASIC_AUTH_REALM = 0x22
+        private const val TAG_BASIC_AUTH_USERNAME = 0x23
+        private const val TAG_BASIC_AUTH_PASSWORD = 0x24
+        private const val TAG_PXY_SET_HEADER = 0x25
+        private const val TAG_PXY_ADD_HEADER = 0x26
+        private const val TAG_OPTION = 0x30
+
         // common
         private const val NAME = "\$name"
         private const val AUTH_TOKEN = "\$auth_token"
+        private const val FLOW_WINDOW = "\$flow_window"
+        private const val FLOW_WINDOW_GRANTED = "\$flow_window_granted"
+        private const val PROTO_VERSION = "\$proto_version"
+        private const val PROTO_VERSION_GRANTED = "\$proto_version_granted"
 
         // tcp
         private const val REMOTE_PORT = "\$remote_port"
@@ -36,19 +93,14 @@ data class TunnelRequest internal constructor(
         private const val PXY_SET_HEADERS = "\$pxy_set_headers"
         private const val PXY_ADD_HEADERS = "\$pxy_add_headers"
 
+        /** 是否为旧版本的 JSON 格式 */
+        fun isJsonFormat(bytes: ByteArray) = bytes.isEmpty() || bytes[0] != BINARY_FORMAT_V1
+
         @Throws(ProtoException::class)
         fun fromBytes(bytes: ByteArray): TunnelRequest {
             val buffer = Unpooled.wrappedBuffer(bytes)
             try {
-                val type = Type.valueOf(buffer.readByte())
-                val localPort = buffer.readInt()
-                val localAddrBytes = ByteArray(buffer.readInt())
-                buffer.readBytes(localAddrBytes)
-                val localAddr = String(localAddrBytes, CHARSET)
-                val optionsBytes = ByteArray(buffer.readInt())
-                buffer.readBytes(optionsBytes)
-                val options = JSONObject(String(optionsBytes, CHARSET))
-                return TunnelRequest(type, localAddr, localPort, options)
+                return if (isJsonFormat(bytes)) fromJsonBuffer(buffer) else fromBinaryBuffer(buffer)
             } catch (e: Exception) {
                 throw ProtoException("解析失败，数据异常", e)
             } finally {
@@ -56,7 +108,156 @@ data class TunnelRequest internal constructor(
             }
         }
 
-        private fun TunnelRequest.toBytesInternal(): ByteArray {
+        private fun fromBinaryBuffer(buffer: ByteBuf): TunnelRequest {
+            buffer.skipBytes(1)
+            val type = Type.valueOf(buffer.readByte())
+            var localAddr = ""
+            var localPort = 0
+            var name: String? = null
+            var authToken: String? = null
+            var flowWindow = 0
+            var grantedFlowWindow = 0
+            var protoVersion = 0
+            var grantedProtoVersion = 0
+            var remotePort: Int? = null
+            var host: String? = null
+            var enableBasicAuth = false
+            var basicAuthRealm = "."
+            var basicAuthUsername = ""
+            var basicAuthPassword = ""
+            val pxySetHeaders = LinkedHashMap<String, String>()
+            val pxyAddHeaders = LinkedHashMap<String, String>()
+            val options = LinkedHashMap<String, String>()
+            while (buffer.isReadable) {
+                val tag = buffer.readUnsignedByte().toInt()
+                val value = buffer.readSlice(buffer.readUnsignedShort())
+                when (tag) {
+                    TAG_LOCAL_ADDR -> localAddr = value.readString()
+                    TAG_LOCAL_PORT -> localPort = value.readInt()
+                    TAG_NAME -> name = value.readString()
+                    TAG_AUTH_TOKEN -> authToken = value.readString()
+                    TAG_FLOW_WINDOW -> flowWindow = value.readInt()
+                    TAG_FLOW_WINDOW_GRANTED -> grantedFlowWindow = value.readInt()
+                    TAG_PROTO_VERSION -> protoVersion = value.readInt()
+                    TAG_PROTO_VERSION_GRANTED -> grantedProtoVersion = value.readInt()
+                    TAG_REMOTE_PORT -> remotePort = value.readInt()
+                    TAG_HOST -> host = value.readString()
+                    TAG_ENABLE_BASIC_AUTH -> enableBasicAuth = value.readBoolean()
+                    TAG_BASIC_AUTH_REALM -> basicAuthRealm = value.readString()
+                    TAG_BASIC_AUTH_USERNAME -> basicAuthUsername = value.readString()
+                    TAG_BASIC_AUTH_PASSWORD -> basicAuthPassword = value.readString()
+                    TAG_PXY_SET_HEADER -> value.readEntry().also { pxySetHeaders[it.first] = it.second }
+                    TAG_PXY_ADD_HEADER -> value.readEntry().also { pxyAddHeaders[it.first] = it.second }
+                    TAG_OPTION -> value.readEntry().also { options[it.first] = it.second }
+                    else -> {
+                        // 忽略不认识的标签，兼容新版本
+                    }
+                }
+            }
+            return TunnelRequest(
+                type = type,
+                localAddr = localAddr,
+                localPort = localPort,
+                name = name,
+                authToken = authToken,
+                flowWindow = flowWindow,
+                grantedFlowWindow = grantedFlowWindow,
+                protoVersion = protoVersion,
+                grantedProtoVersion = grantedProtoVersion,
+                remotePortValue = remotePort,
+                hostValue = host,
+                enableBasicAuth = enableBasicAuth,
+                basicAuthRealm = basicAuthRealm,
+                basicAuthUsername = basicAuthUsername,
+                basicAuthPassword = basicAuthPassword,
+                pxySetHeaders = pxySetHeaders,
+                pxyAddHeaders = pxyAddHeaders,
+                options = options
+            )
+        }
+
+        private fun fromJsonBuffer(buffer: ByteBuf): TunnelRequest {
+            val type = Type.valueOf(buffer.readByte())
+            val localPort = buffer.readInt()
+            val localAddr = buffer.readSlice(buffer.readInt()).readString()
+            val obj = JSONObject(buffer.readSlice(buffer.readInt()).readString())
+            return TunnelRequest(
+                type = type,
+                localAddr = localAddr,
+                localPort = localPort,
+                name = obj.optString(NAME, null),
+                authToken = obj.optString(AUTH_TOKEN, null),
+                flowWindow = obj.optInt(FLOW_WINDOW, 0),
+                grantedFlowWindow = obj.optInt(FLOW_WINDOW_GRANTED, 0),
+                protoVersion = obj.optInt(PROTO_VERSION, 0),
+                grantedProtoVersion = obj.optInt(PROTO_VERSION_GRANTED, 0),
+                remotePortValue = if (obj.has(REMOTE_PORT)) obj.getInt(REMOTE_PORT) else null,
+                hostValue = obj.optString(HOST, null),
+                enableBasicAuth = obj.optBoolean(ENABLE_BASIC_AUTH, false),
+                basicAuthRealm = obj.optString(BASIC_AUTH_REALM, "."),
+                basicAuthUsername = obj.optString(BASIC_AUTH_USERNAME, ""),
+                basicAuthPassword = obj.optString(BASIC_AUTH_PASSWORD, ""),
+                pxySetHeaders = obj.optJSONObject(PXY_SET_HEADERS).toStringMap(),
+                pxyAddHeaders = obj.optJSONObject(PXY_ADD_HEADERS).toStringMap(),
+                options = obj.toStringMap().filterNot { it.key.startsWith("\$") }
+            )
+        }
+
+        private fun TunnelRequest.toBinaryBytes(): ByteArray {
+            val buffer = Unpooled.buffer()
+            try {
+                buffer.writeByte(BINARY_FORMAT_V1.toInt())
+                buffer.writeByte(type.code.toInt())
+                buffer.writeStringTag(TAG_LOCAL_ADDR, localAddr)
+                buffer.writeIntTag(TAG_LOCAL_PORT, localPort)
+                name?.also { buffer.writeStringTag(TAG_NAME, it) }
+                authToken?.also { buffer.writeStringTag(TAG_AUTH_TOKEN, it) }
+                if (flowWindow > 0) buffer.writeIntTag(TAG_FLOW_WINDOW, flowWindow)
+                if (grantedFlowWindow > 0) buffer.writeIntTag(TAG_FLOW_WINDOW_GRANTED, grantedFlowWindow)
+                if (protoVersion > 0) buffer.writeIntTag(TAG_PROTO_VERSION, protoVersion)
+                if (grantedProtoVersion > 0) buffer.writeIntTag(TAG_PROTO_VERSION_GRANTED, grantedProtoVersion)
+                remotePortValue?.also { buffer.writeIntTag(TAG_REMOTE_PORT, it) }
+                hostValue?.also { buffer.writeStringTag(TAG_HOST, it) }
+                if (enableBasicAuth) {
+                    buffer.writeByte(TAG_ENABLE_BASIC_AUTH)
+                    buffer.writeShort(1)
+                    buffer.writeBoolean(true)
+                    buffer.writeStringTag(TAG_BASIC_AUTH_REALM, basicAuthRealm)
+                    buffer.writeStringTag(TAG_BASIC_AUTH_USERNAME, basicAuthUsername)
+                    buffer.writeStringTag(TAG_BASIC_AUTH_PASSWORD, basicAuthPassword)
+                }
+                pxySetHeaders.forEach { buffer.writeEntryTag(TAG_PXY_SET_HEADER, it.key, it.value) }
+                pxyAddHeaders.forEach { buffer.writeEntryTag(TAG_PXY_ADD_HEADER, it.key, it.value) }
+                options.forEach { buffer.writeEntryTag(TAG_OPTION, it.key, it.value) }
+                return ByteBufUtil.getBytes(buffer)
+            } finally {
+                buffer.release()
+            }
+        }
+
+        private fun TunnelRequest.toJsonObject(): JSONObject {
+            val obj = JSONObject()
+            name?.also { obj.put(NAME, it) }
+            authToken?.also { obj.put(AUTH_TOKEN, it) }
+            if (flowWindow > 0) obj.put(FLOW_WINDOW, flowWindow)
+            if (grantedFlowWindow > 0) obj.put(FLOW_WINDOW_GRANTED, grantedFlowWindow)
+            if (protoVersion > 0) obj.put(PROTO_VERSION, protoVersion)
+            if (grantedProtoVersion > 0) obj.put(PROTO_VERSION_GRANTED, grantedProtoVersion)
+            remotePortValue?.also { obj.put(REMOTE_PORT, it) }
+            hostValue?.also { obj.put(HOST, it) }
+            if (enableBasicAuth) {
+                obj.put(ENABLE_BASIC_AUTH, "true")
+                obj.put(BASIC_AUTH_REALM, basicAuthRealm)
+                obj.put(BASIC_AUTH_USERNAME, basicAuthUsername)
+                obj.put(BASIC_AUTH_PASSWORD, basicAuthPassword)
+            }
+            if (pxySetHeaders.isNotEmpty()) obj.put(PXY_SET_HEADERS, JSONObject(pxySetHeaders))
+            if (pxyAddHeaders.isNotEmpty()) obj.put(PXY_ADD_HEADERS, JSONObject(pxyAddHeaders))
+            options.forEach { obj.put(it.key, it.value) }
+            return obj
+        }
+
+        private fun TunnelRequest.toJsonBytesInternal(): ByteArray {
             val buffer = Unpooled.buffer()
             try {
                 buffer.writeByte(type.code.toInt())
@@ -65,7 +266,7 @@ data class TunnelRequest internal constructor(
                     buffer.writeInt(it.size)
                     buffer.writeBytes(it)
                 }
-                options.toString().toByteArray(CHARSET).also {
+                toJsonObject().toString().toByteArray(CHARSET).also {
                     buffer.writeInt(it.size)
                     buffer.writeBytes(it)
                 }
@@ -75,21 +276,66 @@ data class TunnelRequest internal constructor(
             }
         }
 
+        private fun ByteBuf.readString() = toString(readerIndex(), readableBytes(), CHARSET)
+
+        private fun ByteBuf.readEntry(): Pair<String, String> {
+            val key = readSlice(readUnsignedShort()).readString()
+            return Pair(key, readString())
+        }
+
+        /** 标签长度字段为无符号 short，超过上限时直接失败，不能截断 */
+        @Throws(ProtoException::class)
+        private fun checkTagLength(tag: Int, length: Int) {
+            if (length > 0xFFFF) {
+                throw ProtoException("tag($tag) too long: $length bytes")
+            }
+        }
+
+        private fun ByteBuf.writeStringTag(tag: Int, value: String) {
+            val bytes = value.toByteArray(CHARSET)
+            checkTagLength(tag, bytes.size)
+            writeByte(tag)
+            writeShort(bytes.size)
+            writeBytes(bytes)
+        }
+
+        private fun ByteBuf.writeIntTag(tag: Int, value: Int) {
+            writeByte(tag)
+            writeShort(4)
+            writeInt(value)
+        }
+
+        private fun ByteBuf.writeEntryTag(tag: Int, key: String, value: String) {
+            val keyBytes = key.toByteArray(CHARSET)
+            val valueBytes = value.toByteArray(CHARSET)
+            checkTagLength(tag, 2 + keyBytes.size + valueBytes.size)
+            writeByte(tag)
+            writeShort(2 + keyBytes.size + valueBytes.size)
+            writeShort(keyBytes.size)
+            writeBytes(keyBytes)
+            writeBytes(valueBytes)
+        }
+
         fun forTcp(
             localAddr: String,
             localPort: Int,
             remotePort: Int,
             name: String? = null,
             authToken: String? = null,
+            flowWindow: Int = 0,
             vararg options: Pair<String, String>
         ): TunnelRequest {
             options.forEach { require(!it.first.startsWith("\$")) { "`\$`打头的key为系统保留的key" } }
-            val objOptions = JSONObject()
-            name?.also { objOptions.put(NAME, it) }
-            authToken?.also { objOptions.put(AUTH_TOKEN, it) }
-            objOptions.put(REMOTE_PORT, remotePort)
-            options.forEach { objOptions.put(it.first, it.second) }
-            return TunnelRequest(type = Type.TCP, localAddr = localAddr, localPort = localPort, options = objOptions)
+            return TunnelRequest(
+                type = Type.TCP,
+                localAddr = localAddr,
+                localPort = localPort,
+                name = name,
+                authToken = authToken,
+                flowWindow = flowWindow.coerceAtLeast(0),
+                remotePortValue = remotePort,
+                options = mapOf(*options)
+            )
         }
 
         fun TunnelRequest.copyTcp(
@@ -98,13 +344,15 @@ data class TunnelRequest internal constructor(
             remotePort: Int = this.remotePort,
             name: String? = this.name,
             authToken: String? = this.authToken,
-            vararg options: Pair<String, String> = this.options().map { it.key to it.value }.toTypedArray()
+            flowWindow: Int = this.flowWindow,
+            vararg options: Pair<String, String> = this.options.toList().toTypedArray()
         ) = forTcp(
             localAddr = localAddr,
             localPort = localPort,
             remotePort = remotePort,
             name = name,
             authToken = authToken,
+            flowWindow = flowWindow,
             options = *options
         )
 
@@ -121,39 +369,25 @@ data class TunnelRequest internal constructor(
             basicAuthPassword: String = "guest",
             pxySetHeaders: Map<String, String> = emptyMap(),
             pxyAddHeaders: Map<String, String> = emptyMap(),
+            flowWindow: Int = 0,
             vararg options: Pair<String, String>
         ): TunnelRequest {
             options.forEach { require(!it.first.startsWith("\$")) { "`\$`打头的key为系统保留的key" } }
-            val objOptions = JSONObject()
-            name?.also { objOptions.put(NAME, it) }
-            authToken?.also { objOptions.put(AUTH_TOKEN, it) }
-            objOptions.put(HOST, host)
-            if (enableBasicAuth) {
-                objOptions.put(ENABLE_BASIC_AUTH, "true")
-                objOptions.put(BASIC_AUTH_REALM, basicAuthRealm)
-                objOptions.put(BASIC_AUTH_USERNAME, basicAuthUsername)
-                objOptions.put(BASIC_AUTH_PASSWORD, basicAuthPassword)
-            }
-            if (pxySetHeaders.isNotEmpty()) {
-                val tmpObj = JSONObject()
-                pxySetHeaders.entries.forEach {
-                    tmpObj.put(it.key, it.value)
-                }
-                objOptions.put(PXY_SET_HEADERS, tmpObj)
-            }
-            if (pxyAddHeaders.isNotEmpty()) {
-                val tmpObj = JSONObject()
-                pxyAddHeaders.entries.forEach {
-                    tmpObj.put(it.key, it.value)
-                }
-                objOptions.put(PXY_ADD_HEADERS, tmpObj)
-            }
-            options.forEach { objOptions.put(it.first, it.second) }
             return TunnelRequest(
                 type = if (https) Type.HTTPS else Type.HTTP,
                 localAddr = localAddr,
                 localPort = localPort,
-                options = objOptions
+                name = name,
+                authToken = authToken,
+                flowWindow = flowWindow.coerceAtLeast(0),
+                hostValue = host,
+                enableBasicAuth = enableBasicAuth,
+                basicAuthRealm = if (enableBasicAuth) basicAuthRealm else ".",
+                basicAuthUsername = if (enableBasicAuth) basicAuthUsername else "",
+                basicAuthPassword = if (enableBasicAuth) basicAuthPassword else "",
+                pxySetHeaders = pxySetHeaders.toMap(),
+                pxyAddHeaders = pxyAddHeaders.toMap(),
+                options = mapOf(*options)
             )
         }
 
@@ -170,7 +404,8 @@ data class TunnelRequest internal constructor(
             basicAuthPassword: String = this.basicAuthPassword,
             pxySetHeaders: Map<String, String> = this.pxySetHeaders,
             pxyAddHeaders: Map<String, String> = this.pxyAddHeaders,
-            vararg options: Pair<String, String> = this.options().map { it.key to it.value }.toTypedArray()
+            flowWindow: Int = this.flowWindow,
+            vararg options: Pair<String, String> = this.options.toList().toTypedArray()
         ) = forHttp(
             localAddr = localAddr,
             localPort = localPort,
@@ -182,41 +417,61 @@ data class TunnelRequest internal constructor(
             basicAuthRealm = basicAuthRealm,
             basicAuthUsername = basicAuthUsername,
             basicAuthPassword = basicAuthPassword,
-            pxyAddHeaders = pxySetHeaders,
-            pxySetHeaders = pxyAddHeaders,
+            pxyAddHeaders = pxyAddHeaders,
+            pxySetHeaders = pxySetHeaders,
+            flowWindow = flowWindow,
             options = *options
         )
 
-    }
+        /** 服务端确认会话流控窗口，0 表示不启用 */
+        fun TunnelRequest.grantFlowWindow(flowWindow: Int): TunnelRequest {
+            return copy(grantedFlowWindow = flowWindow.coerceAtLeast(0))
+        }
 
-    // common
-    val name get() = options.getOrDefault<String?>(NAME, null)
-    val authToken get() = options.getOrDefault<String?>(AUTH_TOKEN, null)
+        /** 客户端声明支持的最高消息帧格式版本 */
+        fun TunnelRequest.offerProtoVersion(version: Int): TunnelRequest {
+            return copy(protoVersion = version.coerceAtLeast(0))
+        }
+
+        /** 服务端确认消息帧格式版本，RESPONSE_OK 之后双方按该版本编码 */
+        fun TunnelRequest.grantProtoVersion(version: Int): TunnelRequest {
+            return copy(grantedProtoVersion = version.coerceAtLeast(0))
+        }
+
+        /** 替换 TCP 隧道的远程端口，其余字段不变 */
+        fun TunnelRequest.withRemotePort(remotePort: Int): TunnelRequest {
+            require(type == Type.TCP) { "type != TCP" }
+            return copy(remotePortValue = remotePort)
+        }
+
+        fun TunnelRequest.withOption(key: String, value: String): TunnelRequest {
+            require(!key.startsWith("\$")) { "`\$`打头的key为系统保留的key" }
+            return copy(options = options + (key to value))
+        }
+
+    }
 
     // tcp
-    val remotePort get() = (options.getOrDefault<Int?>(REMOTE_PORT, null) ?: error("remotePort == null"))
+    val remotePort get() = remotePortValue ?: error("remotePort == null")
 
     // http & https
-    val host get() = options.getOrDefault<String?>(HOST, null) ?: error("host == null")
-    val enableBasicAuth get() = options.getOrDefault(ENABLE_BASIC_AUTH, false)
-    val basicAuthRealm get() = options.getOrDefault(BASIC_AUTH_REALM, ".")
-    val basicAuthUsername get() = options.getOrDefault(BASIC_AUTH_USERNAME, "")
-    val basicAuthPassword get() = options.getOrDefault(BASIC_AUTH_PASSWORD, "")
-    val pxySetHeaders by lazy { options.getOrDefault<JSONObject?>(PXY_SET_HEADERS, null).toStringMap() }
-    val pxyAddHeaders by lazy { options.getOrDefault<JSONObject?>(PXY_ADD_HEADERS, null).toStringMap() }
+    val host get() = hostValue ?: error("host == null")
 
     // option
-    fun option(key: String): String? = options.getOrDefault<String?>(key, null)
+    fun option(key: String): String? = options[key]
 
-    private fun options() = options.toStringMap().filterNot { it.key.startsWith("\$") }
+    /** 二进制格式 */
+    @Throws(ProtoException::class)
+    fun toBytes() = toBinaryBytes()
 
-    fun toBytes() = toBytesInternal()
+    /** 旧版本的 JSON 格式，仅用于兼容 */
+    fun toJsonBytes() = toJsonBytesInternal()
 
     override fun toString(): String {
         return toString("tunnel")
     }
 
-    val optionsString get() = options.toString()
+    val optionsString by lazy { toJsonObject().toString() }
 
     fun toString(serverAddr: String): String {
         return when (type) {
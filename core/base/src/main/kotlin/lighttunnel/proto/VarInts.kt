@@ -0,0 +1,74 @@
+package lighttunnel.proto
+
+import io.netty.buffer.ByteBuf
+
+/**
+ * 无符号 varint（LEB128）编解码，每字节低 7 位为数据，最高位表示后面还有字节
+ */
+internal object VarInts {
+
+    /** 最多 10 个字节 */
+    const val MAX_LENGTH = 10
+
+    fun sizeOf(value: Long): Int {
+        var size = 1
+        var v = value ushr 7
+        while (v != 0L) {
+            size++
+            v = v ushr 7
+        }
+        return size
+    }
+
+    fun write(buf: ByteBuf, value: Long) {
+        var v = value
+        while (v and 0x7fL.inv() != 0L) {
+            buf.writeByte(((v and 0x7f) or 0x80).toInt())
+            v = v ushr 7
+        }
+        buf.writeByte(v.toInt())
+    }
+
+    @Throws(ProtoException::class)
+    fun read(buf: ByteBuf): Long {
+        var value = 0L
+        var shift = 0
+        while (shift < 7 * MAX_LENGTH) {
+            val b = buf.readByte().toInt()
+            value = value or ((b and 0x7f).toLong() shl shift)
+            if (b and 0x80 == 0) {
+                return value
+            }
+            shift += 7
+        }
+        throw ProtoException("varint too long")
+    }
+
+    /**
+     * 从 index 处窥视一个 varint，不移动读指针
+     *
+     * @return 编码所占字节数，数据不完整时返回 0；值通过 [peekValue] 取得
+     */
+    @Throws(ProtoException::class)
+    fun peekLength(buf: ByteBuf, index: Int): Int {
+        val end = buf.writerIndex()
+        for (i in 0 until MAX_LENGTH) {
+            if (index + i >= end) {
+                return 0
+            }
+            if (buf.getByte(index + i).toInt() and 0x80 == 0) {
+                return i + 1
+            }
+        }
+        throw ProtoException("varint too long")
+    }
+
+    fun peekValue(buf: ByteBuf, index: Int, length: Int): Long {
+        var value = 0L
+        for (i in 0 until length) {
+            value = value or ((buf.getByte(index + i).toInt() and 0x7f).toLong() shl (7 * i))
+        }
+        return value
+    }
+
+}
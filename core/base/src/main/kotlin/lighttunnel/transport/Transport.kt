@@ -0,0 +1,88 @@
+package lighttunnel.transport
+
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.channel.ChannelOption
+import io.netty.channel.EventLoop
+import io.netty.channel.EventLoopGroup
+import io.netty.channel.epoll.*
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+
+/**
+ * 传输层配置
+ *
+ * Linux 下 epoll 可用时使用 epoll，否则回退到 NIO；
+ * Channel 类型由 EventLoopGroup 的类型决定，所以同一组 Bootstrap 必须使用同一个 Transport 创建的 EventLoopGroup
+ *
+ * @param native 是否优先使用 epoll
+ * @param reusePort SO_REUSEPORT，仅 epoll 有效
+ * @param tcpNoDelay TCP_NODELAY
+ * @param tcpQuickAck TCP_QUICKACK，仅 epoll 有效
+ * @param edgeTriggered 是否使用边缘触发，仅 epoll 有效
+ */
+class Transport(
+    val native: Boolean = true,
+    val reusePort: Boolean = false,
+    val tcpNoDelay: Boolean = true,
+    val tcpQuickAck: Boolean = false,
+    val edgeTriggered: Boolean = true
+) {
+
+    companion object {
+        val DEFAULT = Transport()
+
+        private val EventLoopGroup.isEpoll: Boolean
+            get() = this is EpollEventLoopGroup || (this is EventLoop && parent() is EpollEventLoopGroup)
+    }
+
+    /** 当前环境下是否实际使用 epoll */
+    val isNative: Boolean get() = native && Epoll.isAvailable()
+
+    private val epollMode get() = if (edgeTriggered) EpollMode.EDGE_TRIGGERED else EpollMode.LEVEL_TRIGGERED
+
+    fun newEventLoopGroup(threads: Int = -1): EventLoopGroup {
+        return if (isNative) {
+            if (threads >= 0) EpollEventLoopGroup(threads) else EpollEventLoopGroup()
+        } else {
+            if (threads >= 0) NioEventLoopGroup(threads) else NioEventLoopGroup()
+        }
+    }
+
+    /** 设置 ServerBootstrap 的 Channel 类型及传输层参数，须在 group 之后调用 */
+    fun configure(serverBootstrap: ServerBootstrap): ServerBootstrap {
+        val group = serverBootstrap.config().group() ?: error("group not set")
+        serverBootstrap.childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+        if (group.isEpoll) {
+            serverBootstrap.channel(EpollServerSocketChannel::class.java)
+                .option(EpollChannelOption.SO_REUSEPORT, reusePort)
+                .option(EpollChannelOption.EPOLL_MODE, epollMode)
+                .childOption(EpollChannelOption.EPOLL_MODE, epollMode)
+                .childOption(EpollChannelOption.TCP_QUICKACK, tcpQuickAck)
+        } else {
+            serverBootstrap.channel(NioServerSocketChannel::class.java)
+        }
+        return serverBootstrap
+    }
+
+    /** 设置 Bootstrap 的 Channel 类型及传输层参数，须在 group 之后调用 */
+    fun configure(bootstrap: Bootstrap): Bootstrap {
+        val group = bootstrap.config().group() ?: error("group not set")
+        bootstrap.option(ChannelOption.TCP_NODELAY, tcpNoDelay)
+        if (group.isEpoll) {
+            bootstrap.channel(EpollSocketChannel::class.java)
+                .option(EpollChannelOption.EPOLL_MODE, epollMode)
+                .option(EpollChannelOption.TCP_QUICKACK, tcpQuickAck)
+        } else {
+            bootstrap.channel(NioSocketChannel::class.java)
+        }
+        return bootstrap
+    }
+
+    override fun toString(): String {
+        return "Transport(${if (isNative) "epoll" else "nio"}, reusePort=$reusePort, tcpNoDelay=$tcpNoDelay, " +
+            "tcpQuickAck=$tcpQuickAck, edgeTriggered=$edgeTriggered)"
+    }
+
+}
@@ -0,0 +1,64 @@
+package lighttunnel.util
+
+import io.netty.channel.Channel
+import io.netty.util.AttributeKey
+
+/**
+ * 按原因暂停、恢复 Channel 的读取，任一原因未解除时保持暂停
+ *
+ * 流控、响应顺序、异步拦截器等各自独立地暂停读取，都通过这里修改 AUTO_READ，不会相互覆盖；
+ * 必须在 Channel 的 EventLoop 中调用
+ */
+object ReadPause {
+
+    enum class Reason {
+        /** 流控窗口耗尽 */
+        FLOW_WINDOW,
+        /** 等待上一个响应写出 */
+        RESPONSE,
+        /** 等待异步拦截器的结果 */
+        INTERCEPTOR,
+        /** 连接池中的空闲连接，尚未绑定会话 */
+        IDLE
+    }
+
+    private class Reasons(var bits: Int)
+
+    private val AK_READ_PAUSE_REASONS: AttributeKey<Reasons> = AttributeKey.newInstance("\$read_pause_reasons")
+
+    @JvmStatic
+    fun pause(channel: Channel, reason: Reason) {
+        update(channel, reasonsOf(channel).bits or (1 shl reason.ordinal))
+    }
+
+    @JvmStatic
+    fun resume(channel: Channel, reason: Reason) {
+        update(channel, reasonsOf(channel).bits and (1 shl reason.ordinal).inv())
+    }
+
+    @JvmStatic
+    fun isPaused(channel: Channel, reason: Reason): Boolean {
+        val reasons = channel.attr(AK_READ_PAUSE_REASONS).get() ?: return false
+        return reasons.bits and (1 shl reason.ordinal) != 0
+    }
+
+    @JvmStatic
+    fun isPaused(channel: Channel): Boolean {
+        val reasons = channel.attr(AK_READ_PAUSE_REASONS).get() ?: return false
+        return reasons.bits != 0
+    }
+
+    private fun reasonsOf(channel: Channel): Reasons {
+        val attr = channel.attr(AK_READ_PAUSE_REASONS)
+        return attr.get() ?: Reasons(0).also { attr.set(it) }
+    }
+
+    private fun update(channel: Channel, bits: Int) {
+        reasonsOf(channel).bits = bits
+        val autoRead = bits == 0
+        if (channel.config().isAutoRead != autoRead) {
+            channel.config().isAutoRead = autoRead
+        }
+    }
+
+}
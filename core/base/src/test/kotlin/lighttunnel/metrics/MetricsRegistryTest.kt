@@ -0,0 +1,67 @@
+package lighttunnel.metrics
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.WriteBufferWaterMark
+import io.netty.channel.embedded.EmbeddedChannel
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class MetricsRegistryTest {
+
+    @Test
+    fun scrape() {
+        val registry = MetricsRegistry()
+        val key = Any()
+        val metrics = registry.register(key, TunnelMetrics(linkedMapOf("type" to "tcp", "name" to "s\"sh")))
+        metrics.bytesIn.add(1024)
+        metrics.sessionsOpened.increment()
+        metrics.queuedBytes = { 7L }
+        registry.counter("reconnects_total", "Reconnects").increment()
+        val text = registry.scrape()
+        assertTrue(text.contains("# TYPE lighttunnel_tunnel_bytes_received_total counter\n"))
+        assertTrue(text.contains("lighttunnel_tunnel_bytes_received_total{type=\"tcp\",name=\"s\\\"sh\"} 1024\n"))
+        assertTrue(text.contains("lighttunnel_tunnel_sessions_opened_total{type=\"tcp\",name=\"s\\\"sh\"} 1\n"))
+        assertTrue(text.contains("lighttunnel_tunnel_queued_bytes{type=\"tcp\",name=\"s\\\"sh\"} 7\n"))
+        assertTrue(text.contains("lighttunnel_reconnects_total 1\n"))
+        assertTrue(text.contains("lighttunnel_tunnels 1\n"))
+        registry.unregister(key)
+        assertFalse(registry.scrape().contains("tunnel_bytes_received_total{"))
+    }
+
+    @Test
+    fun histogram() {
+        val histogram = Histogram(doubleArrayOf(0.01, 0.1, 1.0))
+        histogram.observe(0.005)
+        histogram.observe(0.01)
+        histogram.observe(0.5)
+        histogram.observe(3.0)
+        assertEquals(listOf(2L, 2L, 3L, 4L), histogram.cumulativeCounts().toList())
+        assertEquals(4L, histogram.count)
+        val registry = MetricsRegistry()
+        registry.register(Any(), TunnelMetrics(mapOf("name" to "a"))).localConnectTime.observeNanos(2_000_000)
+        val text = registry.scrape()
+        assertTrue(text.contains("lighttunnel_tunnel_local_connect_seconds_bucket{name=\"a\",le=\"0.0025\"} 1\n"))
+        assertTrue(text.contains("lighttunnel_tunnel_local_connect_seconds_bucket{name=\"a\",le=\"+Inf\"} 1\n"))
+        assertTrue(text.contains("lighttunnel_tunnel_local_connect_seconds_count{name=\"a\"} 1\n"))
+    }
+
+    @Test
+    fun queuedBytesOf() {
+        val channel = EmbeddedChannel()
+        channel.config().writeBufferWaterMark = WriteBufferWaterMark(8, 16)
+        val metrics = TunnelMetrics(emptyMap())
+        metrics.queuedBytesOf(channel)
+        assertEquals(0L, metrics.queuedBytes!!())
+        channel.write(Unpooled.wrappedBuffer(ByteArray(4)))
+        assertEquals(4L, metrics.queuedBytes!!())
+        channel.write(Unpooled.wrappedBuffer(ByteArray(20)))
+        assertFalse(channel.isWritable)
+        assertEquals(24L, metrics.queuedBytes!!())
+        channel.flush()
+        assertEquals(0L, metrics.queuedBytes!!())
+        channel.finishAndReleaseAll()
+    }
+
+}
@@ -0,0 +1,82 @@
+package lighttunnel.proto
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import lighttunnel.util.LongUtil
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+
+class CompressionHandlerTest {
+
+    private val head = LongUtil.toBytes(1L, 2L)
+
+    private val text = "GET /index.html HTTP/1.1\r\nHost: t1.tunnel.lo\r\n\r\n".repeat(64).toByteArray()
+
+    @Test
+    fun roundTrip() {
+        for (compression in Compression.values()) {
+            val sender = EmbeddedChannel(CompressionHandler(compression))
+            val receiver = EmbeddedChannel(CompressionHandler(compression))
+            sender.writeOutbound(ProtoMessage(ProtoMessageType.TRANSFER, head, text))
+            val compressed = sender.readOutbound<ProtoMessage>()
+            assertEquals(ProtoMessageType.TRANSFER_COMPRESSED, compressed.type)
+            assertTrue(compressed.data.readableBytes() < text.size)
+            receiver.writeInbound(compressed)
+            val msg = receiver.readInbound<ProtoMessage>()
+            assertEquals(ProtoMessageType.TRANSFER, msg.type)
+            assertEquals(2L, msg.sessionId)
+            assertEquals(Unpooled.wrappedBuffer(text), msg.data)
+            msg.release()
+            sender.finishAndReleaseAll()
+            receiver.finishAndReleaseAll()
+        }
+    }
+
+    @Test
+    fun skipSmallAndCompressed() {
+        val channel = EmbeddedChannel(CompressionHandler(Compression.LZ4, threshold = 1024))
+        channel.writeOutbound(ProtoMessage(ProtoMessageType.TRANSFER, head, ByteArray(512)))
+        assertEquals(ProtoMessageType.TRANSFER, channel.readOutbound<ProtoMessage>().apply { release() }.type)
+        val gzip = ByteArray(4096).also { it[0] = 0x1f; it[1] = 0x8b.toByte() }
+        channel.writeOutbound(ProtoMessage(ProtoMessageType.TRANSFER, head, gzip))
+        assertEquals(ProtoMessageType.TRANSFER, channel.readOutbound<ProtoMessage>().apply { release() }.type)
+        channel.writeOutbound(ProtoMessage(ProtoMessageType.PING))
+        assertEquals(ProtoMessageType.PING, channel.readOutbound<ProtoMessage>().apply { release() }.type)
+        assertNull(channel.readOutbound<ByteBuf>())
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun rejectInvalidLength() {
+        val alloc = ByteBufAllocator.DEFAULT
+        for (compression in Compression.values()) {
+            val compressed = compression.compress(alloc, Unpooled.wrappedBuffer(text))
+            for (length in intArrayOf(-1, Compression.MAX_DECOMPRESSED_LENGTH + 1, text.size - 1, text.size + 1)) {
+                try {
+                    compression.decompress(alloc, compressed.duplicate(), length).release()
+                    fail("$compression accepted length $length")
+                } catch (e: ProtoException) {
+                    // expected
+                }
+            }
+            val out = compression.decompress(alloc, compressed, text.size)
+            assertEquals(Unpooled.wrappedBuffer(text), out)
+            out.release()
+            compressed.release()
+        }
+    }
+
+    @Test
+    fun negotiate() {
+        assertEquals(listOf(Compression.LZ4, Compression.SNAPPY), Compression.parse("lz4, zstd,SNAPPY"))
+        assertEquals(Compression.SNAPPY, Compression.negotiate(listOf(Compression.SNAPPY, Compression.LZ4), "lz4,snappy"))
+        assertNull(Compression.negotiate(listOf(Compression.LZ4), "zstd"))
+        assertNull(Compression.of(""))
+    }
+
+}
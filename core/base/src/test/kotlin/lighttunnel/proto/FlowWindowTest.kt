@@ -0,0 +1,73 @@
+package lighttunnel.proto
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import lighttunnel.proto.TunnelRequest.Factory.grantFlowWindow
+import lighttunnel.util.ReadPause
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class FlowWindowTest {
+
+    @Test
+    fun pauseAndResume() {
+        val channel = EmbeddedChannel()
+        val window = FlowWindow(1024)
+        window.onSent(channel, 512)
+        assertTrue(channel.config().isAutoRead)
+        window.onSent(channel, 512)
+        assertFalse(channel.config().isAutoRead)
+        window.onUpdate(channel, 512)
+        channel.runPendingTasks()
+        assertTrue(channel.config().isAutoRead)
+    }
+
+    @Test
+    fun keepPausedByOtherReason() {
+        val channel = EmbeddedChannel()
+        val window = FlowWindow(1024)
+        window.onSent(channel, 1024)
+        ReadPause.pause(channel, ReadPause.Reason.INTERCEPTOR)
+        window.onUpdate(channel, 512)
+        channel.runPendingTasks()
+        assertFalse(channel.config().isAutoRead)
+        ReadPause.resume(channel, ReadPause.Reason.INTERCEPTOR)
+        assertTrue(channel.config().isAutoRead)
+    }
+
+    @Test
+    fun readUpdate() {
+        assertEquals(512, FlowWindow.readUpdate(Unpooled.copyInt(512)))
+    }
+
+    @Test(expected = ProtoException::class)
+    fun readTruncatedUpdate() {
+        FlowWindow.readUpdate(Unpooled.wrappedBuffer(byteArrayOf(0, 1)))
+    }
+
+    @Test(expected = ProtoException::class)
+    fun readNegativeUpdate() {
+        FlowWindow.readUpdate(Unpooled.copyInt(-1))
+    }
+
+    @Test
+    fun onWritten() {
+        val window = FlowWindow(1024)
+        assertEquals(0, window.onWritten(256))
+        assertEquals(512, window.onWritten(256))
+        assertEquals(0, window.onWritten(100))
+    }
+
+    @Test
+    fun grantFlowWindow() {
+        val request = TunnelRequest.forTcp("127.0.0.1", 80, 10080, flowWindow = 4096)
+        assertEquals(4096, request.flowWindow)
+        assertEquals(0, request.grantedFlowWindow)
+        val granted = request.grantFlowWindow(2048)
+        val decoded = TunnelRequest.fromBytes(granted.toBytes())
+        assertEquals(2048, decoded.grantedFlowWindow)
+    }
+
+}
@@ -0,0 +1,41 @@
+package lighttunnel.proto
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class FlushCoalescingHandlerTest {
+
+    @Test
+    fun coalesce() {
+        val channel = EmbeddedChannel(FlushCoalescingHandler(maxBytes = 1024))
+        for (i in 0 until 3) {
+            channel.writeAndFlush(Unpooled.wrappedBuffer(ByteArray(16)))
+        }
+        assertNull(channel.readOutbound<ByteBuf>())
+        channel.runPendingTasks()
+        var count = 0
+        while (true) {
+            val buf = channel.readOutbound<ByteBuf>() ?: break
+            buf.release()
+            count++
+        }
+        assertEquals(3, count)
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun flushWhenMaxBytes() {
+        val channel = EmbeddedChannel(FlushCoalescingHandler(maxBytes = 32))
+        channel.writeAndFlush(Unpooled.wrappedBuffer(ByteArray(16)))
+        assertNull(channel.readOutbound<ByteBuf>())
+        channel.writeAndFlush(Unpooled.wrappedBuffer(ByteArray(16)))
+        assertNotNull(channel.readOutbound<ByteBuf>())
+        channel.finishAndReleaseAll()
+    }
+
+}
@@ -0,0 +1,63 @@
+package lighttunnel.proto
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class HeartbeatHandlerTest {
+
+    @Test
+    fun echoPing() {
+        val channel = EmbeddedChannel(HeartbeatHandler())
+        channel.writeInbound(ProtoMessage(ProtoMessageType.PING, data = Unpooled.copyLong(42L)))
+        assertNull(channel.readInbound<ProtoMessage>())
+        val pong = channel.readOutbound<ProtoMessage>()
+        assertEquals(ProtoMessageType.PONG, pong.type)
+        assertEquals(42L, pong.data.readLong())
+        pong.release()
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun rttFromPong() {
+        val handler = HeartbeatHandler()
+        val channel = EmbeddedChannel(handler)
+        var sample = -1L
+        handler.onRttSample = { sample = it }
+        val sentNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20)
+        channel.writeInbound(ProtoMessage(ProtoMessageType.PONG, data = Unpooled.copyLong(sentNanos)))
+        assertTrue(handler.rtt.hasSample)
+        assertTrue(sample >= TimeUnit.MILLISECONDS.toNanos(20))
+        assertTrue(handler.effectiveTimeoutNanos < TimeUnit.SECONDS.toNanos(90))
+        // 旧版本对端的 PONG 不带时间戳
+        channel.writeInbound(ProtoMessage(ProtoMessageType.PONG))
+        channel.writeInbound(ProtoMessage(ProtoMessageType.TRANSFER, 1L, 1L))
+        assertEquals(ProtoMessageType.TRANSFER, channel.readInbound<ProtoMessage>().apply { release() }.type)
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun estimator() {
+        val rtt = RttEstimator()
+        assertFalse(rtt.hasSample)
+        assertEquals(1000L, rtt.rtoNanos(10L, 1000L))
+        rtt.update(800L)
+        assertEquals(800L, rtt.srttNanos)
+        assertEquals(400L, rtt.rttvarNanos)
+        rtt.update(800L)
+        assertEquals(800L, rtt.srttNanos)
+        assertEquals(300L, rtt.rttvarNanos)
+        assertEquals(2000L, rtt.rtoNanos(10L, 10_000L))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectTimeoutNotAfterInterval() {
+        HeartbeatHandler.checkArgs(30_000L, 30_000L)
+    }
+
+}
@@ -0,0 +1,93 @@
+package lighttunnel.proto
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import lighttunnel.util.LongUtil
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class ProtoMessageCodecTest {
+
+    @Test
+    fun encodeAndDecode() {
+        val encoder = EmbeddedChannel(ProtoMessageEncoder())
+        val decoder = EmbeddedChannel(ProtoMessageDecoder())
+        val payload = "Hello".toByteArray()
+        encoder.writeOutbound(ProtoMessage(
+            ProtoMessageType.TRANSFER,
+            LongUtil.toBytes(1L, 2L),
+            Unpooled.wrappedBuffer(payload)
+        ))
+        val frame = encoder.readOutbound<ByteBuf>()
+        decoder.writeInbound(frame)
+        val msg = decoder.readInbound<ProtoMessage>()
+        assertEquals(ProtoMessageType.TRANSFER, msg.type)
+        assertEquals(1L, msg.tunnelId)
+        assertEquals(2L, msg.sessionId)
+        assertArrayEquals(payload, ByteBufUtil.getBytes(msg.data))
+        msg.release()
+    }
+
+    @Test
+    fun encodeAndDecodeV2() {
+        val encoder = EmbeddedChannel(ProtoMessageEncoder(ProtoMessageEncoder.VERSION_2))
+        val decoder = EmbeddedChannel(ProtoMessageDecoder())
+        val payload = "Hello".toByteArray()
+        encoder.writeOutbound(ProtoMessage(ProtoMessageType.TRANSFER, 1L, 300L, Unpooled.wrappedBuffer(payload)))
+        val frame = encoder.readOutbound<ByteBuf>()
+        // 类型 1 + 长度 1 + tunnelId 1 + sessionId 2
+        assertEquals(5 + payload.size, frame.readableBytes())
+        decoder.writeInbound(frame)
+        val msg = decoder.readInbound<ProtoMessage>()
+        assertEquals(ProtoMessageType.TRANSFER, msg.type)
+        assertEquals(1L, msg.tunnelId)
+        assertEquals(300L, msg.sessionId)
+        assertArrayEquals(LongUtil.toBytes(1L, 300L), msg.head)
+        assertArrayEquals(payload, ByteBufUtil.getBytes(msg.data))
+        msg.release()
+    }
+
+    @Test
+    fun mixedVersionsAndPartialFrames() {
+        val v1 = EmbeddedChannel(ProtoMessageEncoder())
+        val v2 = EmbeddedChannel(ProtoMessageEncoder(ProtoMessageEncoder.VERSION_2))
+        val error = "error".toByteArray()
+        v1.writeOutbound(ProtoMessage(ProtoMessageType.PING))
+        v2.writeOutbound(ProtoMessage(ProtoMessageType.RESPONSE_ERR, error))
+        v2.writeOutbound(ProtoMessage(ProtoMessageType.REMOTE_DISCONNECT, Long.MAX_VALUE, 0L))
+        val stream = Unpooled.buffer()
+        for (buf in listOf(v1.readOutbound<ByteBuf>(), v2.readOutbound(), v2.readOutbound())) {
+            stream.writeBytes(buf)
+            buf.release()
+        }
+        val decoder = EmbeddedChannel(ProtoMessageDecoder())
+        // 逐字节写入，验证半包
+        while (stream.isReadable) {
+            decoder.writeInbound(stream.readRetainedSlice(1))
+        }
+        stream.release()
+        assertEquals(ProtoMessageType.PING, decoder.readInbound<ProtoMessage>().apply { release() }.type)
+        val err = decoder.readInbound<ProtoMessage>()
+        assertEquals(ProtoMessageType.RESPONSE_ERR, err.type)
+        assertArrayEquals(error, err.head)
+        err.release()
+        val disconnect = decoder.readInbound<ProtoMessage>()
+        assertEquals(ProtoMessageType.REMOTE_DISCONNECT, disconnect.type)
+        assertEquals(Long.MAX_VALUE, disconnect.tunnelId)
+        disconnect.release()
+        assertNull(decoder.readInbound<ProtoMessage>())
+        v1.finishAndReleaseAll()
+        v2.finishAndReleaseAll()
+    }
+
+    @Test
+    fun typeLookup() {
+        ProtoMessageType.values().forEach { assertEquals(it, ProtoMessageType.valueOf(it.code)) }
+        assertEquals(ProtoMessageType.UNKNOWN, ProtoMessageType.valueOf(0x7f.toByte()))
+    }
+
+}
@@ -0,0 +1,76 @@
+package lighttunnel.proto
+
+import lighttunnel.proto.TunnelRequest.Factory.withOption
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class TunnelRequestTest {
+
+    private val httpRequest = TunnelRequest.forHttp(
+        localAddr = "192.168.1.1",
+        localPort = 80,
+        host = "t1.tunnel.lo",
+        https = false,
+        name = "http",
+        authToken = "tk123456",
+        enableBasicAuth = true,
+        basicAuthRealm = "realm",
+        basicAuthUsername = "user",
+        basicAuthPassword = "pass",
+        pxySetHeaders = mapOf("X-Real-IP" to "\$remote_addr"),
+        pxyAddHeaders = mapOf("X-User-Agent" to "LightTunnel"),
+        options = *arrayOf("k1" to "v1")
+    )
+
+    @Test
+    fun binary() {
+        val bytes = httpRequest.toBytes()
+        assertFalse(TunnelRequest.isJsonFormat(bytes))
+        assertEquals(httpRequest, TunnelRequest.fromBytes(bytes))
+    }
+
+    @Test
+    fun json() {
+        val bytes = httpRequest.toJsonBytes()
+        assertTrue(TunnelRequest.isJsonFormat(bytes))
+        val request = TunnelRequest.fromBytes(bytes)
+        assertEquals(httpRequest, request)
+        assertTrue(request.enableBasicAuth)
+        assertEquals("v1", request.option("k1"))
+    }
+
+    @Test
+    fun tcp() {
+        val request = TunnelRequest.forTcp("127.0.0.1", 22, 10022, name = "ssh")
+        val decoded = TunnelRequest.fromBytes(request.toBytes())
+        assertEquals(10022, decoded.remotePort)
+        assertEquals("ssh", decoded.name)
+        assertEquals(request, TunnelRequest.fromBytes(request.toJsonBytes()))
+    }
+
+    @Test
+    fun withOption() {
+        val request = httpRequest.withOption(TunnelRequest.OPTION_LOAD_BALANCE, "least_sessions")
+        assertEquals("least_sessions", request.option(TunnelRequest.OPTION_LOAD_BALANCE))
+        assertEquals("v1", request.option("k1"))
+        assertEquals(request, TunnelRequest.fromBytes(request.toBytes()))
+    }
+
+    @Test(expected = ProtoException::class)
+    fun rejectOversizedOption() {
+        httpRequest.withOption("k2", "v".repeat(0x10000)).toBytes()
+    }
+
+    @Test(expected = ProtoException::class)
+    fun rejectOversizedHost() {
+        TunnelRequest.forHttp(
+            localAddr = "192.168.1.1",
+            localPort = 80,
+            host = "h".repeat(0x10000),
+            https = false
+        ).toBytes()
+    }
+
+}
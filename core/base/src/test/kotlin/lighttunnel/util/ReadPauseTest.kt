@@ -0,0 +1,34 @@
+package lighttunnel.util
+
+import io.netty.channel.embedded.EmbeddedChannel
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ReadPauseTest {
+
+    @Test
+    fun resumeAfterAllReasons() {
+        val channel = EmbeddedChannel()
+        ReadPause.pause(channel, ReadPause.Reason.FLOW_WINDOW)
+        ReadPause.pause(channel, ReadPause.Reason.INTERCEPTOR)
+        assertFalse(channel.config().isAutoRead)
+        // 其他原因未解除时保持暂停
+        ReadPause.resume(channel, ReadPause.Reason.FLOW_WINDOW)
+        assertFalse(channel.config().isAutoRead)
+        assertTrue(ReadPause.isPaused(channel, ReadPause.Reason.INTERCEPTOR))
+        ReadPause.resume(channel, ReadPause.Reason.INTERCEPTOR)
+        assertTrue(channel.config().isAutoRead)
+        assertFalse(ReadPause.isPaused(channel))
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun resumeWithoutPause() {
+        val channel = EmbeddedChannel()
+        ReadPause.resume(channel, ReadPause.Reason.RESPONSE)
+        assertTrue(channel.config().isAutoRead)
+        channel.finishAndReleaseAll()
+    }
+
+}
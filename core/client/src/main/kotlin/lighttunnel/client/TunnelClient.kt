@@ -7,56 +7,128 @@ import io.netty.buffer.Unpooled
 import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelOption
-import io.netty.channel.nio.NioEventLoopGroup
 import io.netty.channel.socket.SocketChannel
-import io.netty.channel.socket.nio.NioSocketChannel
 import io.netty.handler.codec.http.DefaultFullHttpResponse
+import io.netty.handler.codec.http.HttpHeaderNames
 import io.netty.handler.codec.http.HttpResponseStatus
 import io.netty.handler.codec.http.HttpVersion
 import io.netty.handler.ssl.SslContext
 import lighttunnel.client.callback.OnTunnelStateCallback
 import lighttunnel.client.callback.OnTunnelStateListener
+import lighttunnel.client.connect.CircuitState
 import lighttunnel.client.connect.TunnelConnectDescriptor
 import lighttunnel.client.connect.TunnelConnectRegistry
 import lighttunnel.client.local.LocalTcpClient
 import lighttunnel.client.util.AttributeKeys
 import lighttunnel.dashboard.server.DashboardServer
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.metrics.MetricsHandler
+import lighttunnel.metrics.MetricsRegistry
+import lighttunnel.metrics.TunnelMetrics
+import lighttunnel.proto.Compression
+import lighttunnel.proto.CompressionHandler
+import lighttunnel.proto.FlushCoalescingHandler
 import lighttunnel.proto.HeartbeatHandler
 import lighttunnel.proto.ProtoMessageDecoder
 import lighttunnel.proto.ProtoMessageEncoder
 import lighttunnel.proto.TunnelRequest
+import lighttunnel.proto.TunnelRequest.Factory.offerProtoVersion
+import lighttunnel.proto.TunnelRequest.Factory.withOption
+import lighttunnel.transport.Transport
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadLocalRandom
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
 
 class TunnelClient(
     private val workerThreads: Int = -1,
+    private val transport: Transport = Transport.DEFAULT,
+    // flush 合并，flushMaxBytes <= 0 时关闭
+    private val flushMaxDelayMicros: Long = 0L,
+    private val flushMaxBytes: Int = 64 * 1024,
+    // 使用旧版本的 JSON 格式发送隧道请求，用于连接旧版本服务端
+    private val jsonTunnelRequest: Boolean = false,
+    // 本地连接与隧道连接使用同一个 EventLoop
+    private val sessionAffinity: Boolean = false,
     private val loseReconnect: Boolean = true,
     private val errorReconnect: Boolean = false,
+    // 重连，延迟按指数退避并加入随机抖动
+    private val reconnectBaseDelayMillis: Long = 1000L,
+    private val reconnectMaxDelayMillis: Long = 60_000L,
+    private val reconnectMaxAttempts: Int = -1,
+    // 连续失败 circuitFailureThreshold 次后熔断 circuitOpenMillis，<= 0 时不熔断
+    private val circuitFailureThreshold: Int = 10,
+    private val circuitOpenMillis: Long = 60_000L,
+    // 支持的透传数据压缩算法，按优先级排列，由服务端选定，为空时不压缩
+    private val compressions: List<Compression> = emptyList(),
+    private val compressionThreshold: Int = 512,
+    // 消息帧格式版本，大于 1 时与服务端协商，旧版本服务端继续使用 v1
+    private val protoVersion: Int = ProtoMessageEncoder.MAX_VERSION,
+    // 心跳间隔及对端无响应的最长时间，有往返时延采样后会自动缩短
+    private val heartbeatIntervalMillis: Long = 30_000L,
+    private val heartbeatTimeoutMillis: Long = 90_000L,
     private val dashBindAddr: String? = null,
     private val dashboardBindPort: Int? = null,
     private val onTunnelStateListener: OnTunnelStateListener? = null
 ) : TunnelConnectDescriptor.OnConnectFailureCallback, OnTunnelStateCallback {
+
+    init {
+        // 在创建 EventLoopGroup 之前检查，配置错误时不会遗留线程
+        HeartbeatHandler.checkArgs(heartbeatIntervalMillis, heartbeatTimeoutMillis)
+    }
+
     private val logger by loggerDelegate()
     private val cachedSslBootstraps = ConcurrentHashMap<SslContext, Bootstrap>()
     private val bootstrap = Bootstrap()
-    private val workerGroup = if ((workerThreads >= 0)) NioEventLoopGroup(workerThreads) else NioEventLoopGroup()
+    private val workerGroup = transport.newEventLoopGroup(workerThreads)
     private val localTcpClient: LocalTcpClient
     private val tunnelConnectRegistry = TunnelConnectRegistry()
     private var dashboardServer: DashboardServer? = null
     private val lock = ReentrantLock()
+    val metrics = MetricsRegistry()
 
     private fun tryReconnect(descriptor: TunnelConnectDescriptor) {
-        if (!descriptor.isClosed && (loseReconnect || errorReconnect)) {
-            // 连接失败，3秒后发起重连
-            TimeUnit.SECONDS.sleep(3)
-            descriptor.connect(this)
-            onTunnelStateListener?.onConnecting(descriptor, true)
-        } else {
+        val attempts = descriptor.reconnectAttempts.incrementAndGet()
+        if (descriptor.isClosed || !(loseReconnect || errorReconnect) ||
+            (reconnectMaxAttempts >= 0 && attempts > reconnectMaxAttempts)
+        ) {
             // 不需要自动重连时移除缓存
             tunnelConnectRegistry.unregister(descriptor)
+            metrics.unregister(descriptor)
+            descriptor.releaseLocalChannelPool()
+            return
+        }
+        val delayMillis = if (circuitFailureThreshold > 0 && attempts >= circuitFailureThreshold) {
+            updateCircuitState(descriptor, CircuitState.OPEN)
+            circuitOpenMillis
+        } else {
+            getReconnectDelayMillis(attempts)
+        }
+        logger.debug("Reconnect {} after {}ms, attempts: {}", descriptor, delayMillis, attempts)
+        // 定时重连，不阻塞 EventLoop
+        workerGroup.schedule(Runnable {
+            if (!descriptor.isClosed) {
+                if (descriptor.circuitState == CircuitState.OPEN) {
+                    updateCircuitState(descriptor, CircuitState.HALF_OPEN)
+                }
+                descriptor.connect(this)
+                onTunnelStateListener?.onConnecting(descriptor, true)
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS)
+    }
+
+    /** 指数退避，在 [delay / 2, delay] 之间随机取值，避免大量客户端同时重连 */
+    private fun getReconnectDelayMillis(attempts: Int): Long {
+        val shift = (attempts - 1).coerceIn(0, 30)
+        val delay = (reconnectBaseDelayMillis shl shift).coerceIn(1L, reconnectMaxDelayMillis.coerceAtLeast(1L))
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1)
+    }
+
+    private fun updateCircuitState(descriptor: TunnelConnectDescriptor, state: CircuitState) {
+        if (descriptor.circuitState != state) {
+            descriptor.circuitState = state
+            onTunnelStateListener?.onCircuitStateChanged(descriptor, state)
         }
     }
 
@@ -80,20 +152,74 @@ class TunnelClient(
         super.onTunnelConnected(ctx)
         val descriptor = ctx.channel().attr(AttributeKeys.AK_TUNNEL_CONNECT_DESCRIPTOR).get()
         if (descriptor != null) {
+            installCompression(ctx, descriptor.finallyTunnelRequest)
+            installMetrics(ctx, descriptor)
+            descriptor.reconnectAttempts.set(0)
+            updateCircuitState(descriptor, CircuitState.CLOSED)
+            descriptor.localChannelPool?.start()
             onTunnelStateListener?.onConnected(descriptor)
+            if (descriptor.primary == null && descriptor.connections > 1 && descriptor.stripes.isEmpty()) {
+                connectStripes(descriptor)
+            }
+        }
+    }
+
+    /** 服务端选定了压缩算法时，在后续消息到达之前加入压缩处理器 */
+    private fun installCompression(ctx: ChannelHandlerContext, tunnelRequest: TunnelRequest?) {
+        val compression = Compression.of(tunnelRequest?.option(TunnelRequest.OPTION_COMPRESSION)) ?: return
+        if (ctx.pipeline().get("compression") == null) {
+            ctx.pipeline().addBefore("handler", "compression", CompressionHandler(compression, compressionThreshold))
+        }
+    }
+
+    /** 条带连接与主连接共用一份指标，等待写出的字节数只统计主连接 */
+    private fun installMetrics(ctx: ChannelHandlerContext, descriptor: TunnelConnectDescriptor) {
+        val tunnelMetrics = metrics[descriptor.primary ?: descriptor] ?: return
+        ctx.channel().attr(AttributeKeys.AK_TUNNEL_METRICS).set(tunnelMetrics)
+        if (descriptor.primary == null) {
+            tunnelMetrics.queuedBytesOf(ctx.channel())
+        }
+        if (ctx.pipeline().get("metrics") == null) {
+            ctx.pipeline().addBefore("handler", "metrics", MetricsHandler(tunnelMetrics))
+            ctx.pipeline().get(HeartbeatHandler::class.java)?.also { heartbeat ->
+                if (descriptor.primary == null) {
+                    tunnelMetrics.rtt = heartbeat.rtt
+                }
+                heartbeat.onRttSample = { tunnelMetrics.rttHistogram.observeNanos(it) }
+            }
+        }
+    }
+
+    /** 主连接建立成功后再建立条带连接，服务端分配的随机端口等以主连接的结果为准 */
+    private fun connectStripes(primary: TunnelConnectDescriptor) {
+        val tunnelRequest = primary.finallyTunnelRequest ?: primary.tunnelRequest
+        for (i in 1 until primary.connections) {
+            val descriptor = TunnelConnectDescriptor(
+                primary.bootstrap,
+                primary.serverAddr,
+                primary.serverPort,
+                tunnelRequest,
+                primary.localChannelPool,
+                jsonTunnelRequest,
+                primary = primary
+            )
+            primary.stripes.add(descriptor)
+            descriptor.connect(this)
+            onTunnelStateListener?.onConnecting(descriptor, false)
+            tunnelConnectRegistry.register(descriptor)
         }
     }
 
     override fun onConnectFailure(descriptor: TunnelConnectDescriptor) {
         super.onConnectFailure(descriptor)
+        metrics[descriptor.primary ?: descriptor]?.connectFailures?.increment()
         tryReconnect(descriptor)
     }
 
     init {
-        localTcpClient = LocalTcpClient(workerGroup)
-        bootstrap
-            .group(workerGroup)
-            .channel(NioSocketChannel::class.java)
+        localTcpClient = LocalTcpClient(workerGroup, transport, sessionAffinity)
+        bootstrap.group(workerGroup)
+        transport.configure(bootstrap)
             .option(ChannelOption.AUTO_READ, true)
             .option(ChannelOption.SO_KEEPALIVE, true)
             .handler(createChannelInitializer(null))
@@ -103,15 +229,47 @@ class TunnelClient(
         serverAddr: String,
         serverPort: Int,
         tunnelRequest: TunnelRequest,
-        sslContext: SslContext? = null
+        sslContext: SslContext? = null,
+        localPoolMinIdle: Int = 0,
+        localPoolMaxIdle: Int = 0,
+        localPoolIdleTimeoutMillis: Long = 60_000L,
+        connections: Int = 1
     ): TunnelConnectDescriptor {
+        require(connections >= 1) { "connections < 1" }
         startDashboardServer()
+        // 多条连接在服务端组成负载均衡组，默认按会话数分配
+        @Suppress("NAME_SHADOWING")
+        val tunnelRequest = if (connections > 1 && tunnelRequest.option(TunnelRequest.OPTION_LOAD_BALANCE) == null) {
+            tunnelRequest.withOption(TunnelRequest.OPTION_LOAD_BALANCE, "least_sessions")
+        } else {
+            tunnelRequest
+        }.let {
+            if (compressions.isNotEmpty() && it.option(TunnelRequest.OPTION_COMPRESSION) == null) {
+                it.withOption(TunnelRequest.OPTION_COMPRESSION, compressions.joinToString(",") { c -> c.optionName })
+            } else {
+                it
+            }
+        }.let {
+            // 旧版本服务端会忽略该字段，继续使用 v1
+            if (protoVersion > ProtoMessageEncoder.VERSION_1) it.offerProtoVersion(protoVersion) else it
+        }
         val descriptor = TunnelConnectDescriptor(
             if (sslContext == null) bootstrap else getSslBootstrap(sslContext),
             serverAddr,
             serverPort,
-            tunnelRequest
+            tunnelRequest,
+            if (localPoolMaxIdle > 0) {
+                localTcpClient.newChannelPool(
+                    tunnelRequest.localAddr, tunnelRequest.localPort,
+                    localPoolMinIdle, localPoolMaxIdle, localPoolIdleTimeoutMillis
+                )
+            } else {
+                null
+            },
+            jsonTunnelRequest,
+            connections
         )
+        metrics.register(descriptor, newTunnelMetrics(tunnelRequest))
         descriptor.connect(this)
         onTunnelStateListener?.onConnecting(descriptor, false)
         tunnelConnectRegistry.register(descriptor)
@@ -120,7 +278,22 @@ class TunnelClient(
 
     fun close(descriptor: TunnelConnectDescriptor) {
         descriptor.close()
+        descriptor.stripes.forEach { tunnelConnectRegistry.unregister(it) }
         tunnelConnectRegistry.unregister(descriptor)
+        metrics.unregister(descriptor)
+    }
+
+    private fun newTunnelMetrics(tunnelRequest: TunnelRequest): TunnelMetrics {
+        return TunnelMetrics(linkedMapOf(
+            "type" to tunnelRequest.type.name.toLowerCase(),
+            "name" to (tunnelRequest.name ?: ""),
+            "local" to "${tunnelRequest.localAddr}:${tunnelRequest.localPort}",
+            "remote" to if (tunnelRequest.type == TunnelRequest.Type.TCP) {
+                tunnelRequest.remotePort.toString()
+            } else {
+                tunnelRequest.host
+            }
+        ))
     }
 
     fun destroy() = lock.withLock {
@@ -137,7 +310,8 @@ class TunnelClient(
                 bossGroup = workerGroup,
                 workerGroup = workerGroup,
                 bindAddr = dashBindAddr,
-                bindPort = dashboardBindPort
+                bindPort = dashboardBindPort,
+                transport = transport
             ).router {
                 route("/api/snapshot") {
                     DefaultFullHttpResponse(
@@ -146,6 +320,13 @@ class TunnelClient(
                         Unpooled.copiedBuffer(tunnelConnectRegistry.snapshot.toString(2), Charsets.UTF_8)
                     )
                 }
+                route("/metrics") {
+                    DefaultFullHttpResponse(
+                        HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.OK,
+                        Unpooled.copiedBuffer(metrics.scrape(), Charsets.UTF_8)
+                    ).apply { headers().set(HttpHeaderNames.CONTENT_TYPE, MetricsRegistry.CONTENT_TYPE) }
+                }
             }
             dashboardServer = server
             server.start()
@@ -153,9 +334,7 @@ class TunnelClient(
     }
 
     private fun getSslBootstrap(sslContext: SslContext): Bootstrap {
-        return cachedSslBootstraps[sslContext] ?: Bootstrap()
-            .group(workerGroup)
-            .channel(NioSocketChannel::class.java)
+        return cachedSslBootstraps[sslContext] ?: transport.configure(Bootstrap().group(workerGroup))
             .option(ChannelOption.AUTO_READ, true)
             .option(ChannelOption.SO_KEEPALIVE, true)
             .handler(createChannelInitializer(sslContext)).also { cachedSslBootstraps[sslContext] = it }
@@ -168,10 +347,14 @@ class TunnelClient(
                 ch.pipeline()
                     .addFirst("ssl", sslContext.newHandler(ch.alloc()))
             }
+            if (flushMaxBytes > 0) {
+                ch.pipeline()
+                    .addLast("flush", FlushCoalescingHandler(flushMaxDelayMicros, flushMaxBytes))
+            }
             ch.pipeline()
-                .addLast("heartbeat", HeartbeatHandler())
                 .addLast("decoder", ProtoMessageDecoder())
                 .addLast("encoder", ProtoMessageEncoder())
+                .addLast("heartbeat", HeartbeatHandler(heartbeatIntervalMillis, heartbeatTimeoutMillis))
                 .addLast("handler", TunnelClientChannelHandler(
                     localTcpClient, this@TunnelClient
                 ))
@@ -2,6 +2,7 @@
 
 package lighttunnel.client
 
+import io.netty.buffer.ByteBufUtil
 import io.netty.buffer.Unpooled
 import io.netty.channel.Channel
 import io.netty.channel.ChannelFutureListener
@@ -11,10 +12,11 @@ import lighttunnel.client.callback.OnTunnelStateCallback
 import lighttunnel.client.local.LocalTcpClient
 import lighttunnel.client.util.AttributeKeys
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.proto.FlowWindow
 import lighttunnel.proto.ProtoMessage
+import lighttunnel.proto.ProtoMessageEncoder
 import lighttunnel.proto.ProtoMessageType
 import lighttunnel.proto.TunnelRequest
-import lighttunnel.util.LongUtil
 import java.nio.charset.StandardCharsets
 
 class TunnelClientChannelHandler(
@@ -27,17 +29,10 @@ class TunnelClientChannelHandler(
     override fun channelInactive(ctx: ChannelHandlerContext?) {
         // 隧道断开
         if (ctx != null) {
-            val request = ctx.channel().attr(AttributeKeys.AK_TUNNEL_REQUEST).get()
+            // 关闭该隧道下的所有本地连接
             val tunnelId = ctx.channel().attr(AttributeKeys.AK_TUNNEL_ID).get()
-            val sessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get()
-            when (request?.type) {
-                TunnelRequest.Type.TCP, TunnelRequest.Type.HTTP, TunnelRequest.Type.HTTPS -> {
-                    if (tunnelId != null && sessionId != null) {
-                        localTcpClient.removeLocalChannel(tunnelId, sessionId)?.close()
-                    }
-                }
-                else -> {
-                }
+            if (tunnelId != null) {
+                localTcpClient.removeLocalChannels(tunnelId).forEach { it.close() }
             }
             onTunnelStateCallback.onTunnelInactive(ctx)
         }
@@ -57,32 +52,30 @@ class TunnelClientChannelHandler(
         ctx ?: return
         msg ?: return
         when (msg.type) {
-            ProtoMessageType.PING -> doHandlePingMessage(ctx, msg)
             ProtoMessageType.RESPONSE_OK -> doHandleResponseOkMessage(ctx, msg)
             ProtoMessageType.RESPONSE_ERR -> doHandleResponseErrMessage(ctx, msg)
             ProtoMessageType.TRANSFER -> doHandleTransferMessage(ctx, msg)
             ProtoMessageType.REMOTE_CONNECTED -> doHandleRemoteConnectedMessage(ctx, msg)
             ProtoMessageType.REMOTE_DISCONNECT -> doHandleRemoteDisconnectMessage(ctx, msg)
+            ProtoMessageType.WINDOW_UPDATE -> doHandleWindowUpdateMessage(ctx, msg)
             else -> {
             }
         }
     }
 
-    /** Ping */
-    @Throws(Exception::class)
-    private fun doHandlePingMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
-        ctx.writeAndFlush(ProtoMessage(ProtoMessageType.PONG))
-    }
-
     /** 隧道建立成功 */
     @Throws(Exception::class)
     private fun doHandleResponseOkMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
-        val request = TunnelRequest.fromBytes(msg.data)
+        val request = TunnelRequest.fromBytes(ByteBufUtil.getBytes(msg.data))
         ctx.channel().attr(AttributeKeys.AK_TUNNEL_ID).set(msg.tunnelId)
         ctx.channel().attr(AttributeKeys.AK_TUNNEL_REQUEST).set(request)
         ctx.channel().attr(AttributeKeys.AK_ERROR_FLAG).set(null)
         ctx.channel().attr(AttributeKeys.AK_ERROR_CAUSE).set(null)
         ctx.channel().attr(AttributeKeys.AK_TUNNEL_CONNECT_DESCRIPTOR).get()?.finallyTunnelRequest = request
+        // 服务端确认后按协商的版本编码，之后的消息都在 RESPONSE_OK 之后发出
+        if (request.grantedProtoVersion > ProtoMessageEncoder.VERSION_1) {
+            ctx.pipeline().replace("encoder", "encoder", ProtoMessageEncoder(request.grantedProtoVersion))
+        }
         logger.debug("Opened Tunnel: {}", request)
         onTunnelStateCallback.onTunnelConnected(ctx)
     }
@@ -103,11 +96,12 @@ class TunnelClientChannelHandler(
     @Throws(Exception::class)
     private fun doHandleTransferMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
         logger.trace("handleTransferMessage: msg: {}", msg)
-        ctx.channel().attr(AttributeKeys.AK_TUNNEL_ID).set(msg.tunnelId)
-        ctx.channel().attr(AttributeKeys.AK_SESSION_ID).set(msg.sessionId)
         val request = ctx.channel().attr(AttributeKeys.AK_TUNNEL_REQUEST).get()
         when (request?.type) {
             TunnelRequest.Type.TCP, TunnelRequest.Type.HTTP, TunnelRequest.Type.HTTPS -> {
+                // 本地连接可能异步建立，data 需在回调中使用，这里先 retain
+                val data = msg.data.retain()
+                val length = data.readableBytes()
                 localTcpClient.getLocalChannel(
                     request.localAddr, request.localPort,
                     msg.tunnelId, msg.sessionId,
@@ -115,13 +109,20 @@ class TunnelClientChannelHandler(
                     object : LocalTcpClient.OnGetLocalChannelCallback {
                         override fun onSuccess(localChannel: Channel) {
                             super.onSuccess(localChannel)
-                            localChannel.writeAndFlush(Unpooled.wrappedBuffer(msg.data))
+                            val future = localChannel.writeAndFlush(data)
+                            val flowWindow = localChannel.attr(AttributeKeys.AK_LOCAL_SESSION).get()?.flowWindow ?: return
+                            // 数据写出到本地后才归还额度
+                            future.addListener {
+                                if (it.isSuccess) {
+                                    ctx.channel().writeWindowUpdate(msg.tunnelId, msg.sessionId, flowWindow.onWritten(length))
+                                }
+                            }
                         }
 
                         override fun onError(cause: Throwable) {
                             super.onError(cause)
-                            val head = LongUtil.toBytes(msg.tunnelId, msg.sessionId)
-                            ctx.writeAndFlush(ProtoMessage(ProtoMessageType.LOCAL_DISCONNECT, head))
+                            data.release()
+                            ctx.writeAndFlush(ProtoMessage(ProtoMessageType.LOCAL_DISCONNECT, msg.tunnelId, msg.sessionId))
                         }
                     })
             }
@@ -134,8 +135,6 @@ class TunnelClientChannelHandler(
     /** 连接本地隧道消息 */
     @Throws(Exception::class)
     private fun doHandleRemoteConnectedMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
-        ctx.channel().attr(AttributeKeys.AK_TUNNEL_ID).set(msg.tunnelId)
-        ctx.channel().attr(AttributeKeys.AK_SESSION_ID).set(msg.sessionId)
         val tunnelRequest = ctx.channel().attr(AttributeKeys.AK_TUNNEL_REQUEST).get()
         if (tunnelRequest != null) {
             localTcpClient.getLocalChannel(
@@ -155,4 +154,17 @@ class TunnelClientChannelHandler(
             ?.addListener(ChannelFutureListener.CLOSE)
     }
 
+    /** 流控窗口更新消息 */
+    @Throws(Exception::class)
+    private fun doHandleWindowUpdateMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
+        val localChannel = localTcpClient.getLocalChannel(msg.tunnelId, msg.sessionId) ?: return
+        localChannel.attr(AttributeKeys.AK_LOCAL_SESSION).get()?.flowWindow?.onUpdate(localChannel, FlowWindow.readUpdate(msg.data))
+    }
+
+    private fun Channel.writeWindowUpdate(tunnelId: Long, sessionId: Long, bytes: Int) {
+        if (bytes > 0) {
+            writeAndFlush(ProtoMessage(ProtoMessageType.WINDOW_UPDATE, tunnelId, sessionId, Unpooled.copyInt(bytes)))
+        }
+    }
+
 }
\ No newline at end of file
@@ -1,9 +1,11 @@
 package lighttunnel.client.callback
 
+import lighttunnel.client.connect.CircuitState
 import lighttunnel.client.connect.TunnelConnectDescriptor
 
 interface OnTunnelStateListener {
     fun onConnecting(descriptor: TunnelConnectDescriptor, reconnect: Boolean) {}
     fun onConnected(descriptor: TunnelConnectDescriptor) {}
     fun onDisconnect(descriptor: TunnelConnectDescriptor, err: Boolean, errCause: Throwable?) {}
+    fun onCircuitStateChanged(descriptor: TunnelConnectDescriptor, state: CircuitState) {}
 }
\ No newline at end of file
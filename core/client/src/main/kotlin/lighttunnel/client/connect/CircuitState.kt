@@ -0,0 +1,13 @@
+package lighttunnel.client.connect
+
+/**
+ * 重连熔断状态
+ */
+enum class CircuitState {
+    /** 正常，失败后按指数退避重连 */
+    CLOSED,
+    /** 连续失败次数过多，暂停重连 */
+    OPEN,
+    /** 暂停结束，尝试一次重连 */
+    HALF_OPEN
+}
@@ -1,30 +1,80 @@
 package lighttunnel.client.connect
 
 import io.netty.bootstrap.Bootstrap
+import io.netty.channel.Channel
 import io.netty.channel.ChannelFuture
 import io.netty.channel.ChannelFutureListener
+import lighttunnel.client.local.LocalChannelPool
 import lighttunnel.client.util.AttributeKeys
 import lighttunnel.logger.loggerDelegate
 import lighttunnel.proto.ProtoMessage
 import lighttunnel.proto.ProtoMessageType
 import lighttunnel.proto.TunnelRequest
+import lighttunnel.proto.TunnelRequest.Factory.withRemotePort
+import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 
+/**
+ * @param connections 条带连接数，大于 1 时主连接建立成功后再建立其余的连接，服务端将它们作为一个负载均衡组
+ * @param primary 条带连接所属的主连接，条带连接与主连接共用本地连接池，最后一个释放的连接销毁连接池
+ */
 class TunnelConnectDescriptor(
-    private val bootstrap: Bootstrap,
+    internal val bootstrap: Bootstrap,
     val serverAddr: String,
     val serverPort: Int,
-    val tunnelRequest: TunnelRequest
+    val tunnelRequest: TunnelRequest,
+    val localChannelPool: LocalChannelPool? = null,
+    private val jsonTunnelRequest: Boolean = false,
+    val connections: Int = 1,
+    val primary: TunnelConnectDescriptor? = null
 ) {
     private val logger by loggerDelegate()
     private val closedFlag = AtomicBoolean(false)
+    private val localChannelPoolReleased = AtomicBoolean(false)
     private var connectChannelFuture: ChannelFuture? = null
 
     var finallyTunnelRequest: TunnelRequest? = null
         internal set
 
+    init {
+        if (primary != null) {
+            localChannelPool?.retain()
+        }
+    }
+
     val isClosed get() = closedFlag.get()
 
+    /** 当前的隧道连接，未连接时为 null */
+    internal val tunnelChannel: Channel? get() = connectChannelFuture?.channel()
+
+    /** 连续重连失败次数，隧道建立成功后清零 */
+    internal val reconnectAttempts = AtomicInteger(0)
+
+    @Volatile
+    var circuitState = CircuitState.CLOSED
+        internal set
+
+    /** 主连接的条带连接，不包括主连接本身 */
+    internal val stripes = CopyOnWriteArrayList<TunnelConnectDescriptor>()
+
+    /**
+     * 本次连接发送的隧道请求
+     *
+     * 远程端口为 0 时由服务端分配，条带连接使用服务端确认的端口；主连接重连时若仍有条带连接，
+     * 也使用确认的端口，重新加入原来的负载均衡组，否则会被分配到另一个端口
+     */
+    private val connectTunnelRequest: TunnelRequest
+        get() {
+            val confirmed = finallyTunnelRequest
+            if (stripes.isEmpty() || confirmed == null ||
+                tunnelRequest.type != TunnelRequest.Type.TCP || tunnelRequest.remotePort != 0
+            ) {
+                return tunnelRequest
+            }
+            return tunnelRequest.withRemotePort(confirmed.remotePort)
+        }
+
     internal fun connect(callback: OnConnectFailureCallback? = null) {
         if (closedFlag.get()) {
             logger.warn("This tunnel already closed.")
@@ -36,7 +86,9 @@ class TunnelConnectDescriptor(
             .addListener(ChannelFutureListener { future ->
                 if (future.isSuccess) {
                     // 连接成功，向服务器发送请求建立隧道消息
-                    future.channel().writeAndFlush(ProtoMessage(ProtoMessageType.REQUEST, head = tunnelRequest.toBytes()))
+                    val request = connectTunnelRequest
+                    val head = if (jsonTunnelRequest) request.toJsonBytes() else request.toBytes()
+                    future.channel().writeAndFlush(ProtoMessage(ProtoMessageType.REQUEST, head = head))
                     future.channel().attr(AttributeKeys.AK_TUNNEL_CONNECT_DESCRIPTOR).set(this)
                 } else {
                     callback?.onConnectFailure(this)
@@ -46,12 +98,21 @@ class TunnelConnectDescriptor(
 
     internal fun close() {
         closedFlag.set(true)
+        stripes.forEach { it.close() }
+        releaseLocalChannelPool()
         connectChannelFuture?.apply {
             channel().attr(AttributeKeys.AK_TUNNEL_CONNECT_DESCRIPTOR).set(null)
             channel().close()
         }
     }
 
+    /** 释放该连接持有的连接池引用，重复调用只释放一次 */
+    internal fun releaseLocalChannelPool() {
+        if (localChannelPoolReleased.compareAndSet(false, true)) {
+            localChannelPool?.release()
+        }
+    }
+
     override fun toString(): String {
         return finallyTunnelRequest?.toString(serverAddr) ?: tunnelRequest.toString(serverAddr)
     }
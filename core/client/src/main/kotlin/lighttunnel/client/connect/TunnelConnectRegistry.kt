@@ -1,5 +1,6 @@
 package lighttunnel.client.connect
 
+import lighttunnel.proto.HeartbeatHandler
 import lighttunnel.proto.ProtoException
 import org.json.JSONArray
 import org.json.JSONObject
@@ -30,6 +31,10 @@ class TunnelConnectRegistry {
                 array.put(JSONObject().also {
                     it.put("name", request.name)
                     it.put("tunnel", request.toString(descriptor.serverAddr))
+                    descriptor.tunnelChannel?.let { ch -> HeartbeatHandler.rttOf(ch) }?.takeIf { rtt -> rtt.hasSample }?.also { rtt ->
+                        it.put("rtt_ms", rtt.srttMillis)
+                        it.put("rtt_jitter_ms", rtt.jitterMillis)
+                    }
                 })
             }
             return array
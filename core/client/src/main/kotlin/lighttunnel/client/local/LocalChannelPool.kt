@@ -0,0 +1,166 @@
+package lighttunnel.client.local
+
+import io.netty.bootstrap.Bootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelFutureListener
+import io.netty.channel.socket.DuplexChannel
+import io.netty.util.concurrent.ScheduledFuture
+import lighttunnel.logger.loggerDelegate
+import lighttunnel.util.ReadPause
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 本地连接池
+ *
+ * 预先建立到 localAddr:localPort 的连接，新会话直接取用，省去首包等待建连的时间；
+ * 会话结束后连接随之关闭，不会放回连接池
+ *
+ * 空闲连接暂停读取（[ReadPause.Reason.IDLE]），绑定会话后恢复；定时检查时对空闲连接发起一次读取，
+ * 已关闭或半关闭的连接被移除，本地服务先发送的数据缓存到绑定会话后转发
+ *
+ * 主连接和条带连接共用同一个连接池，各自持有一个引用（[retain]），全部 [release] 后才销毁
+ *
+ * @param minIdle 最少空闲连接数
+ * @param maxIdle 最多空闲连接数，取用时连接池为空会逐步提高预热数量直到该值
+ * @param idleTimeoutMillis 空闲超时，超时的连接在多于 minIdle 时被关闭
+ */
+class LocalChannelPool internal constructor(
+    private val bootstrap: Bootstrap,
+    private val localAddr: String,
+    private val localPort: Int,
+    private val minIdle: Int,
+    private val maxIdle: Int,
+    private val idleTimeoutMillis: Long
+) {
+    private val logger by loggerDelegate()
+    private val idleChannels = ConcurrentLinkedDeque<PooledChannel>()
+    /** 空闲连接数，包含正在建立的连接 */
+    private val idleCount = AtomicInteger(0)
+    private val targetIdle = AtomicInteger(minIdle)
+    private val closedFlag = AtomicBoolean(false)
+    private val refCnt = AtomicInteger(1)
+    @Volatile
+    private var evictFuture: ScheduledFuture<*>? = null
+
+    init {
+        require(minIdle in 0..maxIdle) { "require 0 <= minIdle <= maxIdle" }
+        require(idleTimeoutMillis > 0) { "idleTimeoutMillis <= 0" }
+    }
+
+    val idleChannelCount get() = idleChannels.size
+
+    val isDestroyed get() = closedFlag.get()
+
+    /** 增加一个引用，条带连接共用主连接的连接池时调用 */
+    internal fun retain(): LocalChannelPool {
+        refCnt.incrementAndGet()
+        return this
+    }
+
+    /** 释放一个引用，最后一个引用释放时销毁连接池 */
+    internal fun release() {
+        if (refCnt.decrementAndGet() == 0) {
+            destroy()
+        }
+    }
+
+    /** 开始预热并定时检查空闲连接 */
+    @Synchronized
+    fun start() {
+        if (closedFlag.get() || evictFuture != null) {
+            return
+        }
+        val period = (idleTimeoutMillis / 2).coerceAtLeast(1000)
+        evictFuture = bootstrap.config().group().next().scheduleAtFixedRate({
+            evict()
+            fill()
+        }, period, period, TimeUnit.MILLISECONDS)
+        fill()
+    }
+
+    /** 取出一个可用的空闲连接，没有时返回 null */
+    fun acquire(): Channel? {
+        while (true) {
+            val pooled = idleChannels.pollFirst() ?: break
+            idleCount.decrementAndGet()
+            if (pooled.channel.isUsable) {
+                fill()
+                return pooled.channel
+            }
+            pooled.channel.close()
+        }
+        // 连接池不够用，提高预热数量
+        targetIdle.getAndUpdate { (it + 1).coerceAtMost(maxIdle) }
+        fill()
+        return null
+    }
+
+    fun destroy() {
+        if (!closedFlag.compareAndSet(false, true)) {
+            return
+        }
+        evictFuture?.cancel(false)
+        evictFuture = null
+        drain()
+    }
+
+    private fun fill() {
+        while (!closedFlag.get()) {
+            val count = idleCount.get()
+            if (count >= targetIdle.get()) {
+                return
+            }
+            if (idleCount.compareAndSet(count, count + 1)) {
+                connect()
+            }
+        }
+    }
+
+    private fun connect() {
+        bootstrap.connect(localAddr, localPort).addListener(ChannelFutureListener { future ->
+            if (future.isSuccess) {
+                ReadPause.pause(future.channel(), ReadPause.Reason.IDLE)
+                idleChannels.offerLast(PooledChannel(future.channel(), System.currentTimeMillis()))
+                if (closedFlag.get()) {
+                    drain()
+                }
+            } else {
+                idleCount.decrementAndGet()
+                logger.trace("connect {}:{} failure: {}", localAddr, localPort, future.cause()?.message)
+            }
+        })
+    }
+
+    internal fun evict() {
+        val now = System.currentTimeMillis()
+        val iterator = idleChannels.iterator()
+        while (iterator.hasNext()) {
+            val pooled = iterator.next()
+            val expired = now - pooled.idleSince >= idleTimeoutMillis && idleCount.get() > minIdle
+            if ((!pooled.channel.isUsable || expired) && idleChannels.remove(pooled)) {
+                idleCount.decrementAndGet()
+                pooled.channel.close()
+            } else {
+                // 读取一次以发现对端已关闭的连接，下次检查时移除
+                pooled.channel.read()
+            }
+        }
+        targetIdle.set(idleCount.get().coerceIn(minIdle, maxIdle))
+    }
+
+    private fun drain() {
+        while (true) {
+            val pooled = idleChannels.pollFirst() ?: break
+            idleCount.decrementAndGet()
+            pooled.channel.close()
+        }
+    }
+
+    private val Channel.isUsable get() = isActive && (this as? DuplexChannel)?.isInputShutdown != true
+
+    private class PooledChannel(val channel: Channel, val idleSince: Long)
+
+}
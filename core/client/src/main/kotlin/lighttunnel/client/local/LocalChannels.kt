@@ -0,0 +1,141 @@
+package lighttunnel.client.local
+
+import io.netty.channel.Channel
+import io.netty.util.collection.LongObjectHashMap
+
+/**
+ * 按 (tunnelId, sessionId) 缓存本地连接，查找时使用原始 long，不装箱
+ *
+ * 隧道数量少且很少变化，外层采用写时复制；每个隧道内按 sessionId 分段写时复制，
+ * 转发数据时的查找全程无锁，只有建立、关闭会话时锁住所在的一段
+ */
+internal class LocalChannels {
+
+    @Volatile
+    private var tunnels = LongObjectHashMap<TunnelChannels>()
+
+    operator fun get(tunnelId: Long, sessionId: Long): Channel? {
+        return tunnels.get(tunnelId)?.get(sessionId)
+    }
+
+    fun put(tunnelId: Long, sessionId: Long, channel: Channel) {
+        // 隧道下的连接被整体移除后，重新创建该隧道的缓存，与移除前的语义一致
+        while (!tunnelChannelsOf(tunnelId).put(sessionId, channel)) {
+            // retry
+        }
+    }
+
+    fun remove(tunnelId: Long, sessionId: Long): Channel? {
+        return tunnels.get(tunnelId)?.remove(sessionId)
+    }
+
+    /** 移除隧道下的所有连接 */
+    fun remove(tunnelId: Long): Collection<Channel> {
+        val removed = synchronized(this) {
+            val current = tunnels
+            val tunnelChannels = current.get(tunnelId) ?: return emptyList()
+            tunnels = LongObjectHashMap<TunnelChannels>(current.size).also {
+                it.putAll(current)
+                it.remove(tunnelId)
+            }
+            tunnelChannels
+        }
+        return removed.close()
+    }
+
+    /** 移除所有连接 */
+    fun clear(): Collection<Channel> {
+        val removed = synchronized(this) {
+            val current = tunnels
+            tunnels = LongObjectHashMap()
+            current.values
+        }
+        return removed.flatMap { it.close() }
+    }
+
+    override fun toString() = tunnels.toString()
+
+    private fun tunnelChannelsOf(tunnelId: Long): TunnelChannels {
+        tunnels.get(tunnelId)?.also { return it }
+        synchronized(this) {
+            val current = tunnels
+            current.get(tunnelId)?.also { return it }
+            val tunnelChannels = TunnelChannels()
+            tunnels = LongObjectHashMap<TunnelChannels>(current.size + 1).also {
+                it.putAll(current)
+                it.put(tunnelId, tunnelChannels)
+            }
+            return tunnelChannels
+        }
+    }
+
+    /**
+     * sessionId -> Channel
+     *
+     * 按 sessionId 分段，每段是写时复制的 LongObjectHashMap，查找只读 volatile 字段，不加锁；
+     * 建立、关闭会话时只锁住并复制所在的一段，分段后每次复制的量约为会话数的 1 / STRIPES
+     */
+    private class TunnelChannels {
+
+        companion object {
+            private const val STRIPES = 16
+        }
+
+        private class Stripe {
+            @Volatile
+            var channels = LongObjectHashMap<Channel>()
+            /** 已被整体移除，只在持有该段的锁时读写 */
+            var closed = false
+        }
+
+        private val stripes = Array(STRIPES) { Stripe() }
+
+        private fun stripeOf(sessionId: Long) = stripes[(sessionId and (STRIPES - 1).toLong()).toInt()]
+
+        fun get(sessionId: Long): Channel? = stripeOf(sessionId).channels.get(sessionId)
+
+        /** 已被整体移除时返回 false */
+        fun put(sessionId: Long, channel: Channel): Boolean {
+            val stripe = stripeOf(sessionId)
+            synchronized(stripe) {
+                if (stripe.closed) {
+                    return false
+                }
+                val current = stripe.channels
+                stripe.channels = LongObjectHashMap<Channel>(current.size + 1).also {
+                    it.putAll(current)
+                    it.put(sessionId, channel)
+                }
+            }
+            return true
+        }
+
+        fun remove(sessionId: Long): Channel? {
+            val stripe = stripeOf(sessionId)
+            synchronized(stripe) {
+                val current = stripe.channels
+                val removed = current.get(sessionId) ?: return null
+                stripe.channels = LongObjectHashMap<Channel>(current.size).also {
+                    it.putAll(current)
+                    it.remove(sessionId)
+                }
+                return removed
+            }
+        }
+
+        fun close(): Collection<Channel> {
+            val values = ArrayList<Channel>()
+            for (stripe in stripes) {
+                synchronized(stripe) {
+                    stripe.closed = true
+                    values.addAll(stripe.channels.values)
+                    stripe.channels = LongObjectHashMap()
+                }
+            }
+            return values
+        }
+
+        override fun toString() = stripes.joinToString(prefix = "[", postfix = "]") { it.channels.toString() }
+    }
+
+}
@@ -0,0 +1,26 @@
+package lighttunnel.client.local
+
+import io.netty.channel.Channel
+import lighttunnel.metrics.TunnelMetrics
+import lighttunnel.proto.FlowWindow
+import lighttunnel.util.LongUtil
+
+/**
+ * 本地连接对应的会话上下文
+ *
+ * 由帧头中的 tunnelId、sessionId 确定，绑定在本地连接上，隧道连接上不保存任何会话状态
+ */
+class LocalSession(
+    val tunnelId: Long,
+    val sessionId: Long,
+    val tunnelChannel: Channel,
+    val flowWindow: FlowWindow?,
+    val metrics: TunnelMetrics? = null
+) {
+    /** 该会话所有消息共用的消息头 */
+    val head: ByteArray = LongUtil.toBytes(tunnelId, sessionId)
+
+    override fun toString(): String {
+        return "LocalSession(tunnelId=$tunnelId, sessionId=$sessionId)"
+    }
+}
@@ -6,24 +6,26 @@ import io.netty.channel.Channel
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelOption
-import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.EventLoopGroup
 import io.netty.channel.socket.SocketChannel
-import io.netty.channel.socket.nio.NioSocketChannel
 import lighttunnel.client.util.AttributeKeys
 import lighttunnel.logger.loggerDelegate
-import java.util.concurrent.ConcurrentHashMap
+import lighttunnel.proto.FlowWindow
+import lighttunnel.transport.Transport
 
 class LocalTcpClient(
-    workerGroup: NioEventLoopGroup
+    workerGroup: EventLoopGroup,
+    transport: Transport = Transport.DEFAULT,
+    private val sessionAffinity: Boolean = false
 ) {
     private val logger by loggerDelegate()
     private val bootstrap = Bootstrap()
-    private val cachedChannels = ConcurrentHashMap<String, Channel>()
+    /** (tunnelId, sessionId) -> Channel */
+    private val cachedChannels = LocalChannels()
 
     init {
-        this.bootstrap
-            .group(workerGroup)
-            .channel(NioSocketChannel::class.java)
+        this.bootstrap.group(workerGroup)
+        transport.configure(this.bootstrap)
             .option(ChannelOption.AUTO_READ, true)
             .option(ChannelOption.SO_KEEPALIVE, true)
             .handler(object : ChannelInitializer<SocketChannel>() {
@@ -47,7 +49,24 @@ class LocalTcpClient(
             callback?.onSuccess(cachedLocalChannel)
             return
         }
-        bootstrap.connect(localAddr, localPort).addListener(ChannelFutureListener { future ->
+        // 优先使用连接池中预先建立的连接
+        val pooledChannel = tunnelClientChannel.attr(AttributeKeys.AK_TUNNEL_CONNECT_DESCRIPTOR).get()
+            ?.localChannelPool?.acquire()
+        if (pooledChannel != null) {
+            bindChannel(pooledChannel, tunnelId, sessionId, tunnelClientChannel)
+            callback?.onSuccess(pooledChannel)
+            return
+        }
+        // 本地连接与隧道连接使用同一个 EventLoop，转发数据时无须切换线程
+        val connectBootstrap = if (sessionAffinity) bootstrap.clone(tunnelClientChannel.eventLoop()) else bootstrap
+        val metrics = tunnelClientChannel.attr(AttributeKeys.AK_TUNNEL_METRICS).get()
+        val startNanos = System.nanoTime()
+        connectBootstrap.connect(localAddr, localPort).addListener(ChannelFutureListener { future ->
+            if (future.isSuccess) {
+                metrics?.localConnectTime?.observeNanos(System.nanoTime() - startNanos)
+            } else {
+                metrics?.connectFailures?.increment()
+            }
             // 二次检查是否有可用的Channel缓存
             val localChannel = getCachedChannel(tunnelId, sessionId)
             if (localChannel != null && localChannel.isActive) {
@@ -57,10 +76,7 @@ class LocalTcpClient(
             }
             removeLocalChannel(tunnelId, sessionId)
             if (future.isSuccess) {
-                future.channel().attr(AttributeKeys.AK_TUNNEL_ID).set(tunnelId)
-                future.channel().attr(AttributeKeys.AK_SESSION_ID).set(sessionId)
-                future.channel().attr(AttributeKeys.AK_NEXT_CHANNEL).set(tunnelClientChannel)
-                putCachedChannel(tunnelId, sessionId, future.channel())
+                bindChannel(future.channel(), tunnelId, sessionId, tunnelClientChannel)
                 callback?.onSuccess(future.channel())
             } else {
                 callback?.onError(future.cause())
@@ -68,40 +84,63 @@ class LocalTcpClient(
         })
     }
 
+    fun newChannelPool(
+        localAddr: String, localPort: Int,
+        minIdle: Int, maxIdle: Int, idleTimeoutMillis: Long
+    ): LocalChannelPool {
+        // 空闲连接不读取数据，本地服务先发送的数据留在内核缓冲区中，绑定会话后再读取
+        val poolBootstrap = bootstrap.clone().option(ChannelOption.AUTO_READ, false)
+        return LocalChannelPool(poolBootstrap, localAddr, localPort, minIdle, maxIdle, idleTimeoutMillis)
+    }
+
+    fun getLocalChannel(tunnelId: Long, sessionId: Long): Channel? {
+        return getCachedChannel(tunnelId, sessionId)
+    }
+
     fun removeLocalChannel(tunnelId: Long, sessionId: Long): Channel? {
         return removeCachedChannel(tunnelId, sessionId)
     }
 
+    /** 移除隧道下的所有本地连接 */
+    fun removeLocalChannels(tunnelId: Long): Collection<Channel> {
+        val channels = cachedChannels.remove(tunnelId)
+        channels.forEach { it.localSessionClosed() }
+        return channels
+    }
+
     fun destroy() {
-        cachedChannels.values.forEach {
+        cachedChannels.clear().forEach {
             it.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
         }
-        cachedChannels.clear()
+    }
+
+    internal fun bindChannel(localChannel: Channel, tunnelId: Long, sessionId: Long, tunnelClientChannel: Channel) {
+        val flowWindow = tunnelClientChannel.attr(AttributeKeys.AK_TUNNEL_REQUEST).get()?.grantedFlowWindow ?: 0
+        val metrics = tunnelClientChannel.attr(AttributeKeys.AK_TUNNEL_METRICS).get()
+        localChannel.attr(AttributeKeys.AK_LOCAL_SESSION).set(LocalSession(
+            tunnelId, sessionId, tunnelClientChannel,
+            if (flowWindow > 0) FlowWindow(flowWindow) else null,
+            metrics
+        ))
+        putCachedChannel(tunnelId, sessionId, localChannel)
+        metrics?.sessionsOpened?.increment()
+        localChannel.pipeline().fireUserEventTriggered(LocalTcpClientChannelHandler.SESSION_BOUND)
+    }
+
+    private fun Channel.localSessionClosed() {
+        attr(AttributeKeys.AK_LOCAL_SESSION).get()?.metrics?.sessionsClosed?.increment()
     }
 
     private fun getCachedChannel(tunnelId: Long, sessionId: Long): Channel? {
-        val key = getCachedChannelKey(tunnelId, sessionId)
-        synchronized(cachedChannels) {
-            return cachedChannels[key]
-        }
+        return cachedChannels[tunnelId, sessionId]
     }
 
     private fun putCachedChannel(tunnelId: Long, sessionId: Long, channel: Channel) {
-        val key = getCachedChannelKey(tunnelId, sessionId)
-        synchronized(cachedChannels) {
-            cachedChannels.put(key, channel)
-        }
+        cachedChannels.put(tunnelId, sessionId, channel)
     }
 
     private fun removeCachedChannel(tunnelId: Long, sessionId: Long): Channel? {
-        val key = getCachedChannelKey(tunnelId, sessionId)
-        synchronized(cachedChannels) {
-            return cachedChannels.remove(key)
-        }
-    }
-
-    private fun getCachedChannelKey(tunnelId: Long, sessionId: Long): String {
-        return String.format("tunnelId:%d, sessionId:%d", tunnelId, sessionId)
+        return cachedChannels.remove(tunnelId, sessionId)?.also { it.localSessionClosed() }
     }
 
     interface OnGetLocalChannelCallback {
@@ -1,7 +1,6 @@
 package lighttunnel.client.local
 
 import io.netty.buffer.ByteBuf
-import io.netty.buffer.ByteBufUtil
 import io.netty.buffer.Unpooled
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.ChannelHandlerContext
@@ -10,28 +9,36 @@ import lighttunnel.client.util.AttributeKeys
 import lighttunnel.logger.loggerDelegate
 import lighttunnel.proto.ProtoMessageType
 import lighttunnel.proto.ProtoMessage
-import lighttunnel.util.LongUtil
+import lighttunnel.util.ReadPause
 
 class LocalTcpClientChannelHandler(
     private val localTcpClient: LocalTcpClient
 ) : SimpleChannelInboundHandler<ByteBuf>() {
 
+    companion object {
+        /** 会话绑定后在本地连接的 EventLoop 中触发，转发绑定前缓存的数据并恢复读取 */
+        internal val SESSION_BOUND = Any()
+
+        /** 绑定会话前最多缓存的字节数，本地服务主动发送的欢迎信息通常很短 */
+        private const val MAX_PENDING_BYTES = 64 * 1024
+    }
+
     private val logger by loggerDelegate()
 
+    /** 连接池中的连接绑定会话前读取到的数据，例如 SSH、SMTP、MySQL 等协议由服务端先发送的数据 */
+    private var pending: ByteBuf? = null
+
     @Throws(Exception::class)
     override fun channelInactive(ctx: ChannelHandlerContext) {
         logger.trace("channelInactive: {}", ctx)
-        val tunnelId = ctx.channel().attr(AttributeKeys.AK_TUNNEL_ID).get()
-        val sessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get()
-        if (tunnelId != null && sessionId != null) {
-            localTcpClient.removeLocalChannel(tunnelId, sessionId)
+        pending?.release()
+        pending = null
+        val session = ctx.channel().attr(AttributeKeys.AK_LOCAL_SESSION).get()
+        if (session != null) {
+            localTcpClient.removeLocalChannel(session.tunnelId, session.sessionId)
                 ?.writeAndFlush(Unpooled.EMPTY_BUFFER)
                 ?.addListener(ChannelFutureListener.CLOSE)
-            val nextChannel = ctx.channel().attr(AttributeKeys.AK_NEXT_CHANNEL).get()
-            if (nextChannel != null) {
-                val head = LongUtil.toBytes(tunnelId, sessionId)
-                nextChannel.writeAndFlush(ProtoMessage(ProtoMessageType.LOCAL_DISCONNECT, head))
-            }
+            session.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.LOCAL_DISCONNECT, session.head))
         }
         super.channelInactive(ctx)
     }
@@ -42,16 +49,43 @@ class LocalTcpClientChannelHandler(
         ctx.close()
     }
 
+    @Throws(Exception::class)
+    override fun userEventTriggered(ctx: ChannelHandlerContext, evt: Any) {
+        if (evt !== SESSION_BOUND) {
+            super.userEventTriggered(ctx, evt)
+            return
+        }
+        val session = ctx.channel().attr(AttributeKeys.AK_LOCAL_SESSION).get() ?: return
+        flushPending(ctx, session)
+        ReadPause.resume(ctx.channel(), ReadPause.Reason.IDLE)
+    }
+
     @Throws(Exception::class)
     override fun channelRead0(ctx: ChannelHandlerContext, msg: ByteBuf) {
-        val tunnelId = ctx.channel().attr(AttributeKeys.AK_TUNNEL_ID).get()
-        val sessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get()
-        val nextChannel = ctx.channel().attr(AttributeKeys.AK_NEXT_CHANNEL).get()
-        if (tunnelId != null && sessionId != null && nextChannel != null) {
-            val head = LongUtil.toBytes(tunnelId, sessionId)
-            val data = ByteBufUtil.getBytes(msg)
-            nextChannel.writeAndFlush(ProtoMessage(ProtoMessageType.TRANSFER, head, data))
+        val session = ctx.channel().attr(AttributeKeys.AK_LOCAL_SESSION).get()
+        if (session == null) {
+            val buf = pending ?: ctx.alloc().buffer(msg.readableBytes()).also { pending = it }
+            buf.writeBytes(msg)
+            if (buf.readableBytes() > MAX_PENDING_BYTES) {
+                logger.trace("too many bytes before session bound: {}", ctx)
+                ctx.close()
+            }
+            return
         }
+        flushPending(ctx, session)
+        forward(ctx, session, msg.retain())
+    }
+
+    private fun flushPending(ctx: ChannelHandlerContext, session: LocalSession) {
+        val buf = pending ?: return
+        pending = null
+        forward(ctx, session, buf)
+    }
+
+    private fun forward(ctx: ChannelHandlerContext, session: LocalSession, data: ByteBuf) {
+        val length = data.readableBytes()
+        session.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.TRANSFER, session.head, data))
+        session.flowWindow?.onSent(ctx.channel(), length)
     }
 
-}
\ No newline at end of file
+}
@@ -1,8 +1,9 @@
 package lighttunnel.client.util
 
-import io.netty.channel.Channel
 import io.netty.util.AttributeKey
 import lighttunnel.client.connect.TunnelConnectDescriptor
+import lighttunnel.client.local.LocalSession
+import lighttunnel.metrics.TunnelMetrics
 import lighttunnel.proto.TunnelRequest
 
 
@@ -10,10 +11,6 @@ object AttributeKeys {
 
     val AK_TUNNEL_ID: AttributeKey<Long> = AttributeKey.newInstance("\$tunnel_id")
 
-    val AK_SESSION_ID: AttributeKey<Long> = AttributeKey.newInstance("\$session_id")
-
-    val AK_NEXT_CHANNEL: AttributeKey<Channel> = AttributeKey.newInstance("\$next_channel")
-
     val AK_TUNNEL_REQUEST: AttributeKey<TunnelRequest> = AttributeKey.newInstance("\$tunnel_request")
 
     val AK_ERROR_FLAG: AttributeKey<Boolean> = AttributeKey.newInstance("\$error_flag")
@@ -21,4 +18,8 @@ object AttributeKeys {
     val AK_ERROR_CAUSE: AttributeKey<Throwable> = AttributeKey.newInstance("\$error_cause")
 
     val AK_TUNNEL_CONNECT_DESCRIPTOR: AttributeKey<TunnelConnectDescriptor> = AttributeKey.newInstance("\$tunnel_connect_descriptor")
+
+    val AK_LOCAL_SESSION: AttributeKey<LocalSession> = AttributeKey.newInstance("\$local_session")
+
+    val AK_TUNNEL_METRICS: AttributeKey<TunnelMetrics> = AttributeKey.newInstance("\$tunnel_metrics")
 }
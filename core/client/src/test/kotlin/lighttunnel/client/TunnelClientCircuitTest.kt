@@ -0,0 +1,62 @@
+package lighttunnel.client
+
+import lighttunnel.client.callback.OnTunnelStateListener
+import lighttunnel.client.connect.CircuitState
+import lighttunnel.client.connect.TunnelConnectDescriptor
+import lighttunnel.proto.TunnelRequest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.net.ServerSocket
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 熔断边界：连续失败恰好 circuitFailureThreshold 次时熔断
+ */
+class TunnelClientCircuitTest {
+
+    private var tunnelClient: TunnelClient? = null
+
+    @After
+    fun tearDown() {
+        tunnelClient?.destroy()
+    }
+
+    @Test
+    fun openAfterThresholdFailures() {
+        val threshold = 3
+        val reconnects = AtomicInteger(0)
+        val openedAttempts = AtomicInteger(-1)
+        val opened = CountDownLatch(1)
+        val client = TunnelClient(
+            workerThreads = 1,
+            reconnectBaseDelayMillis = 1L,
+            reconnectMaxDelayMillis = 1L,
+            circuitFailureThreshold = threshold,
+            circuitOpenMillis = 60_000L,
+            onTunnelStateListener = object : OnTunnelStateListener {
+                override fun onConnecting(descriptor: TunnelConnectDescriptor, reconnect: Boolean) {
+                    if (reconnect) reconnects.incrementAndGet()
+                }
+
+                override fun onCircuitStateChanged(descriptor: TunnelConnectDescriptor, state: CircuitState) {
+                    if (state == CircuitState.OPEN) {
+                        openedAttempts.set(descriptor.reconnectAttempts.get())
+                        opened.countDown()
+                    }
+                }
+            }
+        ).also { tunnelClient = it }
+        // 没有监听的端口，每次连接都失败
+        val port = ServerSocket(0).use { it.localPort }
+        val descriptor = client.connect("127.0.0.1", port, TunnelRequest.forTcp("127.0.0.1", 1, 10080))
+        assertTrue(opened.await(10, TimeUnit.SECONDS))
+        assertEquals(threshold, openedAttempts.get())
+        // 首次连接加上 threshold - 1 次重连
+        assertEquals(threshold - 1, reconnects.get())
+        assertEquals(CircuitState.OPEN, descriptor.circuitState)
+    }
+
+}
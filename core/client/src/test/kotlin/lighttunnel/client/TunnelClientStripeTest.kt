@@ -0,0 +1,162 @@
+package lighttunnel.client
+
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.SimpleChannelInboundHandler
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import lighttunnel.client.connect.TunnelConnectDescriptor
+import lighttunnel.proto.ProtoMessage
+import lighttunnel.proto.ProtoMessageDecoder
+import lighttunnel.proto.ProtoMessageEncoder
+import lighttunnel.proto.ProtoMessageType
+import lighttunnel.proto.TunnelRequest
+import lighttunnel.proto.TunnelRequest.Factory.withRemotePort
+import lighttunnel.util.LongUtil
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.net.InetSocketAddress
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 条带连接、条带重连及共用本地连接池，服务端只应答隧道请求
+ */
+class TunnelClientStripeTest {
+
+    private val group = NioEventLoopGroup(1)
+    private lateinit var serverChannel: Channel
+    /** 按收到隧道请求的顺序记录的服务端连接，第一个为主连接 */
+    private val tunnelChannels = CopyOnWriteArrayList<Channel>()
+    private val tunnelIds = AtomicLong(0)
+    /** 按收到的顺序记录隧道请求的远程端口，请求 0 时服务端分配的端口依次递增 */
+    private val requestedPorts = CopyOnWriteArrayList<Int>()
+    private val allocatedPorts = AtomicInteger(20000)
+    private var tunnelClient: TunnelClient? = null
+
+    @Before
+    fun setUp() {
+        serverChannel = ServerBootstrap()
+            .group(group)
+            .channel(NioServerSocketChannel::class.java)
+            .childHandler(object : ChannelInitializer<SocketChannel>() {
+                override fun initChannel(ch: SocketChannel) {
+                    ch.pipeline()
+                        .addLast("decoder", ProtoMessageDecoder())
+                        .addLast("encoder", ProtoMessageEncoder())
+                        .addLast("handler", object : SimpleChannelInboundHandler<ProtoMessage>() {
+                            override fun channelRead0(ctx: ChannelHandlerContext, msg: ProtoMessage) {
+                                if (msg.type == ProtoMessageType.REQUEST) {
+                                    val request = TunnelRequest.fromBytes(msg.head)
+                                    requestedPorts.add(request.remotePort)
+                                    val response = if (request.remotePort == 0) {
+                                        request.withRemotePort(allocatedPorts.incrementAndGet())
+                                    } else {
+                                        request
+                                    }
+                                    tunnelChannels.add(ctx.channel())
+                                    val head = LongUtil.toBytes(tunnelIds.incrementAndGet(), 0L)
+                                    ctx.writeAndFlush(ProtoMessage(ProtoMessageType.RESPONSE_OK, head, response.toBytes()))
+                                }
+                            }
+                        })
+                }
+            })
+            .bind("127.0.0.1", 0).syncUninterruptibly().channel()
+    }
+
+    @After
+    fun tearDown() {
+        tunnelClient?.destroy()
+        serverChannel.close().syncUninterruptibly()
+        group.shutdownGracefully().syncUninterruptibly()
+    }
+
+    private fun connect(
+        reconnectMaxAttempts: Int,
+        localPoolMaxIdle: Int = 0,
+        remotePort: Int = 10080
+    ): TunnelConnectDescriptor {
+        val client = TunnelClient(
+            workerThreads = 1,
+            reconnectBaseDelayMillis = 10L,
+            reconnectMaxDelayMillis = 20L,
+            reconnectMaxAttempts = reconnectMaxAttempts
+        ).also { tunnelClient = it }
+        val port = (serverChannel.localAddress() as InetSocketAddress).port
+        val request = TunnelRequest.forTcp("127.0.0.1", 1, remotePort)
+        return client.connect("127.0.0.1", port, request, localPoolMaxIdle = localPoolMaxIdle, connections = 3)
+    }
+
+    private fun waitUntil(condition: () -> Boolean): Boolean {
+        val deadline = System.currentTimeMillis() + 5000
+        while (System.currentTimeMillis() < deadline) {
+            if (condition()) {
+                return true
+            }
+            Thread.sleep(20)
+        }
+        return false
+    }
+
+    @Test
+    fun connectStripes() {
+        val descriptor = connect(reconnectMaxAttempts = -1)
+        assertTrue(waitUntil { tunnelChannels.size == 3 })
+        assertEquals(2, descriptor.stripes.size)
+        assertTrue(descriptor.stripes.all { it.primary === descriptor })
+        // 条带连接使用主连接的结果，不会再建立自己的条带连接
+        Thread.sleep(100)
+        assertEquals(3, tunnelChannels.size)
+    }
+
+    @Test
+    fun reconnectStripe() {
+        val descriptor = connect(reconnectMaxAttempts = -1)
+        assertTrue(waitUntil { tunnelChannels.size == 3 })
+        tunnelChannels[2].close()
+        assertTrue(waitUntil { tunnelChannels.size == 4 })
+        assertEquals(2, descriptor.stripes.size)
+        assertTrue(descriptor.stripes.all { it.tunnelChannel?.isActive == true })
+    }
+
+    @Test
+    fun reconnectPrimaryOnAllocatedPort() {
+        val descriptor = connect(reconnectMaxAttempts = -1, remotePort = 0)
+        assertTrue(waitUntil { tunnelChannels.size == 3 })
+        val port = descriptor.finallyTunnelRequest!!.remotePort
+        assertNotEquals(0, port)
+        assertEquals(listOf(0, port, port), requestedPorts)
+        // 主连接重连时使用已分配的端口，与条带连接仍在同一组
+        tunnelChannels[0].close()
+        assertTrue(waitUntil { tunnelChannels.size == 4 && descriptor.tunnelChannel?.isActive == true })
+        assertEquals(port, requestedPorts[3])
+        assertTrue(waitUntil { descriptor.finallyTunnelRequest?.remotePort == port })
+    }
+
+    @Test
+    fun sharedLocalChannelPool() {
+        val descriptor = connect(reconnectMaxAttempts = 0, localPoolMaxIdle = 1)
+        assertTrue(waitUntil { tunnelChannels.size == 3 })
+        val pool = descriptor.localChannelPool!!
+        assertTrue(descriptor.stripes.all { it.localChannelPool === pool })
+        // 主连接放弃重连后，条带连接仍在使用连接池
+        tunnelChannels[0].close()
+        assertTrue(waitUntil { descriptor.tunnelChannel?.isActive == false })
+        Thread.sleep(100)
+        assertFalse(pool.isDestroyed)
+        tunnelChannels[1].close()
+        Thread.sleep(100)
+        assertFalse(pool.isDestroyed)
+        // 最后一个连接放弃后销毁
+        tunnelChannels[2].close()
+        assertTrue(waitUntil { pool.isDestroyed })
+    }
+
+}
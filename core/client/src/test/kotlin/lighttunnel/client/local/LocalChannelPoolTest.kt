@@ -0,0 +1,114 @@
+package lighttunnel.client.local
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.EventLoopGroup
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.nio.NioEventLoopGroup
+import lighttunnel.proto.ProtoMessage
+import lighttunnel.proto.ProtoMessageType
+import lighttunnel.util.ReadPause
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.net.ServerSocket
+import java.net.Socket
+import kotlin.concurrent.thread
+
+class LocalChannelPoolTest {
+
+    private lateinit var group: EventLoopGroup
+    private lateinit var localTcpClient: LocalTcpClient
+    private lateinit var serverSocket: ServerSocket
+    private val sockets = ArrayList<Socket>()
+
+    @Before
+    fun setUp() {
+        group = NioEventLoopGroup(1)
+        localTcpClient = LocalTcpClient(group)
+        serverSocket = ServerSocket(0)
+    }
+
+    @After
+    fun tearDown() {
+        serverSocket.close()
+        synchronized(sockets) { sockets.forEach { it.close() } }
+        group.shutdownGracefully().syncUninterruptibly()
+    }
+
+    /** 本地服务接受连接后执行 onAccept */
+    private fun serve(onAccept: (Socket) -> Unit) {
+        thread(isDaemon = true) {
+            while (!serverSocket.isClosed) {
+                val socket = try {
+                    serverSocket.accept()
+                } catch (e: Exception) {
+                    break
+                }
+                synchronized(sockets) { sockets.add(socket) }
+                onAccept(socket)
+            }
+        }
+    }
+
+    private fun waitUntil(condition: () -> Boolean): Boolean {
+        val deadline = System.currentTimeMillis() + 5000
+        while (System.currentTimeMillis() < deadline) {
+            if (condition()) {
+                return true
+            }
+            Thread.sleep(20)
+        }
+        return false
+    }
+
+    @Test
+    fun forwardBannerAfterSessionBound() {
+        val localChannel = EmbeddedChannel(LocalTcpClientChannelHandler(localTcpClient))
+        ReadPause.pause(localChannel, ReadPause.Reason.IDLE)
+        // 服务端先发送的数据在绑定会话前到达
+        localChannel.writeInbound(Unpooled.copiedBuffer("SSH-2.0-OpenSSH\r\n".toByteArray()))
+        val tunnelChannel = EmbeddedChannel()
+        localTcpClient.bindChannel(localChannel, 1, 2, tunnelChannel)
+        val msg = tunnelChannel.readOutbound<ProtoMessage>()
+        assertEquals(ProtoMessageType.TRANSFER, msg.type)
+        assertEquals(1L, msg.tunnelId)
+        assertEquals(2L, msg.sessionId)
+        assertEquals("SSH-2.0-OpenSSH\r\n", msg.data.toString(Charsets.ISO_8859_1))
+        msg.release()
+        assertTrue(localChannel.config().isAutoRead)
+        localChannel.finishAndReleaseAll()
+        tunnelChannel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun keepBannerWhileIdle() {
+        serve { it.getOutputStream().write("220 smtp ready\r\n".toByteArray()) }
+        val pool = localTcpClient.newChannelPool("127.0.0.1", serverSocket.localPort, 1, 1, 60_000)
+        pool.start()
+        assertTrue(waitUntil { pool.idleChannelCount == 1 })
+        pool.evict()
+        Thread.sleep(100)
+        pool.evict()
+        val channel = pool.acquire()
+        assertNotNull(channel)
+        assertTrue(channel!!.isActive)
+        // 绑定会话前不自动读取
+        assertFalse(channel.config().isAutoRead)
+        pool.destroy()
+    }
+
+    @Test
+    fun evictClosedWhileIdle() {
+        serve { it.close() }
+        val pool = localTcpClient.newChannelPool("127.0.0.1", serverSocket.localPort, 1, 1, 60_000)
+        pool.start()
+        assertTrue(waitUntil { pool.idleChannelCount == 1 })
+        assertTrue(waitUntil {
+            pool.evict()
+            pool.idleChannelCount == 0
+        })
+        pool.destroy()
+    }
+
+}
@@ -0,0 +1,60 @@
+package lighttunnel.client.local
+
+import io.netty.channel.embedded.EmbeddedChannel
+import org.junit.Assert.*
+import org.junit.Test
+
+class LocalChannelsTest {
+
+    @Test
+    fun putAndRemove() {
+        val channels = LocalChannels()
+        val ch1 = EmbeddedChannel()
+        val ch2 = EmbeddedChannel()
+        channels.put(1L, 1L, ch1)
+        channels.put(1L, Long.MAX_VALUE, ch2)
+        assertSame(ch1, channels[1L, 1L])
+        assertSame(ch2, channels[1L, Long.MAX_VALUE])
+        assertNull(channels[2L, 1L])
+        assertSame(ch1, channels.remove(1L, 1L))
+        assertNull(channels.remove(1L, 1L))
+        assertSame(ch2, channels[1L, Long.MAX_VALUE])
+    }
+
+    @Test
+    fun removeTunnel() {
+        val channels = LocalChannels()
+        val ch1 = EmbeddedChannel()
+        val ch2 = EmbeddedChannel()
+        val ch3 = EmbeddedChannel()
+        channels.put(1L, 1L, ch1)
+        channels.put(1L, 2L, ch2)
+        channels.put(2L, 1L, ch3)
+        assertEquals(setOf(ch1, ch2), channels.remove(1L).toSet())
+        assertTrue(channels.remove(1L).isEmpty())
+        assertNull(channels[1L, 1L])
+        assertSame(ch3, channels[2L, 1L])
+        // 移除后再次绑定的会话仍然可以查找到
+        channels.put(1L, 3L, ch1)
+        assertSame(ch1, channels[1L, 3L])
+        assertEquals(setOf(ch1, ch3), channels.clear().toSet())
+        assertNull(channels[2L, 1L])
+    }
+
+    @Test
+    fun manySessions() {
+        val channels = LocalChannels()
+        val channel = EmbeddedChannel()
+        for (sessionId in 1L..100L) {
+            channels.put(1L, sessionId, channel)
+        }
+        for (sessionId in 1L..100L step 2) {
+            assertSame(channel, channels.remove(1L, sessionId))
+        }
+        for (sessionId in 1L..100L) {
+            assertEquals(sessionId % 2 == 0L, channels[1L, sessionId] != null)
+        }
+        assertEquals(50, channels.remove(1L).size)
+    }
+
+}
@@ -6,25 +6,31 @@ import io.netty.bootstrap.ServerBootstrap
 import io.netty.buffer.Unpooled
 import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelOption
-import io.netty.channel.nio.NioEventLoopGroup
 import io.netty.channel.socket.SocketChannel
-import io.netty.channel.socket.nio.NioServerSocketChannel
 import io.netty.handler.codec.http.DefaultFullHttpResponse
+import io.netty.handler.codec.http.HttpHeaderNames
 import io.netty.handler.codec.http.HttpResponseStatus
 import io.netty.handler.codec.http.HttpVersion
 import io.netty.handler.ssl.SslContext
 import lighttunnel.dashboard.server.DashboardServer
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.metrics.MetricsRegistry
+import lighttunnel.proto.Compression
+import lighttunnel.proto.FlushCoalescingHandler
 import lighttunnel.proto.HeartbeatHandler
 import lighttunnel.proto.ProtoMessageDecoder
 import lighttunnel.proto.ProtoMessageEncoder
 import lighttunnel.server.http.HttpServer
 import lighttunnel.server.http.StaticFilePlugin
+import lighttunnel.server.interceptor.CachingTunnelRequestInterceptor
 import lighttunnel.server.interceptor.HttpRequestInterceptor
+import lighttunnel.server.interceptor.InterceptorExecutor
 import lighttunnel.server.interceptor.SimpleRequestInterceptor
 import lighttunnel.server.interceptor.TunnelRequestInterceptor
 import lighttunnel.server.tcp.TcpServer
 import lighttunnel.server.util.IncIds
+import lighttunnel.server.util.PortRange
+import lighttunnel.transport.Transport
 import org.json.JSONArray
 import org.json.JSONObject
 import java.util.concurrent.locks.ReentrantLock
@@ -33,6 +39,18 @@ import kotlin.concurrent.withLock
 class TunnelServer(
     private val bossThreads: Int = -1,
     private val workerThreads: Int = -1,
+    private val transport: Transport = Transport.DEFAULT,
+    // flush 合并，flushMaxBytes <= 0 时关闭
+    private val flushMaxDelayMicros: Long = 0L,
+    private val flushMaxBytes: Int = 64 * 1024,
+    // TCP 用户连接与隧道连接使用同一个 EventLoop
+    private val sessionAffinity: Boolean = false,
+    // 允许的透传数据压缩算法，按优先级排列，为空时不压缩
+    private val compressions: List<Compression> = emptyList(),
+    private val compressionThreshold: Int = 512,
+    // 心跳间隔及对端无响应的最长时间，有往返时延采样后会自动缩短
+    private val heartbeatIntervalMillis: Long = 30_000L,
+    private val heartbeatTimeoutMillis: Long = 90_000L,
     // tunnel
     private val bindAddr: String? = null,
     private val bindPort: Int = 5080,
@@ -40,6 +58,14 @@ class TunnelServer(
     private val sslBindPort: Int? = null,
     private val sslContext: SslContext? = null,
     private val tunnelRequestInterceptor: TunnelRequestInterceptor = SimpleRequestInterceptor.defaultImpl,
+    // tcp 隧道未指定远程端口时的分配范围，例如：10000-21000,30000，为空时为 1024-65535
+    private val allowPorts: String? = null,
+    // 同步拦截器在独立的有界线程池中执行，interceptorThreads <= 0 时在 EventLoop 中执行，异步拦截器不受影响
+    private val interceptorThreads: Int = 0,
+    private val interceptorQueueSize: Int = 1024,
+    private val interceptorTimeoutMillis: Long = 10_000L,
+    // 隧道请求拦截结果按域名（TCP 按端口）缓存的时间，<= 0 时不缓存
+    private val interceptorCacheTtlMillis: Long = 0L,
     // http
     private val httpBindPort: Int? = null,
     private val httpRequestInterceptor: HttpRequestInterceptor = SimpleRequestInterceptor.defaultImpl,
@@ -47,6 +73,10 @@ class TunnelServer(
     private val httpsBindPort: Int? = null,
     private val httpsContext: SslContext? = null,
     private val httpsRequestInterceptor: HttpRequestInterceptor = SimpleRequestInterceptor.defaultImpl,
+    // https SNI 透传，不在服务端终止 TLS，此时不需要 httpsContext
+    private val httpsSniPassthrough: Boolean = false,
+    // vhost 原始字节模式，只解析第一个请求的请求头，之后按字节透传
+    private val vhostRawMode: Boolean = false,
     // plugin
     private val staticFilePlugin: StaticFilePlugin? = null,
     // dashboard
@@ -59,15 +89,26 @@ class TunnelServer(
     private val logger by loggerDelegate()
     private val lock = ReentrantLock()
     private val tunnelIds = IncIds()
-    private val bossGroup by lazy { if (bossThreads >= 0) NioEventLoopGroup(bossThreads) else NioEventLoopGroup() }
-    private val workerGroup by lazy { if (workerThreads >= 0) NioEventLoopGroup(workerThreads) else NioEventLoopGroup() }
+    val metrics = MetricsRegistry()
+    private val bossGroup by lazy { transport.newEventLoopGroup(bossThreads) }
+    private val workerGroup by lazy { transport.newEventLoopGroup(workerThreads) }
+    private val interceptorExecutor = if (interceptorThreads > 0) {
+        InterceptorExecutor(interceptorThreads, interceptorQueueSize)
+    } else {
+        null
+    }
+    private val asyncTunnelRequestInterceptor = InterceptorExecutor.asAsync(tunnelRequestInterceptor, interceptorExecutor).let {
+        if (interceptorCacheTtlMillis > 0) CachingTunnelRequestInterceptor(it, interceptorCacheTtlMillis) else it
+    }
     private var tcpServer: TcpServer? = null
     private var httpServer: HttpServer? = null
     private var httpsServer: HttpServer? = null
     private var dashboardServer: DashboardServer? = null
 
     init {
-        tcpServer = TcpServer(bossGroup, workerGroup)
+        HeartbeatHandler.checkArgs(heartbeatIntervalMillis, heartbeatTimeoutMillis)
+        logger.info("Using {}", transport)
+        tcpServer = TcpServer(bossGroup, workerGroup, transport, sessionAffinity, allowPorts?.let { PortRange.parse(it) } ?: PortRange.DEFAULT)
         if (sslBindPort != null) {
             requireNotNull(sslContext) { "sslContext == null" }
         }
@@ -75,29 +116,39 @@ class TunnelServer(
             httpServer = HttpServer(
                 bossGroup = bossGroup,
                 workerGroup = workerGroup,
+                transport = transport,
                 bindAddr = bindAddr,
                 bindPort = httpBindPort,
                 sslContext = null,
-                interceptor = httpRequestInterceptor,
-                staticFilePlugin = staticFilePlugin
+                interceptor = InterceptorExecutor.asAsync(httpRequestInterceptor, interceptorExecutor),
+                staticFilePlugin = staticFilePlugin,
+                rawMode = vhostRawMode,
+                interceptorTimeoutMillis = interceptorTimeoutMillis
             )
         }
         if (httpsBindPort != null) {
-            requireNotNull(httpsContext) { "httpsContext == null" }
+            if (!httpsSniPassthrough) {
+                requireNotNull(httpsContext) { "httpsContext == null" }
+            }
             httpsServer = HttpServer(
                 bossGroup = bossGroup,
                 workerGroup = workerGroup,
+                transport = transport,
                 bindAddr = bindAddr,
                 bindPort = httpsBindPort,
                 sslContext = httpsContext,
-                interceptor = httpsRequestInterceptor,
-                staticFilePlugin = staticFilePlugin
+                interceptor = InterceptorExecutor.asAsync(httpsRequestInterceptor, interceptorExecutor),
+                staticFilePlugin = staticFilePlugin,
+                rawMode = vhostRawMode,
+                sniPassthrough = httpsSniPassthrough,
+                interceptorTimeoutMillis = interceptorTimeoutMillis
             )
         }
         if (dashboardBindPort != null) {
             val server = DashboardServer(
                 bossGroup = bossGroup,
                 workerGroup = workerGroup,
+                transport = transport,
                 bindAddr = bindAddr,
                 bindPort = dashboardBindPort
             )
@@ -113,6 +164,13 @@ class TunnelServer(
                         Unpooled.copiedBuffer(obj.toString(2), Charsets.UTF_8)
                     )
                 }
+                route("/metrics") {
+                    DefaultFullHttpResponse(
+                        HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.OK,
+                        Unpooled.copiedBuffer(metrics.scrape(), Charsets.UTF_8)
+                    ).apply { headers().set(HttpHeaderNames.CONTENT_TYPE, MetricsRegistry.CONTENT_TYPE) }
+                }
             }
             dashboardServer = server
         }
@@ -132,6 +190,7 @@ class TunnelServer(
         httpServer?.destroy()
         httpsServer?.destroy()
         dashboardServer?.destroy()
+        interceptorExecutor?.shutdown()
         bossGroup.shutdownGracefully()
         workerGroup.shutdownGracefully()
     }
@@ -139,7 +198,7 @@ class TunnelServer(
     private fun startTunnelService(sslContext: SslContext?) {
         val serverBootstrap = ServerBootstrap()
         serverBootstrap.group(bossGroup, workerGroup)
-            .channel(NioServerSocketChannel::class.java)
+        transport.configure(serverBootstrap)
             .childOption(ChannelOption.AUTO_READ, true)
             .childOption(ChannelOption.SO_KEEPALIVE, true)
             .childHandler(object : ChannelInitializer<SocketChannel>() {
@@ -149,12 +208,17 @@ class TunnelServer(
                         ch.pipeline()
                             .addFirst("ssl", sslContext.newHandler(ch.alloc()))
                     }
+                    if (flushMaxBytes > 0) {
+                        ch.pipeline()
+                            .addLast("flush", FlushCoalescingHandler(flushMaxDelayMicros, flushMaxBytes))
+                    }
                     ch.pipeline()
-                        .addLast("heartbeat", HeartbeatHandler())
                         .addLast("decoder", ProtoMessageDecoder())
                         .addLast("encoder", ProtoMessageEncoder())
+                        .addLast("heartbeat", HeartbeatHandler(heartbeatIntervalMillis, heartbeatTimeoutMillis))
                         .addLast("handler", TunnelServerChannelHandler(
-                            tunnelRequestInterceptor, tunnelIds, tcpServer, httpServer, httpsServer
+                            asyncTunnelRequestInterceptor, tunnelIds, tcpServer, httpServer, httpsServer,
+                            compressions, compressionThreshold, metrics, interceptorTimeoutMillis
                         ))
                 }
             })
@@ -1,16 +1,30 @@
 package lighttunnel.server
 
 import io.netty.buffer.Unpooled
+import io.netty.channel.Channel
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.SimpleChannelInboundHandler
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.metrics.MetricsHandler
+import lighttunnel.metrics.MetricsRegistry
+import lighttunnel.metrics.TunnelMetrics
+import lighttunnel.proto.Compression
+import lighttunnel.proto.CompressionHandler
+import lighttunnel.proto.HeartbeatHandler
+import lighttunnel.proto.ProtoMessageEncoder
 import lighttunnel.proto.ProtoMessageType
 import lighttunnel.proto.ProtoException
 import lighttunnel.proto.ProtoMessage
 import lighttunnel.proto.TunnelRequest
+import lighttunnel.proto.FlowWindow
+import lighttunnel.proto.TunnelRequest.Factory.grantFlowWindow
+import lighttunnel.proto.TunnelRequest.Factory.grantProtoVersion
+import lighttunnel.proto.TunnelRequest.Factory.withOption
 import lighttunnel.server.http.HttpServer
+import lighttunnel.server.interceptor.InterceptorExecutor
 import lighttunnel.server.interceptor.TunnelRequestInterceptor
+import lighttunnel.server.interceptor.onCompleteInEventLoop
 import lighttunnel.server.tcp.TcpServer
 import lighttunnel.server.util.AttributeKeys
 import lighttunnel.server.util.IncIds
@@ -18,13 +32,18 @@ import lighttunnel.server.util.SessionChannels
 import lighttunnel.util.LongUtil
 
 class TunnelServerChannelHandler(
-    private val tunnelRequestInterceptor: TunnelRequestInterceptor,
+    tunnelRequestInterceptor: TunnelRequestInterceptor,
     private val tunnelIds: IncIds,
     private val tcpServer: TcpServer? = null,
     private val httpServer: HttpServer? = null,
-    private val httpsServer: HttpServer? = null
+    private val httpsServer: HttpServer? = null,
+    private val compressions: List<Compression> = emptyList(),
+    private val compressionThreshold: Int = 512,
+    private val metrics: MetricsRegistry? = null,
+    private val interceptorTimeoutMillis: Long = 10_000L
 ) : SimpleChannelInboundHandler<ProtoMessage>() {
     private val logger by loggerDelegate()
+    private val asyncInterceptor = InterceptorExecutor.asAsync(tunnelRequestInterceptor, null)
 
     override fun channelInactive(ctx: ChannelHandlerContext?) {
         logger.trace("channelInactive: {}", ctx)
@@ -33,10 +52,11 @@ class TunnelServerChannelHandler(
             return
         }
         ctx.channel().attr(AttributeKeys.AK_SESSION_CHANNELS).get()?.also { sc ->
+            metrics?.unregister(sc)
             when (sc.tunnelRequest.type) {
-                TunnelRequest.Type.TCP -> tcpServer?.also { it.registry.unregister(sc.tunnelRequest.remotePort) }
-                TunnelRequest.Type.HTTP -> httpServer?.also { it.registry.unregister(sc.tunnelRequest.host) }
-                TunnelRequest.Type.HTTPS -> httpsServer?.also { it.registry.unregister(sc.tunnelRequest.host) }
+                TunnelRequest.Type.TCP -> tcpServer?.also { it.registry.unregister(sc.tunnelRequest.remotePort, sc) }
+                TunnelRequest.Type.HTTP -> httpServer?.also { it.registry.unregister(sc.tunnelRequest.host, sc) }
+                TunnelRequest.Type.HTTPS -> httpsServer?.also { it.registry.unregister(sc.tunnelRequest.host, sc) }
                 else -> {
                     // Nothing
                 }
@@ -56,78 +76,113 @@ class TunnelServerChannelHandler(
         ctx ?: return
         msg ?: return
         when (msg.type) {
-            ProtoMessageType.PING -> doHandlePingMessage(ctx, msg)
             ProtoMessageType.REQUEST -> doHandleRequestMessage(ctx, msg)
             ProtoMessageType.TRANSFER -> doHandleTransferMessage(ctx, msg)
             ProtoMessageType.LOCAL_CONNECTED -> doHandleLocalConnectedMessage(ctx, msg)
             ProtoMessageType.LOCAL_DISCONNECT -> doHandleLocalDisconnectMessage(ctx, msg)
+            ProtoMessageType.WINDOW_UPDATE -> doHandleWindowUpdateMessage(ctx, msg)
             else -> {
                 // Nothing
             }
         }
     }
 
-    @Throws(Exception::class)
-    private fun doHandlePingMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
-        logger.trace("handlePingMessage# {}, {}", ctx, msg)
-        ctx.writeAndFlush(ProtoMessage(ProtoMessageType.PONG))
-    }
-
     @Throws(Exception::class)
     private fun doHandleRequestMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
         logger.trace("handleRequestMessage# {}, {}", ctx, msg)
         try {
             val tunnelRequest = TunnelRequest.fromBytes(msg.head)
+            // 按客户端请求的格式响应，兼容旧版本客户端
+            val jsonFormat = TunnelRequest.isJsonFormat(msg.head)
             logger.trace("tunnelRequest: {}", tunnelRequest)
             when (tunnelRequest.type) {
-                TunnelRequest.Type.TCP -> {
-                    tcpServer?.also { handleTcpRequestMessage(ctx, it, tunnelRequest) }
-                        ?: throw ProtoException("TCP协议隧道未开启")
-                }
-                TunnelRequest.Type.HTTP -> {
-                    httpServer?.also { handleHttpRequestMessage(ctx, it, tunnelRequest) }
-                        ?: throw ProtoException("HTTP协议隧道未开启")
+                TunnelRequest.Type.TCP -> tcpServer ?: throw ProtoException("TCP协议隧道未开启")
+                TunnelRequest.Type.HTTP -> httpServer ?: throw ProtoException("HTTP协议隧道未开启")
+                TunnelRequest.Type.HTTPS -> httpsServer ?: throw ProtoException("HTTPS协议隧道未开启")
+                else -> throw ProtoException("不支持的隧道类型")
+            }
+            // 拦截器可能重建请求，版本按客户端原始声明协商
+            val protoVersion = tunnelRequest.negotiateProtoVersion()
+            // 拦截器可能访问外部服务，结果返回前只暂停读取该连接，EventLoop 继续转发其他隧道的数据
+            asyncInterceptor.handleTunnelRequestAsync(tunnelRequest)
+                .onCompleteInEventLoop(ctx, interceptorTimeoutMillis) { result, cause ->
+                    if (ctx.channel().isActive) {
+                        onTunnelRequestIntercepted(ctx, tunnelRequest.type, result, cause, jsonFormat, protoVersion)
+                    }
                 }
-                TunnelRequest.Type.HTTPS -> {
-                    httpsServer?.also { handleHttpRequestMessage(ctx, it, tunnelRequest) }
-                        ?: throw ProtoException("HTTPS协议隧道未开启")
+        } catch (e: Exception) {
+            writeResponseErr(ctx, e)
+        }
+    }
+
+    private fun onTunnelRequestIntercepted(
+        ctx: ChannelHandlerContext,
+        type: TunnelRequest.Type,
+        result: TunnelRequest?,
+        cause: Throwable?,
+        jsonFormat: Boolean,
+        protoVersion: Int
+    ) {
+        if (cause != null || result == null) {
+            writeResponseErr(ctx, cause ?: ProtoException("tunnel request rejected"))
+            return
+        }
+        try {
+            val tunnelRequest = result.withGrantedFlowWindow().withNegotiatedCompression().grantProtoVersion(protoVersion)
+            when (type) {
+                TunnelRequest.Type.TCP -> tcpServer?.also { handleTcpRequestMessage(ctx, it, tunnelRequest, jsonFormat, protoVersion) }
+                TunnelRequest.Type.HTTP -> httpServer?.also { handleHttpRequestMessage(ctx, it, tunnelRequest, jsonFormat, protoVersion) }
+                TunnelRequest.Type.HTTPS -> httpsServer?.also { handleHttpRequestMessage(ctx, it, tunnelRequest, jsonFormat, protoVersion) }
+                else -> {
+                    // Nothing
                 }
-                else -> throw ProtoException("不支持的隧道类型")
             }
         } catch (e: Exception) {
-            ctx.channel().writeAndFlush(
-                ProtoMessage(ProtoMessageType.RESPONSE_ERR, e.message.toString().toByteArray())
-            ).addListener(ChannelFutureListener.CLOSE)
+            writeResponseErr(ctx, e)
         }
     }
 
+    private fun writeResponseErr(ctx: ChannelHandlerContext, cause: Throwable) {
+        ctx.channel().writeAndFlush(
+            ProtoMessage(ProtoMessageType.RESPONSE_ERR, cause.message.toString().toByteArray())
+        ).addListener(ChannelFutureListener.CLOSE)
+    }
+
     @Throws(Exception::class)
     private fun doHandleTransferMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
         val sessionPool = ctx.channel().attr(AttributeKeys.AK_SESSION_CHANNELS).get() ?: return
-        when (sessionPool.tunnelRequest.type) {
-            TunnelRequest.Type.TCP -> {
-                tcpServer ?: return
-                tcpServer.registry
-                    .getSessionChannel(msg.tunnelId, msg.sessionId)
-                    ?.writeAndFlush(Unpooled.wrappedBuffer(msg.data))
-            }
-            TunnelRequest.Type.HTTP -> {
-                httpServer ?: return
-                httpServer.registry
-                    .getSessionChannel(msg.tunnelId, msg.sessionId)
-                    ?.writeAndFlush(Unpooled.wrappedBuffer(msg.data))
-            }
-            TunnelRequest.Type.HTTPS -> {
-                httpsServer ?: return
-                httpsServer.registry
-                    .getSessionChannel(msg.tunnelId, msg.sessionId)
-                    ?.writeAndFlush(Unpooled.wrappedBuffer(msg.data))
-            }
-            else -> {
+        val sessionChannel = when (sessionPool.tunnelRequest.type) {
+            TunnelRequest.Type.TCP -> tcpServer?.registry?.getSessionChannel(msg.tunnelId, msg.sessionId)
+            TunnelRequest.Type.HTTP -> httpServer?.registry?.getSessionChannel(msg.tunnelId, msg.sessionId)
+            TunnelRequest.Type.HTTPS -> httpsServer?.registry?.getSessionChannel(msg.tunnelId, msg.sessionId)
+            else -> null
+        } ?: return
+        val length = msg.data.readableBytes()
+        val future = sessionChannel.writeAndFlush(msg.data.retain())
+        val flowWindow = sessionChannel.attr(AttributeKeys.AK_FLOW_WINDOW).get() ?: return
+        // 数据写出后才归还额度，写出速度跟不上时对端自然停止发送
+        val tunnelChannel = ctx.channel()
+        future.addListener {
+            if (it.isSuccess) {
+                tunnelChannel.writeWindowUpdate(msg.tunnelId, msg.sessionId, flowWindow.onWritten(length))
             }
         }
     }
 
+    @Throws(Exception::class)
+    private fun doHandleWindowUpdateMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
+        logger.trace("handleWindowUpdateMessage# {}, {}", ctx, msg)
+        val sessionChannels = ctx.channel().attr(AttributeKeys.AK_SESSION_CHANNELS).get() ?: return
+        val sessionChannel = sessionChannels.getChannel(msg.sessionId) ?: return
+        sessionChannel.attr(AttributeKeys.AK_FLOW_WINDOW).get()?.onUpdate(sessionChannel, FlowWindow.readUpdate(msg.data))
+    }
+
+    private fun Channel.writeWindowUpdate(tunnelId: Long, sessionId: Long, bytes: Int) {
+        if (bytes > 0) {
+            writeAndFlush(ProtoMessage(ProtoMessageType.WINDOW_UPDATE, tunnelId, sessionId, Unpooled.copyInt(bytes)))
+        }
+    }
+
     @Throws(Exception::class)
     private fun doHandleLocalConnectedMessage(ctx: ChannelHandlerContext, msg: ProtoMessage) {
         logger.trace("handleLocalConnectedMessage# {}, {}", ctx, msg)
@@ -144,32 +199,117 @@ class TunnelServerChannelHandler(
     }
 
     @Throws(Exception::class)
-    private fun handleTcpRequestMessage(ctx: ChannelHandlerContext, server: TcpServer, tunnelRequest: TunnelRequest) {
-        @Suppress("NAME_SHADOWING")
-        val tunnelRequest = tunnelRequestInterceptor.handleTunnelRequest(tunnelRequest)
+    private fun handleTcpRequestMessage(
+        ctx: ChannelHandlerContext, server: TcpServer, tunnelRequest: TunnelRequest, jsonFormat: Boolean, protoVersion: Int
+    ) {
         val tunnelId = tunnelIds.nextId
-        val sessionChannels = SessionChannels(tunnelId, tunnelRequest, ctx.channel())
-        ctx.channel().attr(AttributeKeys.AK_SESSION_CHANNELS).set(sessionChannels)
-        server.startTunnel(null, tunnelRequest.remotePort, sessionChannels)
-        val head = LongUtil.toBytes(tunnelId, 0L)
-        val data = tunnelRequest.toBytes()
-        ctx.channel().writeAndFlush(ProtoMessage(ProtoMessageType.RESPONSE_OK, head, data))
+        // remotePort 为 0 时由 TcpServer 分配端口，响应中带回实际使用的端口；端口异步绑定，完成前暂停读取该连接
+        server.startTunnel(null, tunnelRequest) {
+            SessionChannels(tunnelId, it, ctx.channel(), newTunnelMetrics(ctx, tunnelId, it))
+        }.onCompleteInEventLoop(ctx, 0) { sessionChannels, cause ->
+            if (sessionChannels == null) {
+                writeResponseErr(ctx, cause ?: ProtoException("port unavailable"))
+                return@onCompleteInEventLoop
+            }
+            // 绑定期间隧道连接已断开，channelInactive 中没有可注销的隧道
+            if (!ctx.channel().isActive) {
+                server.registry.unregister(sessionChannels.tunnelRequest.remotePort, sessionChannels)
+                return@onCompleteInEventLoop
+            }
+            try {
+                // 注册成功后才绑定，避免注册失败的隧道断开时注销掉别人的端口
+                ctx.channel().attr(AttributeKeys.AK_SESSION_CHANNELS).set(sessionChannels)
+                installCompression(ctx, sessionChannels.tunnelRequest)
+                installMetrics(ctx, sessionChannels)
+                val head = LongUtil.toBytes(tunnelId, 0L)
+                val data = sessionChannels.tunnelRequest.let { if (jsonFormat) it.toJsonBytes() else it.toBytes() }
+                ctx.channel().writeAndFlush(ProtoMessage(ProtoMessageType.RESPONSE_OK, head, data))
+                switchProtoVersion(ctx, protoVersion)
+            } catch (e: Exception) {
+                writeResponseErr(ctx, e)
+            }
+        }
     }
 
     @Throws(Exception::class)
-    private fun handleHttpRequestMessage(ctx: ChannelHandlerContext, server: HttpServer, tunnelRequest: TunnelRequest) {
-        @Suppress("NAME_SHADOWING")
-        val tunnelRequest = tunnelRequestInterceptor.handleTunnelRequest(tunnelRequest)
-        if (server.registry.isRegistered(tunnelRequest.host)) {
-            throw ProtoException("host(${tunnelRequest.host}) already used")
-        }
+    private fun handleHttpRequestMessage(
+        ctx: ChannelHandlerContext, server: HttpServer, tunnelRequest: TunnelRequest, jsonFormat: Boolean, protoVersion: Int
+    ) {
         val tunnelId = tunnelIds.nextId
-        val sessionChannels = SessionChannels(tunnelId, tunnelRequest, ctx.channel())
-        ctx.channel().attr(AttributeKeys.AK_SESSION_CHANNELS).set(sessionChannels)
+        val sessionChannels = SessionChannels(tunnelId, tunnelRequest, ctx.channel(), newTunnelMetrics(ctx, tunnelId, tunnelRequest))
         server.registry.register(tunnelRequest.host, sessionChannels)
+        ctx.channel().attr(AttributeKeys.AK_SESSION_CHANNELS).set(sessionChannels)
+        installCompression(ctx, tunnelRequest)
+        installMetrics(ctx, sessionChannels)
         val head = LongUtil.toBytes(tunnelId, 0L)
-        val data = tunnelRequest.toBytes()
+        val data = if (jsonFormat) tunnelRequest.toJsonBytes() else tunnelRequest.toBytes()
         ctx.channel().writeAndFlush(ProtoMessage(ProtoMessageType.RESPONSE_OK, head, data))
+        switchProtoVersion(ctx, protoVersion)
+    }
+
+    /** 客户端声明了流控窗口时才启用，旧版本客户端不受影响 */
+    private fun TunnelRequest.withGrantedFlowWindow(): TunnelRequest {
+        if (flowWindow <= 0) {
+            return this
+        }
+        return grantFlowWindow(flowWindow.coerceAtMost(FlowWindow.MAX_SIZE))
+    }
+
+    private fun newTunnelMetrics(ctx: ChannelHandlerContext, tunnelId: Long, tunnelRequest: TunnelRequest): TunnelMetrics? {
+        metrics ?: return null
+        val labels = linkedMapOf(
+            "tunnel_id" to tunnelId.toString(),
+            "type" to tunnelRequest.type.name.toLowerCase(),
+            "name" to (tunnelRequest.name ?: ""),
+            "target" to if (tunnelRequest.type == TunnelRequest.Type.TCP) {
+                tunnelRequest.remotePort.toString()
+            } else {
+                tunnelRequest.host
+            }
+        )
+        return TunnelMetrics(labels).apply { queuedBytesOf(ctx.channel()) }
+    }
+
+    /** 注册成功后才登记指标，在压缩处理器之后加入，统计压缩前的字节数 */
+    private fun installMetrics(ctx: ChannelHandlerContext, sessionChannels: SessionChannels) {
+        val tunnelMetrics = sessionChannels.metrics ?: return
+        metrics?.register(sessionChannels, tunnelMetrics)
+        ctx.pipeline().addBefore("handler", "metrics", MetricsHandler(tunnelMetrics))
+        ctx.pipeline().get(HeartbeatHandler::class.java)?.also { heartbeat ->
+            tunnelMetrics.rtt = heartbeat.rtt
+            heartbeat.onRttSample = { tunnelMetrics.rttHistogram.observeNanos(it) }
+        }
+    }
+
+    /** 未声明版本的旧版本客户端返回 0，继续使用 v1 */
+    private fun TunnelRequest.negotiateProtoVersion(): Int {
+        return if (protoVersion > ProtoMessageEncoder.VERSION_1) {
+            protoVersion.coerceAtMost(ProtoMessageEncoder.MAX_VERSION)
+        } else {
+            0
+        }
+    }
+
+    /** RESPONSE_OK 以 v1 写出后再切换编码器，解码器同时支持两种格式 */
+    private fun switchProtoVersion(ctx: ChannelHandlerContext, version: Int) {
+        if (version > ProtoMessageEncoder.VERSION_1) {
+            ctx.pipeline().replace("encoder", "encoder", ProtoMessageEncoder(version))
+        }
+    }
+
+    /** 按服务端的优先级选出客户端也支持的压缩算法，未声明该选项的旧版本客户端不受影响 */
+    private fun TunnelRequest.withNegotiatedCompression(): TunnelRequest {
+        val offered = option(TunnelRequest.OPTION_COMPRESSION) ?: return this
+        val compression = Compression.negotiate(compressions, offered)
+        return withOption(TunnelRequest.OPTION_COMPRESSION, compression?.optionName ?: "")
+    }
+
+    /** 在响应写出之前加入，客户端收到响应后才会发送压缩消息 */
+    private fun installCompression(ctx: ChannelHandlerContext, tunnelRequest: TunnelRequest) {
+        val compression = Compression.of(tunnelRequest.option(TunnelRequest.OPTION_COMPRESSION)) ?: return
+        if (ctx.pipeline().get("compression") == null) {
+            ctx.pipeline().addBefore("handler", "compression", CompressionHandler(compression, compressionThreshold))
+        }
     }
 
-}
\ No newline at end of file
+}
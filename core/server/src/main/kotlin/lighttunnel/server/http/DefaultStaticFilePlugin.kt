@@ -1,49 +1,325 @@
 package lighttunnel.server.http
 
 import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelFuture
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelPromise
+import io.netty.channel.DefaultFileRegion
+import io.netty.handler.codec.DateFormatter
 import io.netty.handler.codec.http.*
+import io.netty.handler.ssl.SslHandler
+import io.netty.handler.stream.ChunkedFile
+import io.netty.util.concurrent.DefaultThreadFactory
 import lighttunnel.logger.loggerDelegate
 import java.io.File
+import java.io.RandomAccessFile
+import java.net.URLConnection
 import java.net.URLDecoder
+import java.util.*
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
 
+/**
+ * 静态文件插件
+ *
+ * 文件读取在独立的线程池中进行，不阻塞 EventLoop；小文件内容和文件元数据缓存在 LRU 中，按修改时间和大小失效；
+ * 大文件明文连接使用 sendfile（DefaultFileRegion），TLS 连接使用 ChunkedFile；
+ * 支持 ETag/Last-Modified 条件请求、单区间 Range 和 keep-alive
+ *
+ * @param cacheMaxEntries 缓存的最大文件数
+ * @param cacheMaxFileSize 缓存内容的最大文件大小，更大的文件只缓存元数据
+ * @param ioThreads 文件读取线程数
+ */
 class DefaultStaticFilePlugin(
     private val rootPathList: List<String>,
-    private val domainPrefixList: List<String>
+    private val domainPrefixList: List<String>,
+    private val cacheMaxEntries: Int = 1024,
+    private val cacheMaxFileSize: Long = 64 * 1024,
+    ioThreads: Int = 2
 ) : StaticFilePlugin {
     private val logger by loggerDelegate()
+    private val executor: Executor = Executors.newFixedThreadPool(
+        ioThreads, DefaultThreadFactory("static-file", true)
+    )
+    private val cache = object : LinkedHashMap<File, FileEntry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<File, FileEntry>?): Boolean {
+            return size > cacheMaxEntries
+        }
+    }
 
     override fun doHandle(request: HttpRequest): FullHttpResponse? {
-        val host = request.headers().get(HttpHeaderNames.HOST)
-        if (domainPrefixList.firstOrNull { it.startsWith(host) } == null) {
+        if (!isAcceptHost(request)) {
             return null
         }
-        val path = URLDecoder.decode(request.uri().split('?').first(), "utf-8")
-        val file = rootPathList.firstOrNull {
-            File(it, path).let { f -> f.exists() && f.isFile }
-        }?.let { File(it, path) }
-        return if (file == null) {
-            val content = "404 $path".toByteArray(Charsets.UTF_8)
-            val response = DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1,
-                HttpResponseStatus.NOT_FOUND,
-                Unpooled.wrappedBuffer(content)
-            )
-            response.headers()
-                .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN)
-                .set(HttpHeaderNames.CONTENT_LENGTH, content.size)
-            response
-        } else {
-            val content = file.readBytes()
-            val response = DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1,
-                HttpResponseStatus.OK,
-                Unpooled.wrappedBuffer(content)
+        val path = decodePath(request.uri())
+        val entry = getFileEntry(path) ?: return notFound(request, path)
+        val content = entry.content ?: entry.file.readBytes()
+        val response = DefaultFullHttpResponse(
+            request.protocolVersion(),
+            HttpResponseStatus.OK,
+            Unpooled.wrappedBuffer(content)
+        )
+        setEntityHeaders(response, entry)
+        HttpUtil.setContentLength(response, content.size.toLong())
+        return response
+    }
+
+    override fun doHandle(ctx: ChannelHandlerContext, request: HttpRequest): ChannelFuture? {
+        if (!isAcceptHost(request)) {
+            return null
+        }
+        val promise = ctx.channel().newPromise()
+        executor.execute {
+            try {
+                writeResponse(ctx, request, promise)
+            } catch (e: Exception) {
+                logger.trace("writeResponse failure: {}", e.message, e)
+                promise.tryFailure(e)
+            }
+        }
+        return promise
+    }
+
+    private fun writeResponse(ctx: ChannelHandlerContext, request: HttpRequest, promise: ChannelPromise) {
+        val keepAlive = HttpUtil.isKeepAlive(request)
+        val method = request.method()
+        if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+            writeFullResponse(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED, keepAlive, promise)
+            return
+        }
+        val path = decodePath(request.uri())
+        val entry = getFileEntry(path)
+        if (entry == null) {
+            ctx.channel().writeAndFlush(notFound(request, path).also { HttpUtil.setKeepAlive(it, keepAlive) }, promise)
+            return
+        }
+        if (isNotModified(request, entry)) {
+            val response = DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.NOT_MODIFIED)
+            setEntityHeaders(response, entry)
+            HttpUtil.setKeepAlive(response, keepAlive)
+            ctx.channel().writeAndFlush(response, promise)
+            return
+        }
+        var offset = 0L
+        var length = entry.length
+        var contentRange: String? = null
+        val rangeValue = request.headers().get(HttpHeaderNames.RANGE)
+        if (rangeValue != null && isIfRangeMatched(request, entry)) {
+            val range = parseRange(rangeValue, entry.length)
+            if (range == null) {
+                val notSatisfiable = DefaultFullHttpResponse(
+                    request.protocolVersion(), HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE
+                )
+                notSatisfiable.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */${entry.length}")
+                HttpUtil.setContentLength(notSatisfiable, 0)
+                HttpUtil.setKeepAlive(notSatisfiable, keepAlive)
+                ctx.channel().writeAndFlush(notSatisfiable, promise)
+                return
+            }
+            if (range.first != 0L || range.last != entry.length - 1) {
+                offset = range.first
+                length = range.last - range.first + 1
+                contentRange = "bytes ${range.first}-${range.last}/${entry.length}"
+            }
+        }
+        val response = DefaultHttpResponse(
+            request.protocolVersion(),
+            if (contentRange != null) HttpResponseStatus.PARTIAL_CONTENT else HttpResponseStatus.OK
+        )
+        if (contentRange != null) {
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE, contentRange)
+        }
+        setEntityHeaders(response, entry)
+        HttpUtil.setContentLength(response, length)
+        HttpUtil.setKeepAlive(response, keepAlive)
+        val channel = ctx.channel()
+        val content = entry.content
+        when {
+            method == HttpMethod.HEAD -> {
+                channel.write(response)
+                channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT, promise)
+            }
+            content != null -> {
+                channel.write(response)
+                channel.writeAndFlush(
+                    DefaultLastHttpContent(Unpooled.wrappedBuffer(content, offset.toInt(), length.toInt())),
+                    promise
+                )
+            }
+            channel.pipeline().get(SslHandler::class.java) != null -> {
+                // TLS 下无法 sendfile，分块读取
+                val raf = RandomAccessFile(entry.file, "r")
+                channel.write(response)
+                channel.writeAndFlush(HttpChunkedInput(ChunkedFile(raf, offset, length, 8192)), promise)
+            }
+            else -> {
+                val raf = RandomAccessFile(entry.file, "r")
+                channel.write(response)
+                channel.write(DefaultFileRegion(raf.channel, offset, length))
+                channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT, promise)
+            }
+        }
+    }
+
+    private fun writeFullResponse(
+        ctx: ChannelHandlerContext, request: HttpRequest,
+        status: HttpResponseStatus, keepAlive: Boolean, promise: ChannelPromise
+    ) {
+        val response = DefaultFullHttpResponse(request.protocolVersion(), status)
+        HttpUtil.setContentLength(response, 0)
+        HttpUtil.setKeepAlive(response, keepAlive)
+        ctx.channel().writeAndFlush(response, promise)
+    }
+
+    private fun isAcceptHost(request: HttpRequest): Boolean {
+        val host = request.headers().get(HttpHeaderNames.HOST) ?: return false
+        return domainPrefixList.firstOrNull { it.startsWith(host) } != null
+    }
+
+    private fun decodePath(uri: String) = URLDecoder.decode(uri.split('?').first(), "utf-8")
+
+    private fun notFound(request: HttpRequest, path: String): FullHttpResponse {
+        val content = "404 $path".toByteArray(Charsets.UTF_8)
+        val response = DefaultFullHttpResponse(
+            request.protocolVersion(),
+            HttpResponseStatus.NOT_FOUND,
+            Unpooled.wrappedBuffer(content)
+        )
+        response.headers()
+            .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN)
+            .set(HttpHeaderNames.CONTENT_LENGTH, content.size)
+        return response
+    }
+
+    /** 查找文件，缓存按修改时间和大小失效；路径不允许跳出根目录 */
+    private fun getFileEntry(path: String): FileEntry? {
+        for (rootPath in rootPathList) {
+            val root = File(rootPath).canonicalFile
+            val file = File(root, path).canonicalFile
+            if (!file.toPath().startsWith(root.toPath())) {
+                continue
+            }
+            val lastModified = file.lastModified()
+            val length = file.length()
+            val cached = synchronized(cache) { cache[file] }
+            if (cached != null && cached.lastModified == lastModified && cached.length == length && file.isFile) {
+                return cached
+            }
+            if (!file.isFile) {
+                synchronized(cache) { cache.remove(file) }
+                continue
+            }
+            val entry = FileEntry(
+                file = file,
+                length = length,
+                lastModified = lastModified,
+                contentType = getContentType(file.name),
+                content = if (length <= cacheMaxFileSize) file.readBytes().takeIf { it.size.toLong() == length } else null
             )
-            response.headers()
-                .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.BINARY)
-                .set(HttpHeaderNames.CONTENT_LENGTH, content.size)
-            response
+            synchronized(cache) { cache[file] = entry }
+            return entry
+        }
+        return null
+    }
+
+    private fun setEntityHeaders(response: HttpResponse, entry: FileEntry) {
+        response.headers()
+            .set(HttpHeaderNames.CONTENT_TYPE, entry.contentType)
+            .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES)
+            .set(HttpHeaderNames.ETAG, entry.etag)
+            .set(HttpHeaderNames.LAST_MODIFIED, DateFormatter.format(Date(entry.lastModified)))
+    }
+
+    private fun isNotModified(request: HttpRequest, entry: FileEntry): Boolean {
+        val ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH)
+        if (ifNoneMatch != null) {
+            return ifNoneMatch == "*" || ifNoneMatch.split(',').any { it.trim().removePrefix("W/") == entry.etag }
+        }
+        val ifModifiedSince = request.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE)
+            ?.let { DateFormatter.parseHttpDate(it) } ?: return false
+        // HTTP 日期精确到秒
+        return entry.lastModified / 1000 <= ifModifiedSince.time / 1000
+    }
+
+    private fun isIfRangeMatched(request: HttpRequest, entry: FileEntry): Boolean {
+        val ifRange = request.headers().get(HttpHeaderNames.IF_RANGE) ?: return true
+        if (ifRange == entry.etag) {
+            return true
+        }
+        val date = DateFormatter.parseHttpDate(ifRange) ?: return false
+        return entry.lastModified / 1000 == date.time / 1000
+    }
+
+    private class FileEntry(
+        val file: File,
+        val length: Long,
+        val lastModified: Long,
+        val contentType: String,
+        val content: ByteArray?
+    ) {
+        val etag = "\"${lastModified.toString(16)}-${length.toString(16)}\""
+    }
+
+    companion object {
+        private val MIME_TYPES = mapOf(
+            "html" to "text/html; charset=utf-8",
+            "htm" to "text/html; charset=utf-8",
+            "css" to "text/css; charset=utf-8",
+            "js" to "application/javascript; charset=utf-8",
+            "mjs" to "application/javascript; charset=utf-8",
+            "json" to "application/json; charset=utf-8",
+            "txt" to "text/plain; charset=utf-8",
+            "xml" to "application/xml; charset=utf-8",
+            "svg" to "image/svg+xml",
+            "png" to "image/png",
+            "jpg" to "image/jpeg",
+            "jpeg" to "image/jpeg",
+            "gif" to "image/gif",
+            "webp" to "image/webp",
+            "ico" to "image/x-icon",
+            "woff" to "font/woff",
+            "woff2" to "font/woff2",
+            "wasm" to "application/wasm",
+            "mp4" to "video/mp4",
+            "pdf" to "application/pdf",
+            "zip" to "application/zip"
+        )
+
+        internal fun getContentType(name: String): String {
+            return MIME_TYPES[name.substringAfterLast('.', "").toLowerCase()]
+                ?: URLConnection.guessContentTypeFromName(name)
+                ?: HttpHeaderValues.APPLICATION_OCTET_STREAM.toString()
+        }
+
+        /**
+         * 解析单区间 Range，区间不可满足时返回 null；多区间或格式错误时返回整个文件
+         */
+        internal fun parseRange(value: String, length: Long): LongRange? {
+            val whole = 0L until length
+            if (!value.startsWith("bytes=") || value.contains(',')) {
+                return whole
+            }
+            val spec = value.substring("bytes=".length).trim()
+            val index = spec.indexOf('-')
+            if (index < 0) {
+                return whole
+            }
+            val start = spec.substring(0, index).trim()
+            val end = spec.substring(index + 1).trim()
+            return try {
+                if (start.isEmpty()) {
+                    // bytes=-500 最后 500 字节
+                    val suffix = end.toLong()
+                    if (suffix <= 0 || length == 0L) null else (length - suffix).coerceAtLeast(0) until length
+                } else {
+                    val first = start.toLong()
+                    val last = if (end.isEmpty()) length - 1 else end.toLong().coerceAtMost(length - 1)
+                    if (first >= length || first > last) null else first..last
+                }
+            } catch (e: NumberFormatException) {
+                whole
+            }
         }
     }
 
-}
\ No newline at end of file
+}
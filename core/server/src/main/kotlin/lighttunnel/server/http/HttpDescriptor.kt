@@ -1,20 +1,19 @@
 package lighttunnel.server.http
 
 import lighttunnel.server.util.SessionChannels
+import lighttunnel.server.util.SessionChannelsGroup
+import java.net.SocketAddress
 
 class HttpDescriptor(
     val host: String,
-    val sessionChannels: SessionChannels
+    sessionChannels: SessionChannels
 ) {
 
-    val tunnelId get() = sessionChannels.tunnelId
+    val group = SessionChannelsGroup(sessionChannels)
 
-    val tunnelRequest get() = sessionChannels.tunnelRequest
+    val channelCount get() = group.members.sumBy { it.cachedChannelCount }
 
-    val tunnelChannel get() = sessionChannels.tunnelChannel
-
-    val channelCount get() = sessionChannels.cachedChannelCount
-
-    fun close() = sessionChannels.destroy()
+    /** 为新会话选择一个隧道 */
+    fun select(remoteAddress: SocketAddress?) = group.select(remoteAddress)
 
 }
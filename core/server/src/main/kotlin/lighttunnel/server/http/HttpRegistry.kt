@@ -2,93 +2,115 @@ package lighttunnel.server.http
 
 import io.netty.channel.Channel
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.proto.HeartbeatHandler
 import lighttunnel.proto.ProtoException
 import lighttunnel.server.util.SessionChannels
+import lighttunnel.server.util.WildcardHostTrie
 import org.json.JSONArray
 import org.json.JSONObject
-import java.util.concurrent.locks.ReentrantReadWriteLock
-import kotlin.concurrent.read
-import kotlin.concurrent.write
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 
 class HttpRegistry {
     private val logger by loggerDelegate()
 
-    private val tunnelIdDescriptors = HashMap<Long, HttpDescriptor>()
-    private val hostDescriptors = HashMap<String, HttpDescriptor>()
-    private val lock = ReentrantReadWriteLock()
+    private val tunnelIdSessionChannels = ConcurrentHashMap<Long, SessionChannels>()
+    private val hostDescriptors = ConcurrentHashMap<String, HttpDescriptor>()
+    /** `*.example.com` 形式的通配域名，精确匹配优先 */
+    private val wildcardDescriptors = WildcardHostTrie<HttpDescriptor>()
 
     @Throws(ProtoException::class)
     fun register(host: String, sessionChannels: SessionChannels) {
-        if (isRegistered(host)) {
-            throw ProtoException("host($host) already used")
+        if (!WildcardHostTrie.isValidPattern(host)) {
+            throw ProtoException("host($host) invalid")
         }
-        val descriptor = HttpDescriptor(host, sessionChannels)
-        lock.write {
-            tunnelIdDescriptors[sessionChannels.tunnelId] = descriptor
-            hostDescriptors[host] = descriptor
+        val key = normalizeHost(host)
+        // 同一个 host 的隧道都声明了负载均衡时加入同一组
+        hostDescriptors.compute(key) { _, descriptor ->
+            when {
+                descriptor == null -> HttpDescriptor(key, sessionChannels).also {
+                    // 在 compute 中注册通配域名，冲突时抛出异常，hostDescriptors 保持不变
+                    if (WildcardHostTrie.isWildcard(key) && wildcardDescriptors.putIfAbsent(key, it) != null) {
+                        throw ProtoException("host($host) already used")
+                    }
+                }
+                descriptor.group.canJoin(sessionChannels) -> descriptor.also { it.group.add(sessionChannels) }
+                else -> throw ProtoException("host($host) already used")
+            }
         }
+        tunnelIdSessionChannels[sessionChannels.tunnelId] = sessionChannels
         logger.info("Start Tunnel: {}, Options: {}", sessionChannels.tunnelRequest, sessionChannels.tunnelRequest.optionsString)
         logger.trace("hostDescriptors: {}", hostDescriptors)
-        logger.trace("tunnelIdDescriptors: {}", tunnelIdDescriptors)
+        logger.trace("tunnelIdSessionChannels: {}", tunnelIdSessionChannels)
     }
 
-    fun unregister(host: String?) {
-        lock.write {
-            unsafeUnregister(host)
-            hostDescriptors.remove(host)
+    /** 注销一个隧道，组内没有隧道时才注销 host */
+    fun unregister(host: String?, sessionChannels: SessionChannels) {
+        host ?: return
+        val key = normalizeHost(host)
+        var removed = false
+        hostDescriptors.computeIfPresent(key) { _, descriptor ->
+            removed = descriptor.group.remove(sessionChannels)
+            if (descriptor.group.isEmpty) {
+                wildcardDescriptors.remove(key, descriptor)
+                null
+            } else {
+                descriptor
+            }
+        }
+        tunnelIdSessionChannels.remove(sessionChannels.tunnelId, sessionChannels)
+        if (removed) {
+            sessionChannels.destroy()
+            logger.info("Shutdown Tunnel: {}", sessionChannels.tunnelRequest)
         }
     }
 
     fun destroy() {
-        lock.write {
-            hostDescriptors.forEach { (host, _) -> unsafeUnregister(host) }
-            hostDescriptors.clear()
+        hostDescriptors.values.forEach { descriptor ->
+            descriptor.group.members.forEach { unregister(descriptor.host, it) }
         }
     }
 
     fun isRegistered(host: String): Boolean {
-        lock.read {
-            return hostDescriptors.contains(host)
-        }
+        return hostDescriptors.containsKey(normalizeHost(host))
     }
 
     fun getSessionChannel(tunnelId: Long, sessionId: Long): Channel? {
-        lock.read {
-            return tunnelIdDescriptors[tunnelId]?.sessionChannels?.getChannel(sessionId)
-        }
+        return tunnelIdSessionChannels[tunnelId]?.getChannel(sessionId)
     }
 
     fun getDescriptor(host: String): HttpDescriptor? {
-        lock.read {
-            return hostDescriptors[host]
+        val key = normalizeHost(host)
+        val descriptor = hostDescriptors[key]
+        if (descriptor != null || wildcardDescriptors.isEmpty) {
+            return descriptor
         }
+        return wildcardDescriptors.match(key)
     }
 
+    /** 域名不区分大小写，注册与查找统一使用小写 */
+    private fun normalizeHost(host: String) = host.toLowerCase(Locale.ROOT)
+
     val snapshot: JSONArray
         get() {
-            lock.read {
-                val array = JSONArray()
-                tunnelIdDescriptors.values.forEach {
+            val array = JSONArray()
+            hostDescriptors.values.forEach { descriptor ->
+                descriptor.group.members.forEach {
                     array.put(JSONObject().also { obj ->
-                        obj.put("host", it.host)
-                        obj.put("conns", it.channelCount)
+                        obj.put("host", descriptor.host)
+                        obj.put("conns", it.cachedChannelCount)
                         obj.put("name", it.tunnelRequest.name)
                         obj.put("local_addr", it.tunnelRequest.localAddr)
                         obj.put("local_port", it.tunnelRequest.localPort)
+                        HeartbeatHandler.rttOf(it.tunnelChannel)?.takeIf { rtt -> rtt.hasSample }?.also { rtt ->
+                            obj.put("rtt_ms", rtt.srttMillis)
+                            obj.put("rtt_jitter_ms", rtt.jitterMillis)
+                        }
                     })
                 }
-                return array
             }
+            return array
         }
 
-    private fun unsafeUnregister(host: String?) {
-        host ?: return
-        hostDescriptors[host]?.also {
-            tunnelIdDescriptors.remove(it.tunnelId)
-            it.close()
-            logger.info("Shutdown Tunnel: {}", it.tunnelRequest)
-        }
-    }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+package lighttunnel.server.http
+
+import io.netty.buffer.ByteBuf
+import io.netty.handler.codec.http.HttpMethod
+
+/**
+ * 跟踪经隧道写回用户连接的响应，判断当前请求的响应是否已结束
+ *
+ * 只解析响应的帧结构：状态行、头部中的 Content-Length 与 Transfer-Encoding、chunk 大小行，
+ * 响应体直接在写出的缓冲区上按下标跳过，不复制、不解码；只有跨缓冲区的不完整行会暂存。
+ * 1xx 为中间响应，HEAD 请求及 204、304 响应没有响应体；协议升级或响应无法解析时停止跟踪
+ */
+internal class HttpResponseTracker {
+
+    companion object {
+        private const val MAX_LINE_LENGTH = 8192
+        private const val LF = '\n'.toByte()
+    }
+
+    private enum class State {
+        STATUS_LINE, HEADER, FIXED_BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, UNTIL_CLOSE
+    }
+
+    private var method = HttpMethod.GET
+    private var state = State.STATUS_LINE
+    /** 未读完的行，不含换行符 */
+    private val line = StringBuilder()
+    private var code = 0
+    private var contentLength = -1L
+    private var chunked = false
+    /** 当前响应体或 chunk 剩余的字节数 */
+    private var remaining = 0L
+
+    /** 停止跟踪后，每次写出都视为响应已结束 */
+    var isDisabled = false
+        private set
+
+    /** 开始跟踪下一个请求的响应 */
+    fun start(method: HttpMethod) {
+        this.method = method
+        resetResponse()
+    }
+
+    /**
+     * 解析写出的响应数据，不改变 buf 的读写指针
+     *
+     * @return 当前响应是否已结束
+     */
+    fun onWrite(buf: ByteBuf): Boolean {
+        if (isDisabled) {
+            return true
+        }
+        var index = buf.readerIndex()
+        val end = buf.writerIndex()
+        while (index < end) {
+            when (state) {
+                State.FIXED_BODY, State.CHUNK_DATA -> {
+                    val length = minOf(remaining, (end - index).toLong()).toInt()
+                    index += length
+                    remaining -= length
+                    if (remaining == 0L) {
+                        if (state == State.FIXED_BODY) {
+                            return true
+                        }
+                        state = State.CHUNK_END
+                    }
+                }
+                State.UNTIL_CLOSE -> index = end
+                else -> {
+                    val next = readLine(buf, index, end)
+                    if (isDisabled) {
+                        return true
+                    }
+                    if (next < 0) {
+                        break
+                    }
+                    index = next
+                    if (onLine() || isDisabled) {
+                        return true
+                    }
+                }
+            }
+        }
+        return false
+    }
+
+    private fun resetResponse() {
+        state = State.STATUS_LINE
+        line.setLength(0)
+        code = 0
+        contentLength = -1L
+        chunked = false
+        remaining = 0L
+    }
+
+    /** 读取一行追加到 line 中，返回行尾之后的下标，行未结束时返回 -1 */
+    private fun readLine(buf: ByteBuf, index: Int, end: Int): Int {
+        val lf = buf.indexOf(index, end, LF)
+        val to = if (lf < 0) end else lf
+        if (line.length + (to - index) > MAX_LINE_LENGTH) {
+            isDisabled = true
+            return -1
+        }
+        for (i in index until to) {
+            line.append((buf.getByte(i).toInt() and 0xFF).toChar())
+        }
+        return if (lf < 0) -1 else lf + 1
+    }
+
+    /** 处理读完的一行，返回响应是否已结束 */
+    private fun onLine(): Boolean {
+        val text = if (line.endsWith('\r')) line.substring(0, line.length - 1) else line.toString()
+        line.setLength(0)
+        when (state) {
+            State.STATUS_LINE -> {
+                if (text.isEmpty()) {
+                    return false
+                }
+                val code = text.split(' ').getOrNull(1)?.toIntOrNull()
+                if (code == null) {
+                    isDisabled = true
+                    return false
+                }
+                this.code = code
+                state = State.HEADER
+            }
+            State.HEADER -> {
+                if (text.isEmpty()) {
+                    return onHeadersEnd()
+                }
+                val colon = text.indexOf(':')
+                if (colon <= 0) {
+                    return false
+                }
+                val name = text.substring(0, colon).trim()
+                val value = text.substring(colon + 1).trim()
+                if (name.equals("Content-Length", true)) {
+                    val length = value.toLongOrNull()
+                    if (length == null || length < 0) {
+                        isDisabled = true
+                        return false
+                    }
+                    contentLength = length
+                } else if (name.equals("Transfer-Encoding", true) && value.contains("chunked", true)) {
+                    chunked = true
+                }
+            }
+            State.CHUNK_SIZE -> {
+                val size = text.substringBefore(';').trim().toLongOrNull(16)
+                if (size == null || size < 0) {
+                    isDisabled = true
+                    return false
+                }
+                if (size == 0L) {
+                    state = State.TRAILER
+                } else {
+                    remaining = size
+                    state = State.CHUNK_DATA
+                }
+            }
+            State.CHUNK_END -> state = State.CHUNK_SIZE
+            State.TRAILER -> return text.isEmpty()
+            else -> Unit
+        }
+        return false
+    }
+
+    private fun onHeadersEnd(): Boolean {
+        // 协议升级、CONNECT 建立隧道后不再是 HTTP 响应
+        if (code == 101 || (method == HttpMethod.CONNECT && code in 200..299)) {
+            isDisabled = true
+            return false
+        }
+        if (code in 100..199) {
+            resetResponse()
+            return false
+        }
+        if (method == HttpMethod.HEAD || code == 204 || code == 304) {
+            return true
+        }
+        when {
+            chunked -> state = State.CHUNK_SIZE
+            contentLength == 0L -> return true
+            contentLength > 0 -> {
+                remaining = contentLength
+                state = State.FIXED_BODY
+            }
+            // 没有长度的响应体直到连接关闭才结束
+            else -> state = State.UNTIL_CLOSE
+        }
+        return false
+    }
+
+}
@@ -3,51 +3,82 @@ package lighttunnel.server.http
 import io.netty.bootstrap.ServerBootstrap
 import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelOption
-import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.EventLoopGroup
 import io.netty.channel.socket.SocketChannel
-import io.netty.channel.socket.nio.NioServerSocketChannel
 import io.netty.handler.codec.http.HttpRequestDecoder
 import io.netty.handler.codec.http.HttpResponseEncoder
 import io.netty.handler.ssl.SslContext
 import io.netty.handler.ssl.SslHandler
+import io.netty.handler.stream.ChunkedWriteHandler
 import lighttunnel.logger.loggerDelegate
 import lighttunnel.server.interceptor.HttpRequestInterceptor
+import lighttunnel.transport.Transport
 
-
+/**
+ * @param rawMode 原始字节模式，只解析第一个请求的请求头用于路由，之后按字节透传，见 [HttpSniffChannelHandler]
+ * @param sniPassthrough TLS SNI 透传，按 ClientHello 中的 server name 路由，不终止 TLS，此时忽略 sslContext，
+ * 见 [SniPassthroughChannelHandler]
+ * @param interceptorTimeoutMillis 异步拦截器的超时时间，超时后关闭连接
+ */
 class HttpServer(
-    bossGroup: NioEventLoopGroup,
-    workerGroup: NioEventLoopGroup,
+    bossGroup: EventLoopGroup,
+    workerGroup: EventLoopGroup,
+    transport: Transport = Transport.DEFAULT,
     private val bindAddr: String?,
     private val bindPort: Int,
     private val sslContext: SslContext? = null,
     private val interceptor: HttpRequestInterceptor,
-    private val staticFilePlugin: StaticFilePlugin? = null
+    private val staticFilePlugin: StaticFilePlugin? = null,
+    private val rawMode: Boolean = false,
+    private val sniPassthrough: Boolean = false,
+    private val interceptorTimeoutMillis: Long = 10_000L
 ) {
     private val logger by loggerDelegate()
     val registry = HttpRegistry()
     private val serverBootstrap = ServerBootstrap()
-    private val isHttps: Boolean get() = sslContext != null
+    private val isHttps: Boolean get() = sslContext != null || sniPassthrough
 
     init {
         this.serverBootstrap.group(bossGroup, workerGroup)
-            .channel(NioServerSocketChannel::class.java)
+        transport.configure(this.serverBootstrap)
             .childOption(ChannelOption.AUTO_READ, true)
             .childOption(ChannelOption.SO_KEEPALIVE, true)
             .childHandler(object : ChannelInitializer<SocketChannel>() {
                 override fun initChannel(ch: SocketChannel?) {
                     ch ?: return
+                    if (sniPassthrough) {
+                        ch.pipeline().addLast("sni", SniPassthroughChannelHandler(registry))
+                        return
+                    }
                     if (sslContext != null) {
                         ch.pipeline().addFirst(
                             "ssl", SslHandler(sslContext.newEngine(ch.alloc()))
                         )
                     }
+                    if (rawMode) {
+                        if (staticFilePlugin != null) {
+                            // 只用于静态文件响应
+                            ch.pipeline()
+                                .addLast("encoder", HttpResponseEncoder())
+                                .addLast("chunked", ChunkedWriteHandler())
+                        }
+                        ch.pipeline().addLast("sniff", HttpSniffChannelHandler(
+                            registry = registry,
+                            interceptor = interceptor,
+                            staticFilePlugin = staticFilePlugin,
+                            interceptorTimeoutMillis = interceptorTimeoutMillis
+                        ))
+                        return
+                    }
                     ch.pipeline()
                         .addLast("decoder", HttpRequestDecoder())
                         .addLast("encoder", HttpResponseEncoder())
+                        .addLast("chunked", ChunkedWriteHandler())
                         .addLast("handler", HttpServerChannelHandler(
                             registry = registry,
                             interceptor = interceptor,
-                            staticFilePlugin = staticFilePlugin
+                            staticFilePlugin = staticFilePlugin,
+                            interceptorTimeoutMillis = interceptorTimeoutMillis
                         ))
                 }
             })
@@ -60,8 +91,9 @@ class HttpServer(
             serverBootstrap.bind(bindAddr, bindPort).get()
         }
         logger.info(
-            "Serving {} on {} port {}",
+            "Serving {}{} on {} port {}",
             if (isHttps) "https" else "http",
+            if (sniPassthrough) " (sni passthrough)" else if (rawMode) " (raw)" else "",
             bindAddr ?: "any address",
             bindPort
         )
@@ -1,26 +1,54 @@
 package lighttunnel.server.http
 
-import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.ByteBuf
 import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelDuplexHandler
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.ChannelHandlerContext
-import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelPromise
 import io.netty.handler.codec.http.HttpContent
 import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponse
+import io.netty.util.ReferenceCountUtil
 import lighttunnel.logger.loggerDelegate
 import lighttunnel.proto.ProtoMessage
 import lighttunnel.proto.ProtoMessageType
 import lighttunnel.server.interceptor.HttpRequestInterceptor
+import lighttunnel.server.interceptor.InterceptorExecutor
+import lighttunnel.server.interceptor.onCompleteInEventLoop
 import lighttunnel.server.util.AttributeKeys
 import lighttunnel.server.util.HttpUtil
-import lighttunnel.util.LongUtil
+import lighttunnel.server.util.SessionChannels
+import lighttunnel.util.ReadPause
+import java.util.ArrayDeque
 
+/**
+ * @param interceptorTimeoutMillis 异步拦截器的超时时间，超时后关闭连接
+ * @param maxPendingBytes 等待期间缓存的请求体最大字节数，超过时关闭连接
+ */
 class HttpServerChannelHandler(
     private val registry: HttpRegistry,
-    private val interceptor: HttpRequestInterceptor,
-    private val staticFilePlugin: StaticFilePlugin? = null
-) : ChannelInboundHandlerAdapter() {
+    interceptor: HttpRequestInterceptor,
+    private val staticFilePlugin: StaticFilePlugin? = null,
+    private val interceptorTimeoutMillis: Long = 10_000L,
+    private val maxPendingBytes: Int = 256 * 1024
+) : ChannelDuplexHandler() {
+    companion object {
+        /** 等待期间缓存的最大消息数，HttpRequestDecoder 按块输出，正常情况下远小于该值 */
+        private const val MAX_PENDING_MESSAGES = 1024
+    }
+
     private val logger by loggerDelegate()
+    private val asyncInterceptor = InterceptorExecutor.asAsync(interceptor, null)
+
+    /** 等待拦截器结果或静态文件响应写出期间读取到的消息，等待结束后按顺序处理 */
+    private val pendingMessages = ArrayDeque<Any>()
+    private var pendingBytes = 0
+    private var waiting = false
+
+    /** 已转发到隧道、响应尚未结束的请求；同一时间只有一个，后续请求在响应结束后再转发 */
+    private var awaitingResponse = false
+    private val responseTracker = HttpResponseTracker()
 
     @Throws(Exception::class)
     override fun channelActive(ctx: ChannelHandlerContext) {
@@ -31,17 +59,15 @@ class HttpServerChannelHandler(
     @Throws(Exception::class)
     override fun channelInactive(ctx: ChannelHandlerContext) {
         logger.trace("channelInactive: {}", ctx)
-        val host = ctx.channel().attr(AttributeKeys.AK_HTTP_HOST).get()
+        releasePendingMessages()
+        val sessionChannels = ctx.channel().attr(AttributeKeys.AK_HTTP_SESSION_CHANNELS).get()
         val sessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get()
-        if (host != null && sessionId != null) {
-            val descriptor = registry.getDescriptor(host)
-            if (descriptor != null) {
-                val head = LongUtil.toBytes(descriptor.tunnelId, sessionId)
-                descriptor.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.REMOTE_DISCONNECT, head))
-            }
-            ctx.channel().attr<String>(AttributeKeys.AK_HTTP_HOST).set(null)
-            ctx.channel().attr<Long>(AttributeKeys.AK_SESSION_ID).set(null)
+        if (sessionChannels != null && sessionId != null) {
+            closeSession(ctx, sessionChannels, sessionId)
         }
+        ctx.channel().attr<String>(AttributeKeys.AK_HTTP_HOST).set(null)
+        ctx.channel().attr<SessionChannels>(AttributeKeys.AK_HTTP_SESSION_CHANNELS).set(null)
+        ctx.channel().attr<Long>(AttributeKeys.AK_SESSION_ID).set(null)
         super.channelInactive(ctx)
         ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
     }
@@ -54,16 +80,36 @@ class HttpServerChannelHandler(
 
     @Throws(Exception::class)
     override fun channelRead(ctx: ChannelHandlerContext, msg: Any) {
-        if (msg is HttpRequest) {
-            val response = staticFilePlugin?.doHandle(msg)
-            if (response != null) {
-                ctx.channel().writeAndFlush(response).addListener(ChannelFutureListener.CLOSE)
-                ctx.channel().attr<Boolean>(AttributeKeys.AK_HTTP_SKIP).set(false)
-            } else {
-                doChannelReadHttpRequest(ctx, msg)
+        if (!waiting && awaitingResponse && msg is HttpRequest) {
+            // pipelining 的请求等上一个响应结束后再转发，本地服务不一定支持 pipelining
+            waitFor(ctx)
+        }
+        if (waiting) {
+            addPendingMessage(ctx, msg)
+            return
+        }
+        try {
+            if (msg is HttpRequest) {
+                val future = staticFilePlugin?.doHandle(ctx, msg)
+                if (future != null) {
+                    ctx.channel().attr<Boolean>(AttributeKeys.AK_HTTP_SKIP).set(false)
+                    if (io.netty.handler.codec.http.HttpUtil.isKeepAlive(msg)) {
+                        // 响应写出前不处理后续请求（包括已解码的 pipelining 请求），保证 keep-alive 连接上响应的顺序
+                        waitFor(ctx)
+                        future.addListener(ChannelFutureListener {
+                            if (it.isSuccess) resumePending(ctx) else it.channel().close()
+                        })
+                    } else {
+                        future.addListener(ChannelFutureListener.CLOSE)
+                    }
+                } else {
+                    doChannelReadHttpRequest(ctx, msg)
+                }
+            } else if (msg is HttpContent) {
+                doChannelReadHttpContent(ctx, msg)
             }
-        } else if (msg is HttpContent) {
-            doChannelReadHttpContent(ctx, msg)
+        } finally {
+            ReferenceCountUtil.release(msg)
         }
     }
 
@@ -75,29 +121,143 @@ class HttpServerChannelHandler(
             ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
             return
         }
-        ctx.channel().attr(AttributeKeys.AK_HTTP_HOST).set(host)
         val descriptor = registry.getDescriptor(host)
         if (descriptor == null) {
             ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
             ctx.channel().attr<Boolean>(AttributeKeys.AK_HTTP_SKIP).set(false)
             return
         }
+        // 同一个连接上的请求（keep-alive、pipelining）共用一个会话，经同一个本地连接逐个转发，上一个响应结束后才转发下一个；
+        // Host 变化或隧道已断开时结束旧会话，重新选择隧道
+        val prevHost = ctx.channel().attr(AttributeKeys.AK_HTTP_HOST).getAndSet(host)
+        val prevSessionChannels = ctx.channel().attr(AttributeKeys.AK_HTTP_SESSION_CHANNELS).get()
+        val prevSessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get()
+        if (prevSessionChannels != null && prevSessionId != null &&
+            (prevHost != host || prevSessionChannels.getChannel(prevSessionId) !== ctx.channel())
+        ) {
+            closeSession(ctx, prevSessionChannels, prevSessionId)
+            ctx.channel().attr<SessionChannels>(AttributeKeys.AK_HTTP_SESSION_CHANNELS).set(null)
+            ctx.channel().attr<Long>(AttributeKeys.AK_SESSION_ID).set(null)
+        }
+        val sessionChannels = ctx.channel().attr(AttributeKeys.AK_HTTP_SESSION_CHANNELS).get()
+            ?: descriptor.select(ctx.channel().remoteAddress())
+        if (sessionChannels == null) {
+            ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
+            ctx.channel().attr<Boolean>(AttributeKeys.AK_HTTP_SKIP).set(false)
+            return
+        }
         ctx.channel().attr(AttributeKeys.AK_HTTP_SKIP).set(true)
-        val httpResponse = interceptor.handleHttpRequest(
+        // 拦截器可能访问外部服务，结果返回前暂停读取该连接，已解码的请求体先缓存
+        waiting = true
+        ReferenceCountUtil.retain(msg)
+        asyncInterceptor.handleHttpRequestAsync(
             ctx.channel().localAddress(),
             ctx.channel().remoteAddress(),
-            descriptor.tunnelRequest,
+            sessionChannels.tunnelRequest,
             msg
-        )
+        ).onCompleteInEventLoop(ctx, interceptorTimeoutMillis) { httpResponse, cause ->
+            waiting = false
+            try {
+                if (ctx.channel().isActive) {
+                    onHttpRequestIntercepted(ctx, sessionChannels, msg, httpResponse, cause)
+                }
+            } finally {
+                ReferenceCountUtil.release(msg)
+            }
+            resumePending(ctx)
+        }
+    }
+
+    /** 暂停读取，之后读取到的消息先缓存 */
+    private fun waitFor(ctx: ChannelHandlerContext) {
+        waiting = true
+        ReadPause.pause(ctx.channel(), ReadPause.Reason.RESPONSE)
+    }
+
+    /** 等待结束，按顺序处理缓存的消息，再次进入等待时停止；全部处理完后恢复读取 */
+    private fun resumePending(ctx: ChannelHandlerContext) {
+        waiting = false
+        while (!waiting) {
+            val pending = pendingMessages.peek() ?: break
+            if (awaitingResponse && pending is HttpRequest) {
+                waitFor(ctx)
+                break
+            }
+            pendingMessages.poll()
+            pendingBytes -= sizeOf(pending)
+            channelRead(ctx, pending)
+        }
+        if (!waiting && ctx.channel().isActive) {
+            ReadPause.resume(ctx.channel(), ReadPause.Reason.RESPONSE)
+        }
+    }
+
+    /** 读取已暂停，缓存的只是同一批已解码的消息；超过上限时关闭连接，不再继续缓存 */
+    private fun addPendingMessage(ctx: ChannelHandlerContext, msg: Any) {
+        pendingMessages.add(msg)
+        pendingBytes += sizeOf(msg)
+        if (pendingBytes > maxPendingBytes || pendingMessages.size > MAX_PENDING_MESSAGES) {
+            logger.trace("too many pending messages: {}, {} bytes", ctx, pendingBytes)
+            releasePendingMessages()
+            ctx.channel().close()
+        }
+    }
+
+    private fun releasePendingMessages() {
+        while (pendingMessages.isNotEmpty()) {
+            ReferenceCountUtil.release(pendingMessages.poll())
+        }
+        pendingBytes = 0
+    }
+
+    private fun sizeOf(msg: Any) = if (msg is HttpContent) msg.content().readableBytes() else 0
+
+    private fun onHttpRequestIntercepted(
+        ctx: ChannelHandlerContext,
+        sessionChannels: SessionChannels,
+        msg: HttpRequest,
+        httpResponse: HttpResponse?,
+        cause: Throwable?
+    ) {
+        if (cause != null || !sessionChannels.tunnelChannel.isActive) {
+            logger.trace("intercept failure: {}", ctx, cause)
+            ctx.channel().attr(AttributeKeys.AK_HTTP_SKIP).set(false)
+            ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
+            return
+        }
         if (httpResponse != null) {
+            // 请求已被拦截，丢弃该请求的 HttpContent
+            ctx.channel().attr(AttributeKeys.AK_HTTP_SKIP).set(false)
             ctx.channel().writeAndFlush(HttpUtil.toByteBuf(httpResponse))
             return
         }
-        val sessionId = descriptor.sessionChannels.putChannel(ctx.channel())
-        ctx.channel().attr(AttributeKeys.AK_SESSION_ID).set(sessionId)
-        val head = LongUtil.toBytes(descriptor.tunnelId, sessionId)
+        val sessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get()
+            ?: sessionChannels.putChannel(ctx.channel()).also {
+                ctx.channel().attr(AttributeKeys.AK_HTTP_SESSION_CHANNELS).set(sessionChannels)
+                ctx.channel().attr(AttributeKeys.AK_SESSION_ID).set(it)
+            }
         val data = HttpUtil.toBytes(msg)
-        descriptor.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.TRANSFER, head, data))
+        sessionChannels.tunnelChannel.writeAndFlush(
+            ProtoMessage(ProtoMessageType.TRANSFER, sessionChannels.tunnelId, sessionId, Unpooled.wrappedBuffer(data))
+        )
+        ctx.channel().attr(AttributeKeys.AK_FLOW_WINDOW).get()?.onSent(ctx.channel(), data.size)
+        awaitingResponse = true
+        responseTracker.start(msg.method())
+    }
+
+    /** 隧道写回的响应经过这里，当前响应结束后处理缓存的后续请求 */
+    @Throws(Exception::class)
+    override fun write(ctx: ChannelHandlerContext, msg: Any, promise: ChannelPromise) {
+        if (!awaitingResponse || msg !is ByteBuf || !responseTracker.onWrite(msg)) {
+            ctx.write(msg, promise)
+            return
+        }
+        awaitingResponse = false
+        ctx.write(msg, promise.unvoid()).addListener(ChannelFutureListener {
+            if (it.isSuccess && waiting) {
+                resumePending(ctx)
+            }
+        })
     }
 
     /** 处理读取到的HttpContent类型的消息 */
@@ -107,21 +267,29 @@ class HttpServerChannelHandler(
         if (!skip) {
             return
         }
-        val host = ctx.channel().attr(AttributeKeys.AK_HTTP_HOST).get()
+        val sessionChannels = ctx.channel().attr(AttributeKeys.AK_HTTP_SESSION_CHANNELS).get()
         val sessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get()
-        if (host == null || sessionId == null) {
+        if (sessionChannels == null || sessionId == null) {
             ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
             return
         }
-        val descriptor = registry.getDescriptor(host)
-        if (descriptor == null) {
-            ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
+        val data = msg.content().retain()
+        val length = data.readableBytes()
+        sessionChannels.tunnelChannel.writeAndFlush(
+            ProtoMessage(ProtoMessageType.TRANSFER, sessionChannels.tunnelId, sessionId, data)
+        )
+        ctx.channel().attr(AttributeKeys.AK_FLOW_WINDOW).get()?.onSent(ctx.channel(), length)
+    }
+
+    /** 结束会话，通知客户端关闭对应的本地连接 */
+    private fun closeSession(ctx: ChannelHandlerContext, sessionChannels: SessionChannels, sessionId: Long) {
+        if (sessionChannels.getChannel(sessionId) !== ctx.channel()) {
             return
         }
-        val head = LongUtil.toBytes(descriptor.tunnelId, sessionId)
-        val data = ByteBufUtil.getBytes(msg.content())
-        descriptor.sessionChannels.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.TRANSFER, head, data))
-
+        sessionChannels.removeChannel(sessionId)
+        sessionChannels.tunnelChannel.writeAndFlush(
+            ProtoMessage(ProtoMessageType.REMOTE_DISCONNECT, sessionChannels.tunnelId, sessionId)
+        )
     }
 
 }
\ No newline at end of file
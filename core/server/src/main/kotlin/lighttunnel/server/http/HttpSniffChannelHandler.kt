@@ -0,0 +1,168 @@
+package lighttunnel.server.http
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelFutureListener
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.codec.ByteToMessageDecoder
+import io.netty.handler.codec.http.HttpHeaders
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponse
+import lighttunnel.logger.loggerDelegate
+import lighttunnel.proto.ProtoMessage
+import lighttunnel.proto.ProtoMessageType
+import lighttunnel.server.interceptor.HttpRequestInterceptor
+import lighttunnel.server.interceptor.InterceptorExecutor
+import lighttunnel.server.interceptor.onCompleteInEventLoop
+import lighttunnel.server.util.AttributeKeys
+import lighttunnel.server.util.HttpUtil
+import lighttunnel.server.util.SessionChannels
+import lighttunnel.util.LongUtil
+import lighttunnel.util.ReadPause
+
+/**
+ * 原始字节模式下的 vhost 路由
+ *
+ * 只解析连接上第一个请求的请求头来选择隧道，请求头改写直接在原始字节上进行，
+ * 之后替换为 [HttpSpliceChannelHandler]，连接上的其余数据按字节透传，不再解析 HTTP
+ *
+ * @param maxHeadSize 请求头最大长度，超过时关闭连接
+ */
+class HttpSniffChannelHandler(
+    private val registry: HttpRegistry,
+    interceptor: HttpRequestInterceptor,
+    private val staticFilePlugin: StaticFilePlugin? = null,
+    private val maxHeadSize: Int = 8 * 1024,
+    private val interceptorTimeoutMillis: Long = 10_000L
+) : ByteToMessageDecoder() {
+    private val logger by loggerDelegate()
+    private val asyncInterceptor = InterceptorExecutor.asAsync(interceptor, null)
+
+    /** 拦截器返回的结果，headLength 为请求头相对读指针的长度，等待期间累积缓冲区可能被重新分配 */
+    private class Intercepted(
+        val request: HttpRequest,
+        val origin: HttpHeaders,
+        val headLength: Int,
+        val sessionChannels: SessionChannels,
+        val httpResponse: HttpResponse?,
+        val cause: Throwable?
+    )
+
+    private var intercepting = false
+    private var intercepted: Intercepted? = null
+
+    @Throws(Exception::class)
+    override fun decode(ctx: ChannelHandlerContext, buf: ByteBuf, out: MutableList<Any>) {
+        // 拦截器结果返回前数据保留在累积缓冲区中，读取已暂停，见 channelReadComplete
+        if (intercepting) {
+            return
+        }
+        intercepted?.also {
+            intercepted = null
+            onIntercepted(ctx, buf, it)
+            return
+        }
+        val headEnd = HttpUtil.findHeadEnd(buf)
+        if (headEnd < 0) {
+            if (buf.readableBytes() > maxHeadSize) {
+                buf.skipBytes(buf.readableBytes())
+                close(ctx)
+            }
+            return
+        }
+        val request = HttpUtil.parseRequestHead(buf, headEnd)
+        val host = request?.let { HttpUtil.getDomainHost(it) }
+        if (request == null || host == null) {
+            buf.skipBytes(buf.readableBytes())
+            close(ctx)
+            return
+        }
+        val future = staticFilePlugin?.doHandle(ctx, request)
+        if (future != null) {
+            // 原始字节模式下不解析后续请求，响应后关闭连接
+            buf.skipBytes(buf.readableBytes())
+            future.addListener(ChannelFutureListener.CLOSE)
+            return
+        }
+        val sessionChannels = registry.getDescriptor(host)?.select(ctx.channel().remoteAddress())
+        if (sessionChannels == null) {
+            buf.skipBytes(buf.readableBytes())
+            close(ctx)
+            return
+        }
+        val origin = request.headers().copy()
+        val headLength = headEnd - buf.readerIndex()
+        intercepting = true
+        var sync = true
+        asyncInterceptor.handleHttpRequestAsync(
+            ctx.channel().localAddress(),
+            ctx.channel().remoteAddress(),
+            sessionChannels.tunnelRequest,
+            request
+        ).onCompleteInEventLoop(ctx, interceptorTimeoutMillis) { httpResponse, cause ->
+            intercepting = false
+            intercepted = Intercepted(request, origin, headLength, sessionChannels, httpResponse, cause)
+            // 异步返回时累积的数据还在，重新触发一次 decode
+            if (!sync && ctx.channel().isActive) {
+                channelRead(ctx, Unpooled.EMPTY_BUFFER)
+            }
+        }
+        sync = false
+        intercepted?.also {
+            intercepted = null
+            onIntercepted(ctx, buf, it)
+        }
+    }
+
+    private fun onIntercepted(ctx: ChannelHandlerContext, buf: ByteBuf, intercepted: Intercepted) {
+        val sessionChannels = intercepted.sessionChannels
+        if (intercepted.cause != null || !sessionChannels.tunnelChannel.isActive) {
+            logger.trace("intercept failure: {}", ctx, intercepted.cause)
+            buf.skipBytes(buf.readableBytes())
+            close(ctx)
+            return
+        }
+        val httpResponse = intercepted.httpResponse
+        if (httpResponse != null) {
+            // 不解析请求体就无法找到下一个请求的边界，直接关闭连接
+            buf.skipBytes(buf.readableBytes())
+            ctx.channel().writeAndFlush(HttpUtil.toByteBuf(httpResponse)).addListener(ChannelFutureListener.CLOSE)
+            return
+        }
+        val headEnd = buf.readerIndex() + intercepted.headLength
+        val sessionId = sessionChannels.putChannel(ctx.channel())
+        val head = LongUtil.toBytes(sessionChannels.tunnelId, sessionId)
+        val data = HttpUtil.rewriteRequestHead(ctx.alloc(), buf, headEnd, intercepted.origin, intercepted.request)
+        buf.readerIndex(headEnd)
+        val length = data.readableBytes()
+        sessionChannels.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.TRANSFER, head, data))
+        ctx.channel().attr(AttributeKeys.AK_FLOW_WINDOW).get()?.onSent(ctx.channel(), length)
+        // 剩余的字节由 ByteToMessageDecoder 在移除时交给 HttpSpliceChannelHandler
+        ctx.pipeline().replace(this, "splice", HttpSpliceChannelHandler(sessionChannels, sessionId, head))
+    }
+
+    /**
+     * ByteToMessageDecoder 没有输出时会主动 read，绕过 [ReadPause] 的暂停；
+     * 等待拦截器结果或读取被暂停时不再 read，累积的数据只有一次读取的量
+     */
+    @Throws(Exception::class)
+    override fun channelReadComplete(ctx: ChannelHandlerContext) {
+        if (intercepting || ReadPause.isPaused(ctx.channel())) {
+            discardSomeReadBytes()
+            ctx.fireChannelReadComplete()
+            return
+        }
+        super.channelReadComplete(ctx)
+    }
+
+    @Throws(Exception::class)
+    override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
+        logger.trace("exceptionCaught: {}", ctx, cause)
+        close(ctx)
+    }
+
+    private fun close(ctx: ChannelHandlerContext) {
+        ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
+    }
+
+}
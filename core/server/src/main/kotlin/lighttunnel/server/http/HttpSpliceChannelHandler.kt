@@ -0,0 +1,47 @@
+package lighttunnel.server.http
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelFutureListener
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.SimpleChannelInboundHandler
+import lighttunnel.logger.loggerDelegate
+import lighttunnel.proto.ProtoMessage
+import lighttunnel.proto.ProtoMessageType
+import lighttunnel.server.util.AttributeKeys
+import lighttunnel.server.util.SessionChannels
+
+/**
+ * 路由确定后按字节透传，与 TCP 隧道相同
+ */
+class HttpSpliceChannelHandler(
+    private val sessionChannels: SessionChannels,
+    private val sessionId: Long,
+    private val head: ByteArray
+) : SimpleChannelInboundHandler<ByteBuf>() {
+    private val logger by loggerDelegate()
+
+    @Throws(Exception::class)
+    override fun channelInactive(ctx: ChannelHandlerContext) {
+        if (sessionChannels.getChannel(sessionId) === ctx.channel()) {
+            sessionChannels.removeChannel(sessionId)
+            sessionChannels.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.REMOTE_DISCONNECT, head))
+        }
+        super.channelInactive(ctx)
+    }
+
+    @Throws(Exception::class)
+    override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
+        logger.trace("exceptionCaught: {}", ctx, cause)
+        ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
+    }
+
+    @Throws(Exception::class)
+    override fun channelRead0(ctx: ChannelHandlerContext, msg: ByteBuf) {
+        val data = msg.retain()
+        val length = data.readableBytes()
+        sessionChannels.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.TRANSFER, head, data))
+        ctx.channel().attr(AttributeKeys.AK_FLOW_WINDOW).get()?.onSent(ctx.channel(), length)
+    }
+
+}
@@ -0,0 +1,44 @@
+package lighttunnel.server.http
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelFutureListener
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.ssl.AbstractSniHandler
+import io.netty.util.concurrent.Future
+import lighttunnel.logger.loggerDelegate
+import lighttunnel.server.util.SessionChannels
+import lighttunnel.util.LongUtil
+
+/**
+ * TLS SNI 透传
+ *
+ * 只读取 ClientHello 中的 server name 来选择隧道，不在服务端终止 TLS，
+ * 之后替换为 [HttpSpliceChannelHandler]，加密数据（包括 ClientHello）原样转发给客户端的本地 TLS 服务
+ */
+class SniPassthroughChannelHandler(
+    private val registry: HttpRegistry
+) : AbstractSniHandler<SessionChannels>() {
+    private val logger by loggerDelegate()
+
+    @Throws(Exception::class)
+    override fun lookup(ctx: ChannelHandlerContext, hostname: String?): Future<SessionChannels> {
+        val sessionChannels = if (hostname == null) null else registry.getDescriptor(hostname)
+            ?.select(ctx.channel().remoteAddress())
+        return ctx.executor().newSucceededFuture(sessionChannels)
+    }
+
+    @Throws(Exception::class)
+    override fun onLookupComplete(ctx: ChannelHandlerContext, hostname: String?, future: Future<SessionChannels>) {
+        val sessionChannels = future.now
+        if (sessionChannels == null) {
+            logger.trace("no tunnel for server name: {}", hostname)
+            ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
+            return
+        }
+        val sessionId = sessionChannels.putChannel(ctx.channel())
+        val head = LongUtil.toBytes(sessionChannels.tunnelId, sessionId)
+        // 已缓存的 ClientHello 由 ByteToMessageDecoder 在移除时交给 HttpSpliceChannelHandler
+        ctx.pipeline().replace(this, "splice", HttpSpliceChannelHandler(sessionChannels, sessionId, head))
+    }
+
+}
@@ -1,5 +1,7 @@
 package lighttunnel.server.http
 
+import io.netty.channel.ChannelFuture
+import io.netty.channel.ChannelHandlerContext
 import io.netty.handler.codec.http.FullHttpResponse
 import io.netty.handler.codec.http.HttpRequest
 
@@ -7,4 +9,15 @@ interface StaticFilePlugin {
 
     fun doHandle(request: HttpRequest): FullHttpResponse?
 
-}
\ No newline at end of file
+    /**
+     * 写出静态文件响应，不处理该请求时返回 null，否则返回整个响应写出完成的 Future
+     *
+     * 默认实现调用 [doHandle]；需要零拷贝、分块或异步读取时重写此方法，
+     * pipeline 中已有 HttpResponseEncoder 和 ChunkedWriteHandler
+     */
+    fun doHandle(ctx: ChannelHandlerContext, request: HttpRequest): ChannelFuture? {
+        val response = doHandle(request) ?: return null
+        return ctx.channel().writeAndFlush(response)
+    }
+
+}
@@ -0,0 +1,23 @@
+package lighttunnel.server.interceptor
+
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponse
+import lighttunnel.proto.TunnelRequest
+import java.net.SocketAddress
+import java.util.concurrent.CompletionStage
+
+/**
+ * 异步的 HTTP 请求拦截器，结果返回前暂停读取该用户连接，已解码的请求体缓存到结果返回后再转发
+ *
+ * 结果为 null 时放行，异常结束时关闭连接
+ */
+interface AsyncHttpRequestInterceptor : HttpRequestInterceptor {
+
+    fun handleHttpRequestAsync(
+        localAddress: SocketAddress,
+        remoteAddress: SocketAddress,
+        tunnelRequest: TunnelRequest,
+        httpRequest: HttpRequest
+    ): CompletionStage<HttpResponse?>
+
+}
@@ -0,0 +1,15 @@
+package lighttunnel.server.interceptor
+
+import lighttunnel.proto.TunnelRequest
+import java.util.concurrent.CompletionStage
+
+/**
+ * 异步的隧道请求拦截器，需要访问外部服务（如 Token 存储）时实现该接口，不阻塞 EventLoop
+ *
+ * 结果返回前暂停读取该隧道连接，异常结束时以异常信息响应 RESPONSE_ERR 并关闭连接
+ */
+interface AsyncTunnelRequestInterceptor : TunnelRequestInterceptor {
+
+    fun handleTunnelRequestAsync(tunnelRequest: TunnelRequest): CompletionStage<TunnelRequest>
+
+}
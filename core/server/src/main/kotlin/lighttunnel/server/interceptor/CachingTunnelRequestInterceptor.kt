@@ -0,0 +1,82 @@
+package lighttunnel.server.interceptor
+
+import lighttunnel.proto.ProtoException
+import lighttunnel.proto.TunnelRequest
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.TimeUnit
+
+/**
+ * 按域名（TCP 隧道按端口）缓存拦截结果，只有请求完全相同（包括 Token）时才命中
+ *
+ * 服务端重启后大量客户端同时重连时，相同的请求只访问一次外部服务；进行中的结果同样共享。
+ * 明确拒绝（[ProtoException]）的结果同样缓存，超时、队列已满等其他异常不缓存
+ *
+ * @param ttlMillis 缓存有效期
+ * @param maxEntries 最大缓存数
+ */
+class CachingTunnelRequestInterceptor(
+    private val delegate: AsyncTunnelRequestInterceptor,
+    ttlMillis: Long,
+    private val maxEntries: Int = 1024
+) : AsyncTunnelRequestInterceptor {
+
+    private class Entry(
+        val tunnelRequest: TunnelRequest,
+        val result: CompletableFuture<TunnelRequest>,
+        val expireAtNanos: Long
+    )
+
+    private val ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis)
+    private val cache = object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>?): Boolean {
+            return size > maxEntries
+        }
+    }
+
+    init {
+        require(ttlMillis > 0) { "ttlMillis <= 0" }
+        require(maxEntries > 0) { "maxEntries <= 0" }
+    }
+
+    @Throws(ProtoException::class)
+    override fun handleTunnelRequest(tunnelRequest: TunnelRequest): TunnelRequest {
+        return handleTunnelRequestAsync(tunnelRequest).await()
+    }
+
+    override fun handleTunnelRequestAsync(tunnelRequest: TunnelRequest): CompletionStage<TunnelRequest> {
+        val key = keyOf(tunnelRequest)
+        val now = System.nanoTime()
+        synchronized(cache) {
+            val cached = cache[key]
+            if (cached != null && cached.tunnelRequest == tunnelRequest && now - cached.expireAtNanos < 0) {
+                return cached.result
+            }
+        }
+        val result = CompletableFuture<TunnelRequest>()
+        val entry = Entry(tunnelRequest, result, now + ttlNanos)
+        synchronized(cache) { cache[key] = entry }
+        result.whenComplete { _, cause ->
+            if (cause != null && cause.unwrapCompletion() !is ProtoException) {
+                synchronized(cache) { cache.remove(key, entry) }
+            }
+        }
+        try {
+            delegate.handleTunnelRequestAsync(tunnelRequest).whenComplete { value, cause ->
+                if (cause != null) result.completeExceptionally(cause) else result.complete(value)
+            }
+        } catch (e: Exception) {
+            result.completeExceptionally(e)
+        }
+        return result
+    }
+
+    private fun keyOf(tunnelRequest: TunnelRequest): String {
+        return when (tunnelRequest.type) {
+            TunnelRequest.Type.TCP -> "tcp:${tunnelRequest.remotePort}"
+            TunnelRequest.Type.HTTP, TunnelRequest.Type.HTTPS -> tunnelRequest.host
+            else -> tunnelRequest.type.name
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package lighttunnel.server.interceptor
+
+import io.netty.channel.ChannelHandlerContext
+import io.netty.util.concurrent.ScheduledFuture
+import lighttunnel.proto.ProtoException
+import lighttunnel.util.ReadPause
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+internal fun <T> failedFuture(cause: Throwable) = CompletableFuture<T>().also { it.completeExceptionally(cause) }
+
+/** 取出异步执行时被包装的原始异常 */
+internal fun Throwable.unwrapCompletion(): Throwable {
+    var cause = this
+    while ((cause is CompletionException || cause is ExecutionException) && cause.cause != null) {
+        cause = cause.cause!!
+    }
+    return cause
+}
+
+/** 同步等待异步拦截器的结果，抛出原始异常 */
+internal fun <T> CompletionStage<T>.await(): T {
+    try {
+        return toCompletableFuture().join()
+    } catch (e: CompletionException) {
+        throw e.unwrapCompletion()
+    }
+}
+
+/**
+ * 在 ctx 所在的 EventLoop 中处理异步结果
+ *
+ * 结果已就绪时直接处理，否则暂停读取直到结果返回或超时，期间 EventLoop 继续处理其他连接
+ *
+ * @param timeoutMillis 超时时间，小于等于 0 时不超时
+ */
+internal fun <T> CompletionStage<T>.onCompleteInEventLoop(
+    ctx: ChannelHandlerContext,
+    timeoutMillis: Long,
+    action: (result: T?, cause: Throwable?) -> Unit
+) {
+    val channel = ctx.channel()
+    val executor = ctx.executor()
+    var done = false
+    var paused = false
+    var timeoutFuture: ScheduledFuture<*>? = null
+    val complete = { result: T?, cause: Throwable? ->
+        if (!done) {
+            done = true
+            timeoutFuture?.cancel(false)
+            if (paused) {
+                ReadPause.resume(channel, ReadPause.Reason.INTERCEPTOR)
+            }
+            action(result, cause?.unwrapCompletion())
+        }
+    }
+    whenComplete { result, cause ->
+        if (executor.inEventLoop()) {
+            complete(result, cause)
+        } else {
+            executor.execute { complete(result, cause) }
+        }
+    }
+    if (!done) {
+        paused = true
+        ReadPause.pause(channel, ReadPause.Reason.INTERCEPTOR)
+        if (timeoutMillis > 0) {
+            timeoutFuture = executor.schedule(Runnable {
+                complete(null, ProtoException("interceptor timeout(${timeoutMillis}ms)"))
+            }, timeoutMillis, TimeUnit.MILLISECONDS)
+        }
+    }
+}
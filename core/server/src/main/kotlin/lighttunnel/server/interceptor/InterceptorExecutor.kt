@@ -0,0 +1,117 @@
+package lighttunnel.server.interceptor
+
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponse
+import io.netty.util.concurrent.DefaultThreadFactory
+import lighttunnel.logger.loggerDelegate
+import lighttunnel.proto.ProtoException
+import lighttunnel.proto.TunnelRequest
+import java.net.SocketAddress
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+/**
+ * 执行同步拦截器的有界线程池，拦截器中的阻塞调用不占用 EventLoop
+ *
+ * 运行在 JDK 21 及以上版本时使用虚拟线程，线程数和队列长度仍然有界；队列满时拦截失败，不会无限堆积
+ *
+ * @param threads 最大并发数
+ * @param queueSize 等待队列长度
+ */
+class InterceptorExecutor(
+    threads: Int = 16,
+    queueSize: Int = 1024
+) {
+    companion object {
+        /** 虚拟线程通过反射创建，编译目标仍为 JDK 8 */
+        private fun newThreadFactory(): ThreadFactory {
+            return try {
+                val builder = Thread::class.java.getMethod("ofVirtual").invoke(null)
+                Class.forName("java.lang.Thread\$Builder\$OfVirtual")
+                    .getMethod("name", String::class.java, Long::class.javaPrimitiveType)
+                    .invoke(builder, "interceptor-", 0L)
+                Class.forName("java.lang.Thread\$Builder").getMethod("factory").invoke(builder) as ThreadFactory
+            } catch (e: Exception) {
+                DefaultThreadFactory("interceptor", true)
+            }
+        }
+
+        /** 已经是异步拦截器时直接返回，executor 为空时在调用线程中执行 */
+        @JvmStatic
+        fun asAsync(interceptor: TunnelRequestInterceptor, executor: InterceptorExecutor?): AsyncTunnelRequestInterceptor {
+            if (interceptor is AsyncTunnelRequestInterceptor) {
+                return interceptor
+            }
+            return object : AsyncTunnelRequestInterceptor {
+                override fun handleTunnelRequest(tunnelRequest: TunnelRequest) = interceptor.handleTunnelRequest(tunnelRequest)
+
+                override fun handleTunnelRequestAsync(tunnelRequest: TunnelRequest): CompletionStage<TunnelRequest> {
+                    return executor.supply(interceptor) { interceptor.handleTunnelRequest(tunnelRequest) }
+                }
+            }
+        }
+
+        /** 已经是异步拦截器时直接返回，executor 为空时在调用线程中执行 */
+        @JvmStatic
+        fun asAsync(interceptor: HttpRequestInterceptor, executor: InterceptorExecutor?): AsyncHttpRequestInterceptor {
+            if (interceptor is AsyncHttpRequestInterceptor) {
+                return interceptor
+            }
+            return object : AsyncHttpRequestInterceptor {
+                override fun handleHttpRequest(
+                    localAddress: SocketAddress, remoteAddress: SocketAddress,
+                    tunnelRequest: TunnelRequest, httpRequest: HttpRequest
+                ) = interceptor.handleHttpRequest(localAddress, remoteAddress, tunnelRequest, httpRequest)
+
+                override fun handleHttpRequestAsync(
+                    localAddress: SocketAddress, remoteAddress: SocketAddress,
+                    tunnelRequest: TunnelRequest, httpRequest: HttpRequest
+                ): CompletionStage<HttpResponse?> {
+                    return executor.supply(interceptor) {
+                        interceptor.handleHttpRequest(localAddress, remoteAddress, tunnelRequest, httpRequest)
+                    }
+                }
+            }
+        }
+
+        /** 内置拦截器不访问外部服务，直接在调用线程中执行，省去线程切换 */
+        private fun <T> InterceptorExecutor?.supply(interceptor: Any, block: () -> T): CompletionStage<T> {
+            if (this != null && interceptor !is SimpleRequestInterceptor) {
+                return supplyAsync(block)
+            }
+            return try {
+                CompletableFuture.completedFuture(block())
+            } catch (e: Exception) {
+                failedFuture(e)
+            }
+        }
+    }
+
+    private val logger by loggerDelegate()
+    private val executor = ThreadPoolExecutor(
+        threads, threads, 60L, TimeUnit.SECONDS, ArrayBlockingQueue(queueSize), newThreadFactory()
+    ).apply { allowCoreThreadTimeOut(true) }
+
+    init {
+        logger.info("Interceptor executor: threads={}, queueSize={}", threads, queueSize)
+    }
+
+    fun <T> supplyAsync(block: () -> T): CompletionStage<T> {
+        return try {
+            CompletableFuture.supplyAsync(Supplier(block), executor)
+        } catch (e: RejectedExecutionException) {
+            failedFuture(ProtoException("interceptor busy"))
+        }
+    }
+
+    fun shutdown() {
+        executor.shutdown()
+    }
+
+}
@@ -2,16 +2,17 @@ package lighttunnel.server.interceptor
 
 import lighttunnel.proto.ProtoException
 import lighttunnel.proto.TunnelRequest
-import lighttunnel.proto.TunnelRequest.Factory.copyTcp
-import lighttunnel.server.util.PortUtil
+import lighttunnel.server.util.PortRange
 
 internal class TunnelRequestInterceptorImpl(
     /** 预置Token */
     private val authToken: String?,
     /** 端口白名单 */
-    private val allowPorts: String?
+    allowPorts: String?
 ) : TunnelRequestInterceptor {
 
+    private val allowPortRange = allowPorts?.let { PortRange.parse(it) }
+
     @Throws(ProtoException::class)
     override fun handleTunnelRequest(tunnelRequest: TunnelRequest): TunnelRequest {
         if (authToken != null && authToken != tunnelRequest.authToken) {
@@ -19,16 +20,12 @@ internal class TunnelRequestInterceptorImpl(
         }
         return when (tunnelRequest.type) {
             TunnelRequest.Type.TCP -> {
-                if (tunnelRequest.remotePort == 0) {
-                    tunnelRequest.copyTcp(
-                        remotePort = PortUtil.getAvailableTcpPort(allowPorts ?: "1024-65535")
-                    )
-                } else {
-                    if (allowPorts != null && !PortUtil.hasInPortRange(allowPorts, tunnelRequest.remotePort)) {
-                        throw ProtoException("request($tunnelRequest), remotePort($tunnelRequest.remotePort) Not allowed to use.")
-                    }
-                    tunnelRequest
+                // remotePort 为 0 时由 TcpServer 从端口池中分配
+                val remotePort = tunnelRequest.remotePort
+                if (remotePort != 0 && allowPortRange != null && remotePort !in allowPortRange) {
+                    throw ProtoException("request($tunnelRequest), remotePort($remotePort) Not allowed to use.")
                 }
+                tunnelRequest
             }
             else -> {
                 tunnelRequest
@@ -2,24 +2,26 @@ package lighttunnel.server.tcp
 
 import io.netty.channel.ChannelFuture
 import lighttunnel.server.util.SessionChannels
+import lighttunnel.server.util.SessionChannelsGroup
+import java.net.SocketAddress
 
 class TcpDescriptor(
     val addr: String?,
     val port: Int,
-    val sessionChannels: SessionChannels,
-    private val bindChannelFuture: ChannelFuture
+    sessionChannels: SessionChannels
 ) {
 
-    val tunnelId get() = sessionChannels.tunnelId
+    internal var bindChannelFuture: ChannelFuture? = null
 
-    val tunnelRequest get() = sessionChannels.tunnelRequest
+    val group = SessionChannelsGroup(sessionChannels)
 
-    val tunnelChannel get() = sessionChannels.tunnelChannel
+    val channelCount get() = group.members.sumBy { it.cachedChannelCount }
 
-    val channelCount get() = sessionChannels.cachedChannelCount
+    /** 为新会话选择一个隧道 */
+    fun select(remoteAddress: SocketAddress?) = group.select(remoteAddress)
 
     fun close() {
-        bindChannelFuture.channel().close()
-        sessionChannels.destroy()
+        bindChannelFuture?.channel()?.close()
+        group.members.forEach { it.destroy() }
     }
-}
\ No newline at end of file
+}
@@ -2,93 +2,133 @@ package lighttunnel.server.tcp
 
 import io.netty.channel.Channel
 import lighttunnel.logger.loggerDelegate
+import lighttunnel.proto.HeartbeatHandler
 import lighttunnel.proto.ProtoException
+import lighttunnel.server.util.PortAllocator
+import lighttunnel.server.util.PortRange
 import lighttunnel.server.util.SessionChannels
 import org.json.JSONArray
 import org.json.JSONObject
-import java.util.concurrent.locks.ReentrantReadWriteLock
-import kotlin.concurrent.read
-import kotlin.concurrent.write
+import java.util.concurrent.ConcurrentHashMap
 
-class TcpRegistry {
+/**
+ * @param allowPorts 自动分配远程端口的范围
+ */
+class TcpRegistry(allowPorts: PortRange = PortRange.DEFAULT) {
     private val logger by loggerDelegate()
 
-    private val tunnelIdDescriptors = HashMap<Long, TcpDescriptor>()
-    private val portDescriptors = HashMap<Int, TcpDescriptor>()
-    private val lock = ReentrantReadWriteLock()
+    /** 记录本服务已绑定的端口，端口关闭时归还 */
+    internal val portAllocator = PortAllocator(allowPorts)
+
+    private val tunnelIdSessionChannels = ConcurrentHashMap<Long, SessionChannels>()
+    private val portDescriptors = ConcurrentHashMap<Int, TcpDescriptor>()
 
     @Throws(ProtoException::class)
     fun register(port: Int, sessionChannels: SessionChannels, descriptor: TcpDescriptor) {
-        if (isRegistered(port)) {
+        if (portDescriptors.putIfAbsent(port, descriptor) != null) {
+            descriptor.close()
             throw ProtoException("port($port) already used")
         }
-        lock.write {
-            tunnelIdDescriptors[sessionChannels.tunnelId] = descriptor
-            portDescriptors[port] = descriptor
-        }
+        portAllocator.markUsed(port)
+        tunnelIdSessionChannels[sessionChannels.tunnelId] = sessionChannels
         logger.info("Start Tunnel: {}, Options: {}", sessionChannels.tunnelRequest, sessionChannels.tunnelRequest.optionsString)
     }
 
-    fun unregister(port: Int) {
-        lock.write {
-            unsafeUnregister(port)
-            portDescriptors.remove(port)
+    /** 加入已绑定端口的负载均衡组，端口未注册或不允许加入时返回 false */
+    fun join(port: Int, sessionChannels: SessionChannels): Boolean {
+        var joined = false
+        portDescriptors.computeIfPresent(port) { _, descriptor ->
+            if (descriptor.group.canJoin(sessionChannels)) {
+                descriptor.group.add(sessionChannels)
+                joined = true
+            }
+            descriptor
+        }
+        if (joined) {
+            tunnelIdSessionChannels[sessionChannels.tunnelId] = sessionChannels
+            logger.info("Join Tunnel: {}, Options: {}", sessionChannels.tunnelRequest, sessionChannels.tunnelRequest.optionsString)
+        }
+        return joined
+    }
+
+    /** 注销一个隧道，组内没有隧道时才关闭端口 */
+    fun unregister(port: Int, sessionChannels: SessionChannels) {
+        var removed = false
+        var closed: TcpDescriptor? = null
+        portDescriptors.computeIfPresent(port) { _, descriptor ->
+            removed = descriptor.group.remove(sessionChannels)
+            if (descriptor.group.isEmpty) {
+                closed = descriptor
+                null
+            } else {
+                descriptor
+            }
+        }
+        tunnelIdSessionChannels.remove(sessionChannels.tunnelId, sessionChannels)
+        if (removed) {
+            sessionChannels.destroy()
+            logger.info("Shutdown Tunnel: {}", sessionChannels.tunnelRequest)
+        }
+        closed?.also {
+            it.close()
+            portAllocator.release(port)
         }
     }
 
     fun destroy() {
-        lock.write {
-            portDescriptors.forEach { (host, _) -> unsafeUnregister(host) }
-            portDescriptors.clear()
+        portDescriptors.values.forEach { descriptor ->
+            descriptor.group.members.forEach { unregister(descriptor.port, it) }
         }
-        lock.writeLock().lock()
     }
 
+    /**
+     * 归还分配后未注册的端口
+     *
+     * 端口在分配到归还之间可能已被其他隧道显式注册，此时不归还；与 [register] 在同一个桶上串行，判断和归还是原子的
+     */
+    internal fun releasePort(port: Int) {
+        portDescriptors.compute(port) { _, descriptor ->
+            if (descriptor == null) {
+                portAllocator.release(port)
+            }
+            descriptor
+        }
+    }
 
     fun isRegistered(port: Int): Boolean {
-        lock.read {
-            return portDescriptors.contains(port)
-        }
+        return portDescriptors.containsKey(port)
     }
 
+    /** 可自动分配的空闲端口数 */
+    val freePortCount get() = portAllocator.freeCount
+
     fun getSessionChannel(tunnelId: Long, sessionId: Long): Channel? {
-        lock.read {
-            return tunnelIdDescriptors[tunnelId]?.sessionChannels?.getChannel(sessionId)
-        }
+        return tunnelIdSessionChannels[tunnelId]?.getChannel(sessionId)
     }
 
-
     fun getDescriptor(port: Int): TcpDescriptor? {
-        lock.read {
-            return portDescriptors[port]
-        }
+        return portDescriptors[port]
     }
 
-
     val snapshot: JSONArray
         get() {
-            lock.read {
-                val array = JSONArray()
-                tunnelIdDescriptors.values.forEach {
+            val array = JSONArray()
+            portDescriptors.values.forEach { descriptor ->
+                descriptor.group.members.forEach {
                     array.put(JSONObject().also { obj ->
-                        obj.put("port", it.port)
-                        obj.put("conns", it.channelCount)
+                        obj.put("port", descriptor.port)
+                        obj.put("conns", it.cachedChannelCount)
                         obj.put("name", it.tunnelRequest.name)
                         obj.put("local_addr", it.tunnelRequest.localAddr)
                         obj.put("local_port", it.tunnelRequest.localPort)
+                        HeartbeatHandler.rttOf(it.tunnelChannel)?.takeIf { rtt -> rtt.hasSample }?.also { rtt ->
+                            obj.put("rtt_ms", rtt.srttMillis)
+                            obj.put("rtt_jitter_ms", rtt.jitterMillis)
+                        }
                     })
                 }
-                return array
             }
+            return array
         }
 
-    private fun unsafeUnregister(port: Int) {
-        portDescriptors[port]?.also {
-            tunnelIdDescriptors.remove(it.tunnelId)
-            it.close()
-            logger.info("Shutdown Tunnel: {}", it.tunnelRequest)
-        }
-    }
-
-
-}
\ No newline at end of file
+}
@@ -5,49 +5,162 @@ import io.netty.channel.ChannelFuture
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelOption
-import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.EventLoopGroup
 import io.netty.channel.socket.SocketChannel
-import io.netty.channel.socket.nio.NioServerSocketChannel
 import lighttunnel.proto.ProtoException
-import lighttunnel.server.util.PortUtil
+import lighttunnel.proto.TunnelRequest
+import lighttunnel.proto.TunnelRequest.Factory.copyTcp
+import lighttunnel.server.interceptor.failedFuture
+import lighttunnel.server.util.PortRange
 import lighttunnel.server.util.SessionChannels
+import lighttunnel.transport.Transport
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
 
+/**
+ * @param sessionAffinity 用户连接与所属隧道连接使用同一个 EventLoop，转发数据时无须切换线程
+ * @param allowPorts 自动分配远程端口的范围
+ */
 class TcpServer(
-    bossGroup: NioEventLoopGroup,
-    workerGroup: NioEventLoopGroup
+    private val bossGroup: EventLoopGroup,
+    private val workerGroup: EventLoopGroup,
+    private val transport: Transport = Transport.DEFAULT,
+    private val sessionAffinity: Boolean = false,
+    allowPorts: PortRange = PortRange.DEFAULT
 ) {
+    companion object {
+        /** 自动分配端口时最多尝试绑定的次数 */
+        private const val MAX_BIND_ATTEMPTS = 16
+    }
 
-    val registry = TcpRegistry()
+    val registry = TcpRegistry(allowPorts)
 
-    private val serverBootstrap = ServerBootstrap()
+    /**
+     * 绑定隧道端口并注册，remotePort 为 0 时从端口池中分配，每个端口只绑定一次，不预先探测
+     *
+     * 异步绑定，不阻塞调用线程（通常是隧道连接的 EventLoop），绑定失败时在回调中换下一个端口重试
+     *
+     * @param newSessionChannels 按实际使用的端口创建隧道
+     * @return 注册完成的结果，端口不可用时以 [ProtoException] 结束
+     */
+    fun startTunnel(
+        addr: String?,
+        tunnelRequest: TunnelRequest,
+        newSessionChannels: (TunnelRequest) -> SessionChannels
+    ): CompletionStage<SessionChannels> {
+        val port = tunnelRequest.remotePort
+        if (port == 0) {
+            val result = CompletableFuture<SessionChannels>()
+            startTunnelOnAvailablePort(addr, tunnelRequest, newSessionChannels, result, MAX_BIND_ATTEMPTS, mutableListOf())
+            return result
+        }
+        val sessionChannels = newSessionChannels(tunnelRequest)
+        // 端口已被声明了负载均衡的隧道使用时加入该组，无须重新绑定
+        if (registry.join(port, sessionChannels)) {
+            return CompletableFuture.completedFuture(sessionChannels)
+        }
+        if (registry.isRegistered(port)) {
+            return failedFuture(ProtoException("port($port) already used"))
+        }
+        val result = CompletableFuture<SessionChannels>()
+        bind(addr, port, sessionChannels).addListener(ChannelFutureListener { future ->
+            if (future.isSuccess) {
+                register(addr, port, sessionChannels, future, result)
+            } else {
+                result.completeExceptionally(ProtoException("port($port) already used"))
+            }
+        })
+        return result
+    }
 
-    init {
-        this.serverBootstrap.group(bossGroup, workerGroup)
-            .channel(NioServerSocketChannel::class.java)
-            .childOption(ChannelOption.AUTO_READ, true)
-            .childOption(ChannelOption.SO_KEEPALIVE, true)
+    /**
+     * 从端口池中取出一个端口绑定，失败时取下一个，最多尝试 attempts 次
+     *
+     * 绑定失败的端口被其他进程占用，本次分配结束后再归还，避免重复选中；只归还本次分配且未注册的端口
+     */
+    private fun startTunnelOnAvailablePort(
+        addr: String?,
+        tunnelRequest: TunnelRequest,
+        newSessionChannels: (TunnelRequest) -> SessionChannels,
+        result: CompletableFuture<SessionChannels>,
+        attempts: Int,
+        unavailablePorts: MutableList<Int>
+    ) {
+        val port = if (attempts > 0) registry.portAllocator.acquire() else 0
+        if (port == 0) {
+            unavailablePorts.forEach { registry.releasePort(it) }
+            result.completeExceptionally(ProtoException("no available port"))
+            return
+        }
+        val sessionChannels = try {
+            newSessionChannels(tunnelRequest.copyTcp(remotePort = port))
+        } catch (e: Exception) {
+            registry.releasePort(port)
+            unavailablePorts.forEach { registry.releasePort(it) }
+            result.completeExceptionally(e)
+            return
+        }
+        bind(addr, port, sessionChannels).addListener(ChannelFutureListener { future ->
+            if (future.isSuccess) {
+                unavailablePorts.forEach { registry.releasePort(it) }
+                register(addr, port, sessionChannels, future, result)
+            } else {
+                unavailablePorts.add(port)
+                startTunnelOnAvailablePort(addr, tunnelRequest, newSessionChannels, result, attempts - 1, unavailablePorts)
+            }
+        })
+    }
+
+    private fun register(
+        addr: String?,
+        port: Int,
+        sessionChannels: SessionChannels,
+        bindChannelFuture: ChannelFuture,
+        result: CompletableFuture<SessionChannels>
+    ) {
+        try {
+            registry.register(port, sessionChannels, newDescriptor(addr, port, sessionChannels, bindChannelFuture))
+            result.complete(sessionChannels)
+        } catch (e: Exception) {
+            result.completeExceptionally(e)
+        }
+    }
+
+    /** 异步绑定，结果在 Future 的回调中处理 */
+    private fun bind(addr: String?, port: Int, sessionChannels: SessionChannels): ChannelFuture {
+        // 每个端口单独绑定，用户连接在 accept 时就带上了所属的隧道
+        val childGroup = if (sessionAffinity) sessionChannels.tunnelChannel.eventLoop() else workerGroup
+        val bootstrap = newServerBootstrap(childGroup)
             .childHandler(object : ChannelInitializer<SocketChannel>() {
                 override fun initChannel(ch: SocketChannel?) {
                     ch ?: return
+                    // 绑定成功到注册完成之间接入的连接没有对应的隧道，直接关闭
+                    val descriptor = registry.getDescriptor(port)
+                    if (descriptor == null) {
+                        ch.close()
+                        return
+                    }
                     ch.pipeline()
-                        .addLast("handler", TcpServerChannelHandler(registry))
+                        .addLast("handler", TcpServerChannelHandler(descriptor))
                 }
             })
-    }
-
-    @Throws(Exception::class)
-    fun startTunnel(addr: String?, port: Int, sessionChannels: SessionChannels) {
-        if (registry.isRegistered(port) || !PortUtil.isAvailablePort(port)) {
-            throw ProtoException("port($port) already used")
-        }
-        val bindChannelFuture = if (addr == null) {
-            serverBootstrap.bind(port)
+        return if (addr == null) {
+            bootstrap.bind(port)
         } else {
-            serverBootstrap.bind(addr, port)
+            bootstrap.bind(addr, port)
         }
-        registry.register(port, sessionChannels, TcpDescriptor(addr, port, sessionChannels, bindChannelFuture))
     }
 
+    private fun newDescriptor(addr: String?, port: Int, sessionChannels: SessionChannels, bindChannelFuture: ChannelFuture) =
+        TcpDescriptor(addr, port, sessionChannels).also { it.bindChannelFuture = bindChannelFuture }
+
     fun destroy() = registry.destroy()
 
+    private fun newServerBootstrap(childGroup: EventLoopGroup): ServerBootstrap {
+        val serverBootstrap = ServerBootstrap().group(bossGroup, childGroup)
+        return transport.configure(serverBootstrap)
+            .childOption(ChannelOption.AUTO_READ, true)
+            .childOption(ChannelOption.SO_KEEPALIVE, true)
+    }
+
 }
\ No newline at end of file
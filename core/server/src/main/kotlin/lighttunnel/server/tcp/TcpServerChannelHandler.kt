@@ -1,7 +1,6 @@
 package lighttunnel.server.tcp
 
 import io.netty.buffer.ByteBuf
-import io.netty.buffer.ByteBufUtil
 import io.netty.buffer.Unpooled
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.ChannelHandlerContext
@@ -10,47 +9,50 @@ import lighttunnel.logger.loggerDelegate
 import lighttunnel.proto.ProtoMessage
 import lighttunnel.proto.ProtoMessageType
 import lighttunnel.server.util.AttributeKeys
+import lighttunnel.server.util.SessionChannels
 import lighttunnel.util.LongUtil
-import java.net.InetSocketAddress
 
+/**
+ * 每个用户连接一个实例，隧道在连接建立时就已选定，读写数据时无须再查询注册表
+ */
 class TcpServerChannelHandler(
-    private val registry: TcpRegistry
+    private val descriptor: TcpDescriptor
 ) : SimpleChannelInboundHandler<ByteBuf>() {
     private val logger by loggerDelegate()
 
+    private var sessionChannels: SessionChannels? = null
+    private var sessionId: Long? = null
+    private var head: ByteArray? = null
 
     override fun channelActive(ctx: ChannelHandlerContext?) {
         if (ctx != null) {
-            val descriptor = ctx.descriptor
-            if (descriptor != null) {
-                var sessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get()
-                if (sessionId == null) {
-                    sessionId = descriptor.sessionChannels.putChannel(ctx.channel())
-                    ctx.channel().attr(AttributeKeys.AK_SESSION_ID).set(sessionId)
-                }
-                val head = LongUtil.toBytes(descriptor.tunnelId, sessionId)
-                descriptor.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.REMOTE_CONNECTED, head))
-            } else {
-                ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
+            val sessionChannels = descriptor.select(ctx.channel().remoteAddress())
+            if (sessionChannels == null) {
+                ctx.channel().close()
+                return
             }
+            val sessionId = sessionChannels.putChannel(ctx.channel())
+            val head = LongUtil.toBytes(sessionChannels.tunnelId, sessionId)
+            this.sessionChannels = sessionChannels
+            this.sessionId = sessionId
+            this.head = head
+            sessionChannels.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.REMOTE_CONNECTED, head))
         }
         super.channelActive(ctx)
     }
 
     override fun channelInactive(ctx: ChannelHandlerContext?) {
         if (ctx != null) {
-            val descriptor = ctx.descriptor
-            if (descriptor != null) {
-                val sessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get()
-                if (sessionId != null) {
-                    descriptor.sessionChannels.removeChannel(sessionId)
-                        ?.writeAndFlush(Unpooled.EMPTY_BUFFER)
-                        ?.addListener(ChannelFutureListener.CLOSE)
-                }
+            val sessionChannels = this.sessionChannels
+            val sessionId = this.sessionId
+            val head = this.head
+            if (sessionChannels != null && sessionId != null && head != null) {
+                sessionChannels.removeChannel(sessionId)
+                    ?.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                    ?.addListener(ChannelFutureListener.CLOSE)
                 // 解决 HTTP/1.x 数据传输问题
                 ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener {
-                    val head = LongUtil.toBytes(descriptor.tunnelId, sessionId)
-                    descriptor.tunnelChannel
+                    sessionChannels.tunnelChannel
                         .writeAndFlush(ProtoMessage(ProtoMessageType.REMOTE_DISCONNECT, head))
                 }
             }
@@ -68,18 +70,12 @@ class TcpServerChannelHandler(
         logger.trace("channelRead0: {}", ctx)
         ctx ?: return
         msg ?: return
-        val sessionId = ctx.channel().attr(AttributeKeys.AK_SESSION_ID).get() ?: return
-        val descriptor = ctx.descriptor ?: return
-        val head = LongUtil.toBytes(descriptor.tunnelId, sessionId)
-        val data = ByteBufUtil.getBytes(msg)
-        descriptor.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.TRANSFER, head, data))
+        val sessionChannels = this.sessionChannels ?: return
+        val head = this.head ?: return
+        val data = msg.retain()
+        val length = data.readableBytes()
+        sessionChannels.tunnelChannel.writeAndFlush(ProtoMessage(ProtoMessageType.TRANSFER, head, data))
+        ctx.channel().attr(AttributeKeys.AK_FLOW_WINDOW).get()?.onSent(ctx.channel(), length)
     }
 
-    private val ChannelHandlerContext?.descriptor: TcpDescriptor?
-        get() {
-            this ?: return null
-            val sa = this.channel().localAddress() as InetSocketAddress
-            return registry.getDescriptor(sa.port)
-        }
-
-}
\ No newline at end of file
+}
@@ -1,12 +1,16 @@
 package lighttunnel.server.util
 
 import io.netty.util.AttributeKey
+import lighttunnel.proto.FlowWindow
 
 object AttributeKeys {
 
     val AK_SESSION_ID: AttributeKey<Long> = AttributeKey.newInstance("\$session_id")
     val AK_SESSION_CHANNELS: AttributeKey<SessionChannels> = AttributeKey.newInstance("\$session_channels")
     val AK_HTTP_HOST: AttributeKey<String> = AttributeKey.newInstance("\$http_host")
+    /** HTTP 用户连接当前会话所在的隧道 */
+    val AK_HTTP_SESSION_CHANNELS: AttributeKey<SessionChannels> = AttributeKey.newInstance("\$http_session_channels")
     val AK_HTTP_SKIP: AttributeKey<Boolean> = AttributeKey.newInstance("\$http_skip")
+    val AK_FLOW_WINDOW: AttributeKey<FlowWindow> = AttributeKey.newInstance("\$flow_window")
 
 }
\ No newline at end of file
@@ -1,22 +1,25 @@
 package lighttunnel.server.util
 
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
 import io.netty.buffer.Unpooled
 import io.netty.handler.codec.base64.Base64
-import io.netty.handler.codec.http.FullHttpResponse
-import io.netty.handler.codec.http.HttpHeaderNames
-import io.netty.handler.codec.http.HttpRequest
-import io.netty.handler.codec.http.HttpResponse
+import io.netty.handler.codec.http.*
 import java.nio.charset.StandardCharsets
 
 
 object HttpUtil {
     private const val CRLF = "\r\n"
     private val CHARSET = StandardCharsets.UTF_8
+    private val CRLF_BYTES = CRLF.toByteArray(CHARSET)
+    private const val CR: Byte = 13
+    private const val LF: Byte = 10
 
     fun getDomainHost(request: HttpRequest): String? {
         val host = request.headers().get(HttpHeaderNames.HOST) ?: return null
-        return host.split(":".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()[0]
+        // 没有端口时直接返回原字符串，不产生新对象
+        val index = if (host.startsWith('[')) host.indexOf("]:") + 1 else host.indexOf(':')
+        return if (index > 0) host.substring(0, index) else host
     }
 
     fun getBasicAuthorization(request: HttpRequest): Array<String>? {
@@ -71,4 +74,84 @@ object HttpUtil {
             Unpooled.wrappedBuffer(raw.toString().toByteArray(CHARSET))
         }
     }
-}
\ No newline at end of file
+
+    /** 查找请求头结束位置（最后一个 CRLF 之后），未读取完整时返回 -1 */
+    fun findHeadEnd(buf: ByteBuf): Int {
+        val start = buf.readerIndex()
+        val end = buf.writerIndex()
+        for (i in start + 3 until end) {
+            if (buf.getByte(i) == LF && buf.getByte(i - 1) == CR &&
+                buf.getByte(i - 2) == LF && buf.getByte(i - 3) == CR
+            ) {
+                return i + 1
+            }
+        }
+        return -1
+    }
+
+    /** 只解析请求行和请求头，格式错误时返回 null */
+    fun parseRequestHead(buf: ByteBuf, headEnd: Int): HttpRequest? {
+        val lines = buf.toString(buf.readerIndex(), headEnd - buf.readerIndex(), CHARSET).split(CRLF)
+        val requestLine = lines.firstOrNull()?.split(' ') ?: return null
+        if (requestLine.size != 3) return null
+        return try {
+            val request = DefaultHttpRequest(
+                HttpVersion.valueOf(requestLine[2]),
+                HttpMethod.valueOf(requestLine[0]),
+                requestLine[1]
+            )
+            for (i in 1 until lines.size) {
+                val line = lines[i]
+                if (line.isEmpty()) continue
+                val index = line.indexOf(':')
+                if (index <= 0) return null
+                request.headers().add(line.substring(0, index).trim(), line.substring(index + 1).trim())
+            }
+            request
+        } catch (e: IllegalArgumentException) {
+            null
+        }
+    }
+
+    /**
+     * 在原始请求头上改写
+     *
+     * 请求行和未变化的请求头按原始字节复制，只有 [origin] 与 [request] 中取值不同的请求头才重新生成
+     */
+    fun rewriteRequestHead(
+        alloc: ByteBufAllocator, buf: ByteBuf, headEnd: Int,
+        origin: HttpHeaders, request: HttpRequest
+    ): ByteBuf {
+        val headers = request.headers()
+        val changedNames = (origin.names() + headers.names())
+            .filter { origin.getAll(it) != headers.getAll(it) }
+            .map { it.toLowerCase() }
+            .toSet()
+        val out = alloc.buffer(headEnd - buf.readerIndex())
+        if (changedNames.isEmpty()) {
+            return out.writeBytes(buf, buf.readerIndex(), headEnd - buf.readerIndex())
+        }
+        var lineStart = buf.readerIndex()
+        var first = true
+        while (lineStart < headEnd - 2) {
+            val lineEnd = buf.indexOf(lineStart, headEnd, LF) + 1
+            if (first || buf.toString(lineStart, lineEnd - lineStart, CHARSET)
+                    .substringBefore(':').trim().toLowerCase() !in changedNames
+            ) {
+                out.writeBytes(buf, lineStart, lineEnd - lineStart)
+            }
+            first = false
+            lineStart = lineEnd
+        }
+        for (name in headers.names()) {
+            if (name.toLowerCase() !in changedNames) continue
+            for (value in headers.getAll(name)) {
+                out.writeCharSequence(name, CHARSET)
+                out.writeCharSequence(": ", CHARSET)
+                out.writeCharSequence(value, CHARSET)
+                out.writeBytes(CRLF_BYTES)
+            }
+        }
+        return out.writeBytes(CRLF_BYTES)
+    }
+}
@@ -0,0 +1,18 @@
+package lighttunnel.server.util
+
+enum class LoadBalance {
+    /** 轮询 */
+    ROUND_ROBIN,
+    /** 当前会话数最少 */
+    LEAST_SESSIONS,
+    /** 按用户 IP 一致性哈希，同一 IP 总是落到同一个隧道，隧道增减时只影响少量 IP */
+    IP_HASH,
+    ;
+
+    companion object {
+        fun of(name: String?): LoadBalance? {
+            name ?: return null
+            return values().firstOrNull { it.name.equals(name, ignoreCase = true) }
+        }
+    }
+}
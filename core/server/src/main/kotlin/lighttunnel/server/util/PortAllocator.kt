@@ -0,0 +1,74 @@
+package lighttunnel.server.util
+
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * 远程端口分配器，分配、占用、释放均为 O(1)
+ *
+ * 规则内的端口放在同一个数组中，前 freeCount 个为空闲端口，positions 记录端口在数组中的下标，
+ * 分配时随机取一个空闲端口与最后一个空闲端口交换，释放时再换回空闲区
+ *
+ * 只记录本服务绑定的端口，被其他进程占用的端口由调用者在绑定失败后自行处理
+ */
+class PortAllocator(val range: PortRange = PortRange.DEFAULT) {
+
+    private val ports = range.toIntArray()
+    private val positions = IntArray(PortRange.MAX_PORT + 1) { -1 }
+
+    @Volatile
+    var freeCount = ports.size
+        private set
+
+    init {
+        ports.forEachIndexed { index, port -> positions[port] = index }
+    }
+
+    /** 分配一个空闲端口，没有空闲端口时返回 0 */
+    @Synchronized
+    fun acquire(): Int {
+        val count = freeCount
+        if (count == 0) {
+            return 0
+        }
+        val port = ports[ThreadLocalRandom.current().nextInt(count)]
+        moveTo(port, count - 1)
+        freeCount = count - 1
+        return port
+    }
+
+    /** 标记端口已被使用，端口不在规则内或已被使用时返回 false */
+    @Synchronized
+    fun markUsed(port: Int): Boolean {
+        if (!isFree(port)) {
+            return false
+        }
+        val count = freeCount
+        moveTo(port, count - 1)
+        freeCount = count - 1
+        return true
+    }
+
+    /** 归还端口，端口不在规则内或未被使用时忽略 */
+    @Synchronized
+    fun release(port: Int) {
+        if (port !in range || isFree(port)) {
+            return
+        }
+        val count = freeCount
+        moveTo(port, count)
+        freeCount = count + 1
+    }
+
+    @Synchronized
+    fun isFree(port: Int) = port in range && positions[port] < freeCount
+
+    private fun moveTo(port: Int, index: Int) {
+        val from = positions[port]
+        val other = ports[index]
+        ports[index] = port
+        ports[from] = other
+        positions[port] = index
+        positions[other] = from
+    }
+
+}
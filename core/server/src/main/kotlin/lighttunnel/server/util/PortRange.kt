@@ -0,0 +1,63 @@
+package lighttunnel.server.util
+
+import java.util.*
+
+/**
+ * 预先解析的端口规则，查询时无须再解析字符串
+ *
+ * 规则格式：10000-21000,30000,30001,30003，无法解析的规则直接忽略
+ */
+class PortRange private constructor(
+    private val rules: String,
+    private val ports: BitSet
+) {
+
+    companion object {
+        const val MAX_PORT = 65535
+
+        /** 未配置端口白名单时自动分配的范围 */
+        @JvmField
+        val DEFAULT = parse("1024-65535")
+
+        @JvmStatic
+        fun parse(rules: String): PortRange {
+            val ports = BitSet(MAX_PORT + 1)
+            for (rule in rules.split(',')) {
+                val index = rule.indexOf('-')
+                try {
+                    if (index == -1) {
+                        val port = rule.trim().toInt()
+                        if (port in 1..MAX_PORT) {
+                            ports.set(port)
+                        }
+                    } else {
+                        val start = rule.substring(0, index).trim().toInt().coerceAtLeast(1)
+                        val end = rule.substring(index + 1).trim().toInt().coerceAtMost(MAX_PORT)
+                        if (start <= end) {
+                            ports.set(start, end + 1)
+                        }
+                    }
+                } catch (e: NumberFormatException) {
+                    // pass
+                }
+            }
+            return PortRange(rules, ports)
+        }
+    }
+
+    /** 规则内的端口数 */
+    val size = ports.cardinality()
+
+    operator fun contains(port: Int) = port in 1..MAX_PORT && ports[port]
+
+    /** 从 fromPort 开始（含）的下一个端口，到末尾后从头查找，没有时返回 -1 */
+    fun nextPort(fromPort: Int): Int {
+        val port = ports.nextSetBit(fromPort.coerceIn(0, MAX_PORT))
+        return if (port != -1) port else ports.nextSetBit(0)
+    }
+
+    fun toIntArray(): IntArray = ports.stream().toArray()
+
+    override fun toString() = rules
+
+}
@@ -2,10 +2,16 @@ package lighttunnel.server.util
 
 import java.io.IOException
 import java.net.ServerSocket
-import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadLocalRandom
 
 
 object PortUtil {
+    private val cachedPortRanges = ConcurrentHashMap<String, PortRange>()
+
+    /** 解析过的规则会被缓存，规则通常来自配置文件，数量有限 */
+    private fun portRangeOf(portRange: String) = cachedPortRanges.getOrPut(portRange) { PortRange.parse(portRange) }
+
     /**
      * 判断端口是否在指定的端口规则内
      *
@@ -14,56 +20,31 @@ object PortUtil {
      * @return 判断结果
      */
     fun hasInPortRange(portRange: String, port: Int): Boolean {
-        if (port < 0 || port > 65535) {
-            return false
-        }
-        val rules = portRange.split(",".toRegex()).dropLastWhile { it.isEmpty() }
-        for (rule in rules) {
-            val index = rule.indexOf("-")
-            if (index == -1) {
-                try {
-                    if (rule.toInt() == port) {
-                        return true
-                    }
-                } catch (e: Exception) {
-                    // pass
-                }
-            } else {
-                val range = rule.split("-".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
-                try {
-                    val startRulePort = range[0].toInt()
-                    val endRulePort = range[1].toInt()
-                    if (port in startRulePort..endRulePort) {
-                        return true
-                    }
-                } catch (e: Exception) {
-                    // pass
-                }
-            }
-        }
-        return false
+        return port in portRangeOf(portRange)
     }
 
     /**
      * 获取指定的端口规则可用端口
      *
+     * 从随机位置开始顺序探测规则内的端口，每个端口最多探测一次，全部不可用时抛出异常
+     * 服务端分配隧道端口时使用 [PortAllocator]，无须探测
+     *
      * @param portRange 端口规则，例如：10000-21000,30000,30001,30003
      * @return 端口号
      */
-    @Synchronized
+    @Throws(IOException::class)
     fun getAvailableTcpPort(portRange: String): Int {
-        val random = Random()
-        while (true) {
-            val port = random.nextInt(65535 - 1024) + 1024
-            if (hasInPortRange(portRange, port)) {
-                if (isAvailablePort(port)) {
-                    return port
-                }
+        val range = portRangeOf(portRange)
+        var port = range.nextPort(ThreadLocalRandom.current().nextInt(PortRange.MAX_PORT + 1))
+        for (i in 0 until range.size) {
+            if (isAvailablePort(port)) {
+                return port
             }
+            port = range.nextPort(port + 1)
         }
+        throw IOException("no available port in $portRange")
     }
 
-    @Synchronized
     fun isAvailablePort(port: Int): Boolean {
         return try {
             ServerSocket(port).close()
@@ -72,4 +53,4 @@ object PortUtil {
             false
         }
     }
-}
\ No newline at end of file
+}
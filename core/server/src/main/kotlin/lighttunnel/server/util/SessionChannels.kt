@@ -3,13 +3,16 @@ package lighttunnel.server.util
 import io.netty.buffer.Unpooled
 import io.netty.channel.Channel
 import io.netty.channel.ChannelFutureListener
+import lighttunnel.metrics.TunnelMetrics
+import lighttunnel.proto.FlowWindow
 import lighttunnel.proto.TunnelRequest
 import java.util.concurrent.ConcurrentHashMap
 
 class SessionChannels(
     val tunnelId: Long,
     val tunnelRequest: TunnelRequest,
-    val tunnelChannel: Channel
+    val tunnelChannel: Channel,
+    val metrics: TunnelMetrics? = null
 ) {
     private val ids = IncIds()
     private val cachedChannels = ConcurrentHashMap<Long, Channel>()
@@ -19,9 +22,16 @@ class SessionChannels(
             return cachedChannels.count()
         }
 
+    /** 会话流控窗口大小，0 表示不启用 */
+    val flowWindow get() = tunnelRequest.grantedFlowWindow
+
     fun putChannel(channel: Channel): Long {
         val sessionId = ids.nextId
+        if (flowWindow > 0) {
+            channel.attr(AttributeKeys.AK_FLOW_WINDOW).set(FlowWindow(flowWindow))
+        }
         cachedChannels[sessionId] = channel
+        metrics?.sessionsOpened?.increment()
         return sessionId
     }
 
@@ -30,11 +40,12 @@ class SessionChannels(
     }
 
     fun removeChannel(sessionId: Long): Channel? {
-        return cachedChannels.remove(sessionId)
+        return cachedChannels.remove(sessionId)?.also { metrics?.sessionsClosed?.increment() }
     }
 
     fun destroy() {
         cachedChannels.forEach { (_, ch) ->
+            metrics?.sessionsClosed?.increment()
             ch.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE)
         }
         cachedChannels.clear()
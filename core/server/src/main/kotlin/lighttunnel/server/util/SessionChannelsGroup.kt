@@ -0,0 +1,123 @@
+package lighttunnel.server.util
+
+import lighttunnel.proto.TunnelRequest
+import java.net.InetSocketAddress
+import java.net.SocketAddress
+import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 同一个 host/端口下的一组隧道，新会话按 [loadBalance] 分配到其中一个隧道
+ *
+ * 成员变化时整体替换成员列表（以及一致性哈希环），选择隧道时无锁
+ */
+class SessionChannelsGroup(first: SessionChannels) {
+
+    companion object {
+        /** 一致性哈希每个隧道的虚拟节点数 */
+        private const val VIRTUAL_NODES = 64
+
+        /** SplitMix64 的混淆函数，相邻的输入得到互不相关的 64 位输出 */
+        private fun mix64(value: Long): Long {
+            var h = value
+            h = (h xor (h ushr 30)) * -0x40a7b892e31b1a47L
+            h = (h xor (h ushr 27)) * -0x6b2fb644ecceee15L
+            return h xor (h ushr 31)
+        }
+
+        /** 隧道的第 index 个虚拟节点在环上的位置，tunnelId 和 index 分别混淆，连续的 tunnelId 不会重叠 */
+        internal fun virtualNodeHash(tunnelId: Long, index: Int): Long = mix64(mix64(tunnelId) + index)
+
+        internal fun addressHash(address: ByteArray): Long {
+            var h = 0L
+            for (b in address) {
+                h = h * 31 + (b.toLong() and 0xff)
+            }
+            return mix64(h)
+        }
+    }
+
+    /** 第一个隧道没有声明负载均衡时该组只能有一个成员 */
+    val loadBalance: LoadBalance? = LoadBalance.of(first.tunnelRequest.option(TunnelRequest.OPTION_LOAD_BALANCE))
+
+    @Volatile
+    var members: List<SessionChannels> = listOf(first)
+        private set
+
+    @Volatile
+    private var ring: TreeMap<Long, SessionChannels>? = null
+
+    private val counter = AtomicInteger(0)
+
+    init {
+        rebuildRing()
+    }
+
+    val isEmpty get() = members.isEmpty()
+
+    val primary get() = members.firstOrNull()
+
+    /** 声明了相同的负载均衡选项且 authToken 一致才允许加入 */
+    fun canJoin(sessionChannels: SessionChannels): Boolean {
+        val loadBalance = loadBalance ?: return false
+        val request = sessionChannels.tunnelRequest
+        val primaryRequest = primary?.tunnelRequest ?: return false
+        return LoadBalance.of(request.option(TunnelRequest.OPTION_LOAD_BALANCE)) == loadBalance &&
+            request.authToken == primaryRequest.authToken
+    }
+
+    @Synchronized
+    fun add(sessionChannels: SessionChannels) {
+        members = members + sessionChannels
+        rebuildRing()
+    }
+
+    @Synchronized
+    fun remove(sessionChannels: SessionChannels): Boolean {
+        if (sessionChannels !in members) {
+            return false
+        }
+        members = members - sessionChannels
+        rebuildRing()
+        return true
+    }
+
+    fun select(remoteAddress: SocketAddress?): SessionChannels? {
+        val members = this.members
+        if (members.size <= 1) {
+            return members.firstOrNull()
+        }
+        return when (loadBalance) {
+            LoadBalance.LEAST_SESSIONS -> members.minBy { it.cachedChannelCount }
+            LoadBalance.IP_HASH -> {
+                val ring = this.ring
+                val address = (remoteAddress as? InetSocketAddress)?.address
+                if (ring == null || address == null) {
+                    members[Math.floorMod(counter.getAndIncrement(), members.size)]
+                } else {
+                    val hash = addressHash(address.address)
+                    (ring.ceilingEntry(hash) ?: ring.firstEntry()).value
+                }
+            }
+            else -> members[Math.floorMod(counter.getAndIncrement(), members.size)]
+        }
+    }
+
+    private fun rebuildRing() {
+        if (loadBalance != LoadBalance.IP_HASH) {
+            return
+        }
+        val ring = TreeMap<Long, SessionChannels>()
+        // 按 tunnelId 顺序插入，冲突时后插入的虚拟节点再次混淆换一个位置，结果与成员加入的顺序无关
+        members.sortedBy { it.tunnelId }.forEach { member ->
+            for (i in 0 until VIRTUAL_NODES) {
+                var hash = virtualNodeHash(member.tunnelId, i)
+                while (ring.putIfAbsent(hash, member) != null) {
+                    hash = mix64(hash)
+                }
+            }
+        }
+        this.ring = ring
+    }
+
+}
@@ -0,0 +1,91 @@
+package lighttunnel.server.util
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * 通配域名前缀树
+ *
+ * 按域名标签从右往左建树，`*.example.com` 保存在 example.com 节点上，匹配 example.com 的任意层级子域名，
+ * 查找时取最长的后缀匹配；读写均无锁
+ */
+class WildcardHostTrie<T : Any> {
+
+    companion object {
+        private const val WILDCARD_PREFIX = "*."
+
+        fun isWildcard(host: String) = host.startsWith(WILDCARD_PREFIX)
+
+        /** 通配符只允许出现在最左边，且后面至少有一个标签 */
+        fun isValidPattern(host: String): Boolean {
+            val suffix = if (isWildcard(host)) host.substring(WILDCARD_PREFIX.length) else host
+            return suffix.isNotEmpty() && !suffix.contains('*') &&
+                suffix.split('.').none { it.isEmpty() }
+        }
+    }
+
+    private val root = Node<T>()
+
+    private val count = AtomicInteger(0)
+
+    val isEmpty get() = count.get() == 0
+
+    /** 注册 `*.suffix`，已被占用时返回已有的值 */
+    fun putIfAbsent(pattern: String, value: T): T? {
+        require(isWildcard(pattern) && isValidPattern(pattern)) { "invalid wildcard host: $pattern" }
+        var node = root
+        forEachLabelReversed(pattern.substring(WILDCARD_PREFIX.length)) { label ->
+            node = node.children.computeIfAbsent(label) { Node() }
+        }
+        if (node.value.compareAndSet(null, value)) {
+            count.incrementAndGet()
+            return null
+        }
+        return node.value.get()
+    }
+
+    fun remove(pattern: String, value: T): Boolean {
+        if (!isWildcard(pattern)) {
+            return false
+        }
+        var node: Node<T>? = root
+        forEachLabelReversed(pattern.substring(WILDCARD_PREFIX.length)) { label ->
+            node = node?.children?.get(label)
+        }
+        if (node?.value?.compareAndSet(value, null) == true) {
+            count.decrementAndGet()
+            return true
+        }
+        return false
+    }
+
+    /** 最长后缀匹配，host 本身不匹配 `*.host` */
+    fun match(host: String): T? {
+        var node = root
+        var best: T? = null
+        var end = host.length
+        while (end > 0) {
+            node.value.get()?.also { best = it }
+            val start = host.lastIndexOf('.', end - 1) + 1
+            node = node.children[host.substring(start, end)] ?: return best
+            end = start - 1
+        }
+        return best
+    }
+
+    private inline fun forEachLabelReversed(domain: String, action: (String) -> Unit) {
+        var end = domain.length
+        while (end > 0) {
+            val start = domain.lastIndexOf('.', end - 1) + 1
+            action(domain.substring(start, end))
+            end = start - 1
+        }
+    }
+
+    private class Node<T> {
+        val children = ConcurrentHashMap<String, Node<T>>()
+        val value = AtomicReference<T>()
+    }
+
+}
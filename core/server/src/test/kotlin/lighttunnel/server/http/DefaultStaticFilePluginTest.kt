@@ -0,0 +1,135 @@
+package lighttunnel.server.http
+
+import io.netty.buffer.ByteBuf
+import io.netty.channel.FileRegion
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.DefaultHttpRequest
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponseEncoder
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.HttpVersion
+import io.netty.handler.stream.ChunkedWriteHandler
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class DefaultStaticFilePluginTest {
+
+    @Test
+    fun parseRange() {
+        assertEquals(0L..99L, DefaultStaticFilePlugin.parseRange("bytes=0-99", 1000))
+        assertEquals(900L..999L, DefaultStaticFilePlugin.parseRange("bytes=900-", 1000))
+        assertEquals(900L..999L, DefaultStaticFilePlugin.parseRange("bytes=-100", 1000))
+        assertEquals(500L..999L, DefaultStaticFilePlugin.parseRange("bytes=500-2000", 1000))
+        assertNull(DefaultStaticFilePlugin.parseRange("bytes=1000-", 1000))
+        // 多区间按整个文件处理
+        assertEquals(0L..999L, DefaultStaticFilePlugin.parseRange("bytes=0-1,5-6", 1000))
+    }
+
+    @Test
+    fun getContentType() {
+        assertEquals("text/html; charset=utf-8", DefaultStaticFilePlugin.getContentType("index.HTML"))
+        assertEquals("application/octet-stream", DefaultStaticFilePlugin.getContentType("data.unknown"))
+    }
+
+    @Test
+    fun doHandle() {
+        val root = Files.createTempDirectory("static").toFile()
+        root.resolve("a.txt").writeText("hello")
+        val plugin = DefaultStaticFilePlugin(
+            rootPathList = listOf(root.path),
+            domainPrefixList = listOf("127.0.0.1")
+        )
+        val request = DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/a.txt")
+        request.headers().set(HttpHeaderNames.HOST, "127.0.0.1")
+        val response = plugin.doHandle(request)!!
+        assertEquals(HttpResponseStatus.OK, response.status())
+        assertEquals("hello", response.content().toString(Charsets.UTF_8))
+        assertNotNull(response.headers().get(HttpHeaderNames.ETAG))
+        // 不允许跳出根目录
+        val escape = DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/../${root.name}/a.txt/../../etc/passwd")
+        escape.headers().set(HttpHeaderNames.HOST, "127.0.0.1")
+        assertEquals(HttpResponseStatus.NOT_FOUND, plugin.doHandle(escape)!!.status())
+        root.deleteRecursively()
+    }
+
+    @Test
+    fun writeRange() {
+        val root = Files.createTempDirectory("static").toFile()
+        root.resolve("a.txt").writeText("hello world")
+        val request = newRequest("/a.txt")
+        request.headers().set(HttpHeaderNames.RANGE, "bytes=6-")
+        val output = write(newPlugin(root), request)
+        assertTrue(output.first, output.first.startsWith("HTTP/1.1 206 Partial Content"))
+        assertTrue(output.first, output.first.contains("content-range: bytes 6-10/11"))
+        assertTrue(output.first, output.first.endsWith("\r\n\r\nworld"))
+        root.deleteRecursively()
+    }
+
+    @Test
+    fun writeNotModified() {
+        val root = Files.createTempDirectory("static").toFile()
+        root.resolve("a.txt").writeText("hello")
+        val plugin = newPlugin(root)
+        val etag = plugin.doHandle(newRequest("/a.txt"))!!.headers().get(HttpHeaderNames.ETAG)
+        val request = newRequest("/a.txt")
+        request.headers().set(HttpHeaderNames.IF_NONE_MATCH, etag)
+        val output = write(plugin, request)
+        assertTrue(output.first, output.first.startsWith("HTTP/1.1 304 Not Modified"))
+        assertFalse(output.first, output.first.contains("hello"))
+        root.deleteRecursively()
+    }
+
+    @Test
+    fun writeFileRegion() {
+        val root = Files.createTempDirectory("static").toFile()
+        root.resolve("a.bin").writeBytes(ByteArray(1000))
+        // 超过缓存内容的大小，明文连接使用 sendfile
+        val request = newRequest("/a.bin")
+        request.headers().set(HttpHeaderNames.RANGE, "bytes=100-199")
+        val output = write(newPlugin(root, cacheMaxFileSize = 16), request)
+        assertTrue(output.first, output.first.startsWith("HTTP/1.1 206 Partial Content"))
+        assertEquals(1, output.second.size)
+        assertEquals(100L, output.second[0].position())
+        assertEquals(100L, output.second[0].count())
+        output.second.forEach { it.release() }
+        root.deleteRecursively()
+    }
+
+    private fun newPlugin(root: File, cacheMaxFileSize: Long = 64 * 1024) = DefaultStaticFilePlugin(
+        rootPathList = listOf(root.path),
+        domainPrefixList = listOf("127.0.0.1"),
+        cacheMaxFileSize = cacheMaxFileSize
+    )
+
+    private fun newRequest(uri: String): HttpRequest {
+        val request = DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri)
+        request.headers().set(HttpHeaderNames.HOST, "127.0.0.1")
+        return request
+    }
+
+    /** 写出响应，返回编码后的文本和写出的 FileRegion */
+    private fun write(plugin: StaticFilePlugin, request: HttpRequest): Pair<String, List<FileRegion>> {
+        val channel = EmbeddedChannel(HttpResponseEncoder(), ChunkedWriteHandler())
+        val future = plugin.doHandle(channel.pipeline().lastContext(), request)!!
+        assertTrue(future.await(5000))
+        assertTrue(future.isSuccess)
+        val text = StringBuilder()
+        val regions = ArrayList<FileRegion>()
+        while (true) {
+            when (val msg = channel.readOutbound<Any>() ?: break) {
+                is ByteBuf -> {
+                    text.append(msg.toString(Charsets.ISO_8859_1))
+                    msg.release()
+                }
+                is FileRegion -> regions.add(msg)
+            }
+        }
+        channel.finishAndReleaseAll()
+        return text.toString() to regions
+    }
+
+}
@@ -0,0 +1,53 @@
+package lighttunnel.server.http
+
+import io.netty.channel.embedded.EmbeddedChannel
+import lighttunnel.proto.ProtoException
+import lighttunnel.proto.TunnelRequest
+import lighttunnel.server.util.SessionChannels
+import org.junit.Assert.*
+import org.junit.Test
+
+class HttpRegistryTest {
+
+    private val registry = HttpRegistry()
+
+    private fun newSessionChannels(tunnelId: Long, host: String): SessionChannels {
+        val request = TunnelRequest.forHttp("127.0.0.1", 80, host, https = false)
+        return SessionChannels(tunnelId, request, EmbeddedChannel())
+    }
+
+    @Test
+    fun ignoreHostCase() {
+        val sc = newSessionChannels(1, "T1.Tunnel.lo")
+        registry.register("T1.Tunnel.lo", sc)
+        assertTrue(registry.isRegistered("t1.tunnel.lo"))
+        assertSame(sc, registry.getDescriptor("t1.TUNNEL.lo")?.group?.primary)
+        registry.unregister("t1.tunnel.lo", sc)
+        assertFalse(registry.isRegistered("T1.Tunnel.lo"))
+    }
+
+    @Test
+    fun ignoreWildcardHostCase() {
+        val sc = newSessionChannels(1, "*.Example.com")
+        registry.register("*.Example.com", sc)
+        assertSame(sc, registry.getDescriptor("a.b.EXAMPLE.com")?.group?.primary)
+        registry.unregister("*.example.COM", sc)
+        assertNull(registry.getDescriptor("a.example.com"))
+    }
+
+    @Test
+    fun rejectDuplicateWildcardHost() {
+        val sc = newSessionChannels(1, "*.example.com")
+        registry.register("*.example.com", sc)
+        try {
+            registry.register("*.EXAMPLE.com", newSessionChannels(2, "*.EXAMPLE.com"))
+            fail()
+        } catch (e: ProtoException) {
+            // expected
+        }
+        assertSame(sc, registry.getDescriptor("a.example.com")?.group?.primary)
+        registry.unregister("*.example.com", sc)
+        assertNull(registry.getDescriptor("a.example.com"))
+    }
+
+}
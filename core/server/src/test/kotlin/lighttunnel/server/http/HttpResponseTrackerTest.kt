@@ -0,0 +1,74 @@
+package lighttunnel.server.http
+
+import io.netty.buffer.Unpooled
+import io.netty.handler.codec.http.HttpMethod
+import org.junit.Assert.*
+import org.junit.Test
+
+class HttpResponseTrackerTest {
+
+    /** 逐字节写出，返回响应结束时已写出的字节数，未结束时返回 -1 */
+    private fun writeByBytes(tracker: HttpResponseTracker, response: String): Int {
+        val bytes = response.toByteArray()
+        for (i in bytes.indices) {
+            if (tracker.onWrite(Unpooled.wrappedBuffer(bytes, i, 1))) {
+                return i + 1
+            }
+        }
+        return -1
+    }
+
+    @Test
+    fun fixedLength() {
+        val tracker = HttpResponseTracker()
+        val response = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"
+        tracker.start(HttpMethod.GET)
+        assertEquals(response.length, writeByBytes(tracker, response))
+        tracker.start(HttpMethod.GET)
+        val buf = Unpooled.copiedBuffer(response.toByteArray())
+        assertTrue(tracker.onWrite(buf))
+        // 不改变读写指针
+        assertEquals(0, buf.readerIndex())
+        buf.release()
+    }
+
+    @Test
+    fun chunked() {
+        val tracker = HttpResponseTracker()
+        val response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+            "5;ext=1\r\nhello\r\na\r\n0123456789\r\n0\r\nX-Trailer: 1\r\n\r\n"
+        tracker.start(HttpMethod.GET)
+        assertEquals(response.length, writeByBytes(tracker, response))
+        assertFalse(tracker.isDisabled)
+    }
+
+    @Test
+    fun informationalAndNoBody() {
+        val tracker = HttpResponseTracker()
+        val response = "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 204 No Content\r\n\r\n"
+        tracker.start(HttpMethod.POST)
+        assertEquals(response.length, writeByBytes(tracker, response))
+        tracker.start(HttpMethod.HEAD)
+        val head = "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n"
+        assertEquals(head.length, writeByBytes(tracker, head))
+    }
+
+    @Test
+    fun untilClose() {
+        val tracker = HttpResponseTracker()
+        tracker.start(HttpMethod.GET)
+        assertEquals(-1, writeByBytes(tracker, "HTTP/1.0 200 OK\r\n\r\nbody"))
+        assertFalse(tracker.isDisabled)
+    }
+
+    @Test
+    fun disableOnUpgrade() {
+        val tracker = HttpResponseTracker()
+        tracker.start(HttpMethod.GET)
+        val response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n\r\n"
+        assertEquals(response.length, writeByBytes(tracker, response))
+        assertTrue(tracker.isDisabled)
+        assertTrue(tracker.onWrite(Unpooled.wrappedBuffer(byteArrayOf(1))))
+    }
+
+}
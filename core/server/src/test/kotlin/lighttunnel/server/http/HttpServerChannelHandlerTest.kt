@@ -0,0 +1,125 @@
+package lighttunnel.server.http
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelFuture
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelPromise
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.FullHttpResponse
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpRequestDecoder
+import lighttunnel.proto.ProtoMessage
+import lighttunnel.proto.ProtoMessageType
+import lighttunnel.proto.TunnelRequest
+import lighttunnel.server.interceptor.HttpRequestInterceptor
+import lighttunnel.server.util.SessionChannels
+import org.junit.Assert.*
+import org.junit.Test
+
+class HttpServerChannelHandlerTest {
+
+    private val tunnelChannel = EmbeddedChannel()
+
+    private var staticPromise: ChannelPromise? = null
+
+    private val staticFilePlugin = object : StaticFilePlugin {
+        override fun doHandle(request: HttpRequest): FullHttpResponse? = null
+
+        override fun doHandle(ctx: ChannelHandlerContext, request: HttpRequest): ChannelFuture? {
+            if (request.uri() != "/static") {
+                return null
+            }
+            return ctx.channel().newPromise().also { staticPromise = it }
+        }
+    }
+
+    private fun newChannel(): EmbeddedChannel {
+        val registry = HttpRegistry()
+        val request = TunnelRequest.forHttp("127.0.0.1", 80, "t1.tunnel.lo", https = false)
+        registry.register("t1.tunnel.lo", SessionChannels(1, request, tunnelChannel))
+        return EmbeddedChannel(
+            HttpRequestDecoder(),
+            HttpServerChannelHandler(registry, object : HttpRequestInterceptor {}, staticFilePlugin)
+        )
+    }
+
+    private fun request(uri: String) = "GET $uri HTTP/1.1\r\nHost: t1.tunnel.lo\r\n\r\n"
+
+    /** 隧道中转发的请求行，跳过空的请求体 */
+    private fun readForwarded(): String? {
+        while (true) {
+            val msg = tunnelChannel.readOutbound<ProtoMessage>() ?: return null
+            assertEquals(ProtoMessageType.TRANSFER, msg.type)
+            val text = msg.data.toString(Charsets.ISO_8859_1)
+            msg.release()
+            if (text.isNotEmpty()) {
+                return text.substringBefore("\r\n")
+            }
+        }
+    }
+
+    /** 模拟隧道写回的响应 */
+    private fun writeResponse(channel: EmbeddedChannel, response: String) {
+        channel.writeAndFlush(Unpooled.copiedBuffer(response.toByteArray()))
+    }
+
+    @Test
+    fun queueRequestsWhileStaticResponseWriting() {
+        val channel = newChannel()
+        channel.writeInbound(Unpooled.copiedBuffer((request("/static") + request("/api")).toByteArray()))
+        assertNotNull(staticPromise)
+        // 静态文件响应写出前，已解码的后续请求不能转发
+        assertNull(readForwarded())
+        assertFalse(channel.config().isAutoRead)
+        staticPromise!!.setSuccess()
+        assertEquals("GET /api HTTP/1.1", readForwarded())
+        assertTrue(channel.config().isAutoRead)
+        channel.finishAndReleaseAll()
+        tunnelChannel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun sequentialRequests() {
+        val channel = newChannel()
+        channel.writeInbound(Unpooled.copiedBuffer(request("/a").toByteArray()))
+        assertEquals("GET /a HTTP/1.1", readForwarded())
+        writeResponse(channel, "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok")
+        channel.writeInbound(Unpooled.copiedBuffer(request("/b").toByteArray()))
+        assertEquals("GET /b HTTP/1.1", readForwarded())
+        assertTrue(channel.config().isAutoRead)
+        channel.finishAndReleaseAll()
+        tunnelChannel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun pipelinedRequests() {
+        val channel = newChannel()
+        channel.writeInbound(Unpooled.copiedBuffer((request("/a") + request("/b")).toByteArray()))
+        assertEquals("GET /a HTTP/1.1", readForwarded())
+        // 上一个响应结束前不转发
+        assertNull(readForwarded())
+        assertFalse(channel.config().isAutoRead)
+        writeResponse(channel, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nok\r\n")
+        assertNull(readForwarded())
+        writeResponse(channel, "0\r\n\r\n")
+        assertEquals("GET /b HTTP/1.1", readForwarded())
+        assertTrue(channel.config().isAutoRead)
+        channel.finishAndReleaseAll()
+        tunnelChannel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun pipelinedHeadRequests() {
+        val channel = newChannel()
+        val head = "HEAD /a HTTP/1.1\r\nHost: t1.tunnel.lo\r\n\r\n"
+        channel.writeInbound(Unpooled.copiedBuffer((head + request("/b")).toByteArray()))
+        assertEquals("HEAD /a HTTP/1.1", readForwarded())
+        assertNull(readForwarded())
+        // HEAD 的响应没有响应体
+        writeResponse(channel, "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n")
+        assertEquals("GET /b HTTP/1.1", readForwarded())
+        channel.finishAndReleaseAll()
+        tunnelChannel.finishAndReleaseAll()
+    }
+
+}
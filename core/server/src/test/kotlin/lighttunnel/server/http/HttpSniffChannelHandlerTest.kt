@@ -0,0 +1,95 @@
+package lighttunnel.server.http
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelOutboundHandlerAdapter
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponse
+import lighttunnel.proto.ProtoMessage
+import lighttunnel.proto.ProtoMessageType
+import lighttunnel.proto.TunnelRequest
+import lighttunnel.server.interceptor.AsyncHttpRequestInterceptor
+import lighttunnel.server.util.SessionChannels
+import org.junit.Assert.*
+import org.junit.Test
+import java.net.SocketAddress
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+
+class HttpSniffChannelHandlerTest {
+
+    private val head = "POST / HTTP/1.1\r\nHost: t1.tunnel.lo\r\nContent-Length: 4\r\n\r\n"
+
+    private val pending = CompletableFuture<HttpResponse?>()
+
+    private val interceptor = object : AsyncHttpRequestInterceptor {
+        override fun handleHttpRequestAsync(
+            localAddress: SocketAddress, remoteAddress: SocketAddress,
+            tunnelRequest: TunnelRequest, httpRequest: HttpRequest
+        ): CompletionStage<HttpResponse?> = pending
+    }
+
+    private val tunnelChannel = EmbeddedChannel()
+
+    /** 记录 sniff 处理器之前的 read() 调用次数 */
+    private var reads = 0
+
+    private fun newChannel(): EmbeddedChannel {
+        val registry = HttpRegistry()
+        val request = TunnelRequest.forHttp("127.0.0.1", 80, "t1.tunnel.lo", https = false)
+        registry.register("t1.tunnel.lo", SessionChannels(1, request, tunnelChannel))
+        val readCounter = object : ChannelOutboundHandlerAdapter() {
+            override fun read(ctx: ChannelHandlerContext) {
+                reads++
+                super.read(ctx)
+            }
+        }
+        return EmbeddedChannel(readCounter, HttpSniffChannelHandler(registry, interceptor))
+    }
+
+    @Test
+    fun forwardAfterIntercepted() {
+        val channel = newChannel()
+        channel.writeInbound(Unpooled.copiedBuffer((head + "body").toByteArray()))
+        assertNull(tunnelChannel.readOutbound<ProtoMessage>())
+        assertFalse(channel.config().isAutoRead)
+        pending.complete(null)
+        assertTrue(channel.config().isAutoRead)
+        val msg = tunnelChannel.readOutbound<ProtoMessage>()
+        assertEquals(ProtoMessageType.TRANSFER, msg.type)
+        msg.release()
+        assertNotNull(channel.pipeline().get("splice"))
+        channel.finishAndReleaseAll()
+        tunnelChannel.finishAndReleaseAll()
+    }
+
+    @Test
+    fun forwardLargeBodyAfterSlowIntercepted() {
+        val channel = newChannel()
+        val bodySize = 512 * 1024
+        val largeHead = "POST / HTTP/1.1\r\nHost: t1.tunnel.lo\r\nContent-Length: $bodySize\r\n\r\n"
+        channel.writeInbound(Unpooled.copiedBuffer(largeHead.toByteArray()))
+        reads = 0
+        // 等待拦截器期间读取暂停，ByteToMessageDecoder 不再主动 read
+        for (i in 0 until bodySize / 8192) {
+            channel.writeInbound(Unpooled.wrappedBuffer(ByteArray(8192)))
+        }
+        assertEquals(0, reads)
+        assertTrue(channel.isActive)
+        assertNull(tunnelChannel.readOutbound<ProtoMessage>())
+        pending.complete(null)
+        assertTrue(channel.isActive)
+        var forwarded = 0
+        while (true) {
+            val msg = tunnelChannel.readOutbound<ProtoMessage>() ?: break
+            assertEquals(ProtoMessageType.TRANSFER, msg.type)
+            forwarded += msg.data.readableBytes()
+            msg.release()
+        }
+        assertTrue(forwarded > bodySize)
+        channel.finishAndReleaseAll()
+        tunnelChannel.finishAndReleaseAll()
+    }
+
+}
@@ -0,0 +1,93 @@
+package lighttunnel.server.interceptor
+
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.embedded.EmbeddedChannel
+import lighttunnel.proto.ProtoException
+import lighttunnel.proto.TunnelRequest
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.atomic.AtomicInteger
+
+class AsyncInterceptorTest {
+
+    private class CountingInterceptor(private val fail: (TunnelRequest) -> Throwable?) : AsyncTunnelRequestInterceptor {
+        val calls = AtomicInteger()
+
+        override fun handleTunnelRequestAsync(tunnelRequest: TunnelRequest): CompletionStage<TunnelRequest> {
+            calls.incrementAndGet()
+            val cause = fail(tunnelRequest) ?: return CompletableFuture.completedFuture(tunnelRequest)
+            return failedFuture(cause)
+        }
+    }
+
+    private fun newHttpRequest(authToken: String) =
+        TunnelRequest.forHttp("127.0.0.1", 80, "t1.tunnel.lo", https = false, authToken = authToken)
+
+    @Test
+    fun cachePerHost() {
+        val delegate = CountingInterceptor { if (it.authToken == "bad") ProtoException("Bad Auth Token") else null }
+        val interceptor = CachingTunnelRequestInterceptor(delegate, ttlMillis = 60_000)
+        assertEquals(newHttpRequest("tk1"), interceptor.handleTunnelRequest(newHttpRequest("tk1")))
+        interceptor.handleTunnelRequest(newHttpRequest("tk1"))
+        assertEquals(1, delegate.calls.get())
+        // Token 不同时不命中，替换该域名的缓存
+        try {
+            interceptor.handleTunnelRequest(newHttpRequest("bad"))
+            fail()
+        } catch (e: ProtoException) {
+            // pass
+        }
+        assertTrue(interceptor.handleTunnelRequestAsync(newHttpRequest("bad")).toCompletableFuture().isCompletedExceptionally)
+        assertEquals(2, delegate.calls.get())
+    }
+
+    @Test
+    fun transientFailureNotCached() {
+        val delegate = CountingInterceptor { IllegalStateException("token store unavailable") }
+        val interceptor = CachingTunnelRequestInterceptor(delegate, ttlMillis = 60_000)
+        repeat(2) {
+            assertTrue(interceptor.handleTunnelRequestAsync(newHttpRequest("tk1")).toCompletableFuture().isCompletedExceptionally)
+        }
+        assertEquals(2, delegate.calls.get())
+    }
+
+    @Test
+    fun executor() {
+        val executor = InterceptorExecutor(threads = 1, queueSize = 1)
+        val interceptor = InterceptorExecutor.asAsync(object : TunnelRequestInterceptor {
+            override fun handleTunnelRequest(tunnelRequest: TunnelRequest): TunnelRequest {
+                throw ProtoException("rejected by ${Thread.currentThread().name}")
+            }
+        }, executor)
+        try {
+            interceptor.handleTunnelRequestAsync(newHttpRequest("tk1")).await()
+            fail()
+        } catch (e: ProtoException) {
+            assertTrue(e.message!!.startsWith("rejected by interceptor"))
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun pauseReadsUntilComplete() {
+        var ctx: ChannelHandlerContext? = null
+        val channel = EmbeddedChannel(object : ChannelInboundHandlerAdapter() {
+            override fun handlerAdded(context: ChannelHandlerContext) {
+                ctx = context
+            }
+        })
+        val future = CompletableFuture<String>()
+        var result: String? = null
+        future.onCompleteInEventLoop(ctx!!, 0) { value, _ -> result = value }
+        assertFalse(channel.config().isAutoRead)
+        future.complete("ok")
+        assertTrue(channel.config().isAutoRead)
+        assertEquals("ok", result)
+        channel.finishAndReleaseAll()
+    }
+
+}
@@ -0,0 +1,57 @@
+package lighttunnel.server.util
+
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.Unpooled
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Test
+import java.nio.charset.StandardCharsets
+
+class HttpUtilTest {
+
+    private val raw = "POST /upload HTTP/1.1\r\n" +
+        "Host: t1.tunnel.lo:8080\r\n" +
+        "X-Real-IP: 10.0.0.1\r\n" +
+        "content-length: 4\r\n" +
+        "\r\n" +
+        "body"
+
+    @Test
+    fun parseRequestHead() {
+        val buf = Unpooled.copiedBuffer(raw, StandardCharsets.UTF_8)
+        assertEquals(-1, HttpUtil.findHeadEnd(buf.slice(0, 20)))
+        val headEnd = HttpUtil.findHeadEnd(buf)
+        assertEquals(raw.length - 4, headEnd)
+        val request = HttpUtil.parseRequestHead(buf, headEnd)
+        assertNotNull(request)
+        assertEquals("t1.tunnel.lo", HttpUtil.getDomainHost(request!!))
+        assertEquals("/upload", request.uri())
+        assertEquals("4", request.headers().get("Content-Length"))
+    }
+
+    @Test
+    fun rewriteRequestHead() {
+        val buf = Unpooled.copiedBuffer(raw, StandardCharsets.UTF_8)
+        val headEnd = HttpUtil.findHeadEnd(buf)
+        val request = HttpUtil.parseRequestHead(buf, headEnd)!!
+        val origin = request.headers().copy()
+        assertEquals(
+            raw.substring(0, headEnd),
+            HttpUtil.rewriteRequestHead(ByteBufAllocator.DEFAULT, buf, headEnd, origin, request)
+                .toString(StandardCharsets.UTF_8)
+        )
+        request.headers().set("X-Real-IP", "/127.0.0.1")
+        request.headers().add("X-User-Agent", "LightTunnel")
+        assertEquals(
+            "POST /upload HTTP/1.1\r\n" +
+                "Host: t1.tunnel.lo:8080\r\n" +
+                "content-length: 4\r\n" +
+                "X-Real-IP: /127.0.0.1\r\n" +
+                "X-User-Agent: LightTunnel\r\n" +
+                "\r\n",
+            HttpUtil.rewriteRequestHead(ByteBufAllocator.DEFAULT, buf, headEnd, origin, request)
+                .toString(StandardCharsets.UTF_8)
+        )
+    }
+
+}
@@ -0,0 +1,73 @@
+package lighttunnel.server.util
+
+import io.netty.channel.embedded.EmbeddedChannel
+import lighttunnel.proto.TunnelRequest
+import lighttunnel.server.tcp.TcpDescriptor
+import lighttunnel.server.tcp.TcpRegistry
+import org.junit.Assert.*
+import org.junit.Test
+
+class PortAllocatorTest {
+
+    @Test
+    fun parse() {
+        val range = PortRange.parse("10000-10002, 30000,abc,20-10,70000")
+        assertEquals(4, range.size)
+        assertTrue(10001 in range)
+        assertTrue(30000 in range)
+        assertFalse(30001 in range)
+        assertFalse(0 in range)
+        assertEquals(30000, range.nextPort(10003))
+        assertEquals(10000, range.nextPort(30001))
+    }
+
+    @Test
+    fun acquireAndRelease() {
+        val allocator = PortAllocator(PortRange.parse("10000-10002"))
+        val ports = (1..3).map { allocator.acquire() }.toSet()
+        assertEquals(setOf(10000, 10001, 10002), ports)
+        assertEquals(0, allocator.acquire())
+        allocator.release(10001)
+        allocator.release(10001)
+        assertEquals(1, allocator.freeCount)
+        assertEquals(10001, allocator.acquire())
+        allocator.release(20000)
+        assertEquals(0, allocator.freeCount)
+    }
+
+    @Test
+    fun markUsed() {
+        val allocator = PortAllocator(PortRange.parse("10000-10001"))
+        assertTrue(allocator.markUsed(10000))
+        assertFalse(allocator.markUsed(10000))
+        assertFalse(allocator.markUsed(20000))
+        assertEquals(10001, allocator.acquire())
+        assertFalse(allocator.isFree(10001))
+    }
+
+    @Test
+    fun releaseOnlyUnregisteredPort() {
+        val registry = TcpRegistry(PortRange.parse("10000"))
+        // 自动分配的端口绑定失败，归还之前同一端口被其他隧道显式注册
+        val port = registry.portAllocator.acquire()
+        assertEquals(10000, port)
+        val request = TunnelRequest.forTcp("127.0.0.1", 80, port)
+        val sessionChannels = SessionChannels(1, request, EmbeddedChannel())
+        registry.register(port, sessionChannels, TcpDescriptor(null, port, sessionChannels))
+        registry.releasePort(port)
+        assertFalse(registry.portAllocator.isFree(port))
+        assertEquals(0, registry.portAllocator.acquire())
+        // 注销后正常归还
+        registry.unregister(port, sessionChannels)
+        assertTrue(registry.portAllocator.isFree(port))
+    }
+
+    @Test
+    fun releaseFailedPort() {
+        val registry = TcpRegistry(PortRange.parse("10000"))
+        val port = registry.portAllocator.acquire()
+        registry.releasePort(port)
+        assertEquals(port, registry.portAllocator.acquire())
+    }
+
+}
@@ -0,0 +1,96 @@
+package lighttunnel.server.util
+
+import io.netty.channel.embedded.EmbeddedChannel
+import lighttunnel.proto.TunnelRequest
+import org.junit.Assert.*
+import org.junit.Test
+import java.net.InetAddress
+import java.net.InetSocketAddress
+
+class SessionChannelsGroupTest {
+
+    private fun newSessionChannels(tunnelId: Long, loadBalance: String?, authToken: String = "tk123456"): SessionChannels {
+        val options = if (loadBalance == null) emptyArray() else arrayOf(TunnelRequest.OPTION_LOAD_BALANCE to loadBalance)
+        val request = TunnelRequest.forTcp("127.0.0.1", 22, 10022, authToken = authToken, options = *options)
+        return SessionChannels(tunnelId, request, EmbeddedChannel())
+    }
+
+    @Test
+    fun canJoin() {
+        val exclusive = SessionChannelsGroup(newSessionChannels(1, null))
+        assertFalse(exclusive.canJoin(newSessionChannels(2, null)))
+        val group = SessionChannelsGroup(newSessionChannels(1, "round_robin"))
+        assertTrue(group.canJoin(newSessionChannels(2, "ROUND_ROBIN")))
+        assertFalse(group.canJoin(newSessionChannels(2, "ip_hash")))
+        assertFalse(group.canJoin(newSessionChannels(2, "round_robin", authToken = "other")))
+    }
+
+    @Test
+    fun roundRobin() {
+        val first = newSessionChannels(1, "round_robin")
+        val second = newSessionChannels(2, "round_robin")
+        val group = SessionChannelsGroup(first)
+        group.add(second)
+        assertEquals(setOf(first, second), setOf(group.select(null), group.select(null)))
+        assertTrue(group.remove(first))
+        assertSame(second, group.select(null))
+        assertTrue(group.remove(second))
+        assertTrue(group.isEmpty)
+        assertNull(group.select(null))
+    }
+
+    @Test
+    fun leastSessions() {
+        val first = newSessionChannels(1, "least_sessions")
+        val second = newSessionChannels(2, "least_sessions")
+        val group = SessionChannelsGroup(first)
+        group.add(second)
+        first.putChannel(EmbeddedChannel())
+        assertSame(second, group.select(null))
+    }
+
+    @Test
+    fun ipHash() {
+        val members = (1L..4L).map { newSessionChannels(it, "ip_hash") }
+        val group = SessionChannelsGroup(members[0])
+        members.drop(1).forEach { group.add(it) }
+        val address = InetSocketAddress("10.0.0.1", 50000)
+        val selected = group.select(address)
+        assertSame(selected, group.select(InetSocketAddress("10.0.0.1", 50001)))
+        // 移除其他隧道不影响已有的映射
+        members.filter { it !== selected }.take(2).forEach { group.remove(it) }
+        assertSame(selected, group.select(address))
+    }
+
+    @Test
+    fun virtualNodesOfSequentialIds() {
+        val hashes = HashSet<Long>()
+        for (tunnelId in 1L..1000L) {
+            for (i in 0 until 64) {
+                hashes.add(SessionChannelsGroup.virtualNodeHash(tunnelId, i))
+            }
+        }
+        assertEquals(1000 * 64, hashes.size)
+    }
+
+    @Test
+    fun ipHashDistributionOfSequentialIds() {
+        val members = (1L..8L).map { newSessionChannels(it, "ip_hash") }
+        val group = SessionChannelsGroup(members[0])
+        members.drop(1).forEach { group.add(it) }
+        val counts = HashMap<SessionChannels, Int>()
+        val total = 16 * 1024
+        for (i in 0 until total) {
+            val address = InetAddress.getByAddress(byteArrayOf(10, 0, (i shr 8).toByte(), i.toByte()))
+            val selected = group.select(InetSocketAddress(address, 50000))!!
+            counts[selected] = (counts[selected] ?: 0) + 1
+        }
+        // 每个隧道分到的会话数在平均值的 0.5 ~ 1.5 倍之间
+        val average = total / members.size
+        members.forEach {
+            val count = counts[it] ?: 0
+            assertTrue("tunnel ${it.tunnelId}: $count", count in average / 2..average * 3 / 2)
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package lighttunnel.server.util
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class WildcardHostTrieTest {
+
+    @Test
+    fun match() {
+        val trie = WildcardHostTrie<String>()
+        assertTrue(trie.isEmpty)
+        assertNull(trie.putIfAbsent("*.example.com", "a"))
+        assertNull(trie.putIfAbsent("*.t1.example.com", "b"))
+        assertEquals("a", trie.putIfAbsent("*.example.com", "c"))
+        assertEquals("a", trie.match("www.example.com"))
+        assertEquals("a", trie.match("x.y.example.com"))
+        // 最长后缀优先
+        assertEquals("b", trie.match("www.t1.example.com"))
+        assertEquals("a", trie.match("t1.example.com"))
+        assertNull(trie.match("example.com"))
+        assertNull(trie.match("www.example.org"))
+        assertTrue(trie.remove("*.t1.example.com", "b"))
+        assertFalse(trie.remove("*.example.com", "c"))
+        assertEquals("a", trie.match("www.t1.example.com"))
+        assertTrue(trie.remove("*.example.com", "a"))
+        assertTrue(trie.isEmpty)
+        assertNull(trie.match("www.example.com"))
+    }
+
+    @Test
+    fun isValidPattern() {
+        assertTrue(WildcardHostTrie.isValidPattern("t1.tunnel.lo"))
+        assertTrue(WildcardHostTrie.isValidPattern("*.tunnel.lo"))
+        assertFalse(WildcardHostTrie.isValidPattern("*"))
+        assertFalse(WildcardHostTrie.isValidPattern("a.*.tunnel.lo"))
+        assertFalse(WildcardHostTrie.isValidPattern("tunnel..lo"))
+    }
+
+}